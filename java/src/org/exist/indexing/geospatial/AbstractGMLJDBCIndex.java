@@ -22,11 +22,17 @@
  */
 package org.exist.indexing.geospatial;
 
+import java.lang.ref.WeakReference;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,6 +46,8 @@ import org.exist.storage.btree.DBException;
 import org.exist.util.DatabaseConfigurationException;
 import org.w3c.dom.Element;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  */
 public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
@@ -55,15 +63,23 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
     private final static Logger LOG = LogManager.getLogger(AbstractGMLJDBCIndex.class);
 
     /**
-     * An IndexWorker "pool"
+     * An IndexWorker "pool", guarded by its own lock.
+     * Both the brokers and the workers are weakly referenced : the broker's index controller
+     * keeps its worker alive, and the entry goes away with the broker
      */
-    protected HashMap<DBBroker, AbstractGMLJDBCIndexWorker> workers = new HashMap<DBBroker, AbstractGMLJDBCIndexWorker>();
+    protected WeakHashMap<DBBroker, WeakReference<AbstractGMLJDBCIndexWorker>> workers =
+        new WeakHashMap<DBBroker, WeakReference<AbstractGMLJDBCIndexWorker>>();
 
     /**
      * The connection to the DB that will be needed for global operations 
      */
     protected Connection conn = null;
 
+    /**
+     * How many rows have been inserted or deleted since the statistics were computed
+     */
+    protected final AtomicLong changesSinceStatistics = new AtomicLong();
+
     /**
      * The spatial operators to test spatial relationshipds beween geometries.
      * See http://www.vividsolutions.com/jts/bin/JTS%20Technical%20Specs.pdf (chapter 11).
@@ -80,7 +96,135 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
         public static int OVERLAPS = 8;
     }
 
-    protected int max_docs_in_context_to_refine_query = 10;
+    /**
+     * Whether the filter step of the spatial searches should use an in-memory R-tree
+     */
+    protected boolean useRTree = true;
+
+    /**
+     * The in-memory R-tree over the EPSG:4326 envelopes, if any
+     */
+    protected SpatialRTree rtree = null;
+
+    /**
+     * Whether the R-tree also holds the EPSG:4326 WKB and the node of the geometries,
+     * so that the searches don't need to query the database
+     */
+    protected boolean rtreeGeometries = false;
+
+    /**
+     * Whether the EPSG:4326 envelopes are kept in a memory-mapped envelope store
+     */
+    protected boolean useEnvelopeStore = false;
+
+    /**
+     * The memory-mapped envelope store, if any
+     */
+    protected EnvelopeStore envelopeStore = null;
+
+    /**
+     * The last row ID given to an indexed geometry
+     */
+    protected AtomicLong lastRowId = new AtomicLong(0);
+
+    /**
+     * The largest width or height, in degrees, of a geometry located by the Hilbert key of its centre.
+     * Larger geometries get no key and are always candidates.
+     */
+    protected double hilbertMaxExtent = 0.1;
+
+    /**
+     * The largest width and height of the geometries that have a Hilbert key
+     */
+    protected double hilbertWidth = 0.0;
+    protected double hilbertHeight = 0.0;
+
+    /**
+     * Whether the geometries are also indexed under the quadtree cells that cover them
+     */
+    protected boolean useCells = false;
+
+    /**
+     * The quadtree levels that hold at least one cell, as a bit mask
+     */
+    protected int cellLevels = 0;
+
+    /**
+     * How many rows are inserted or deleted per JDBC batch
+     */
+    protected int batchSize = 100;
+
+    /**
+     * From how many candidates the refinement step of a search runs in parallel (0 to disable it)
+     */
+    protected int parallelRefinementThreshold = 1000;
+    protected int refinementThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool refinementPool = null;
+
+    /**
+     * How many threads compute the rows of the stored geometries while their document is streamed
+     * (1 or less to compute them when the document is flushed), and how many geometries
+     * each worker may have in computation before its streaming waits
+     */
+    protected int ingestThreads = Runtime.getRuntime().availableProcessors();
+    protected int ingestQueueSize = 1024;
+    private ForkJoinPool ingestPool = null;
+
+    /**
+     * How many brokers stream the documents of a collection during a parallel reindex
+     */
+    protected int reindexThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The prepared statements of each connection
+     */
+    protected int statementCacheSize = 32;
+    private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<Connection, StatementCache>();
+    private final StatementCache.Statistics statementCacheStatistics = new StatementCache.Statistics();
+
+    /**
+     * The decoded geometries of the nodes, bounded by their number of coordinates (0 to disable it)
+     */
+    protected int geometryCacheSize = 1000000;
+    //Created on first use, then read without locking by the concurrent queries
+    private volatile GeometryCache geometryCache = null;
+
+    /**
+     * Whether the geometries of the stored documents are queued, then indexed by a background thread
+     */
+    protected boolean asyncIndexing = false;
+
+    /**
+     * How long the spatial searches wait for the background indexing of their documents, in milliseconds
+     * (0 to read possibly stale results)
+     */
+    protected long asyncWaitTimeout = 10000L;
+
+    /**
+     * The queue of the background indexing, if any.
+     * It may also exist without asyncIndexing, until the rows queued earlier have been indexed.
+     */
+    protected volatile IndexingQueue indexingQueue = null;
+
+    /**
+     * Whether the reindex of a collection bulk loads the spatial table and the R-tree
+     */
+    protected boolean bulkReindex = true;
+
+    /**
+     * How many rows are sent to the database per JDBC batch during a bulk load, at least
+     */
+    protected final static int BULK_BATCH_SIZE = 1000;
+
+    /**
+     * The broker that reindexes a collection in bulk, if any
+     */
+    protected volatile DBBroker bulkBroker = null;
+
+    /**
+     * The coordinate reference systems and transformations, shared by all the workers
+     */
+    private final TransformationCache transformationCache = new TransformationCache();
 
     public AbstractGMLJDBCIndex() {
         //Nothing to do here
@@ -98,8 +242,296 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
         }
     }
 
-    public int getMaxDocsInContextToRefineQuery() {
-        return max_docs_in_context_to_refine_query;
+    public int getBatchSize() {
+        return bulkBroker == null ? batchSize : Math.max(batchSize, BULK_BATCH_SIZE);
+    }
+
+    /**
+     * Returns whether a collection is being reindexed in bulk : the secondary indexes of the
+     * spatial table are dropped, and the R-tree isn't up to date.
+     */
+    public boolean isBulkLoading() {
+        return bulkBroker != null;
+    }
+
+    /**
+     * Returns whether the given broker reindexes a collection in bulk.
+     */
+    public boolean isBulkLoading(DBBroker broker) {
+        return broker != null && bulkBroker == broker;
+    }
+
+    /**
+     * Records the changes to the R-tree of a committed transaction, during a bulk load.
+     * A row inserted and then removed before the end of the bulk load never reaches the R-tree.
+     * Must be called while holding the write connection.
+     */
+    protected void deferFilterChanges(List<SpatialRTree.Entry> insertions, List<Long> removals) {
+        SpatialRTree tree = rtree;
+        if (tree != null)
+            tree.defer(insertions, removals);
+    }
+
+    /**
+     * Applies the changes to the R-tree recorded during a bulk load, packing it in one pass.
+     * Must be called while holding the write connection.
+     */
+    protected void applyDeferredFilterChanges() {
+        SpatialRTree tree = rtree;
+        if (tree != null)
+            tree.applyDeferred();
+    }
+
+    /**
+     * Starts reindexing a collection in bulk, unless another broker already does.
+     * 
+     * @param broker the broker that reindexes the collection
+     * @param conn the write connection, held by the caller
+     */
+    protected abstract void startBulkLoad(DBBroker broker, Connection conn) throws SQLException;
+
+    /**
+     * Ends the bulk reindex, if any : rebuilds the secondary indexes and packs the R-tree.
+     * 
+     * @param conn the write connection, held by the caller
+     */
+    protected abstract void endBulkLoad(Connection conn) throws SQLException;
+
+    public int getParallelRefinementThreshold() {
+        return parallelRefinementThreshold;
+    }
+
+    /**
+     * Returns the pool shared by the searches to refine their candidates in parallel.
+     * 
+     * @return the pool, or null if the parallel refinement is disabled
+     */
+    public synchronized ForkJoinPool getRefinementPool() {
+        if (parallelRefinementThreshold <= 0 || refinementThreads <= 1)
+            return null;
+        if (refinementPool == null)
+            refinementPool = new ForkJoinPool(refinementThreads);
+        return refinementPool;
+    }
+
+    public int getIngestQueueSize() {
+        return ingestQueueSize;
+    }
+
+    /**
+     * Returns the pool shared by the workers to compute the rows of the stored geometries.
+     * 
+     * @return the pool, or null if the rows are computed when the documents are flushed
+     */
+    public synchronized ForkJoinPool getIngestPool() {
+        if (ingestThreads <= 1)
+            return null;
+        if (ingestPool == null)
+            ingestPool = new ForkJoinPool(ingestThreads);
+        return ingestPool;
+    }
+
+    /**
+     * Returns the number of threads that reindex the documents of a collection, 1 to reindex them on the calling thread.
+     */
+    public int getReindexThreads() {
+        return reindexThreads;
+    }
+
+    /**
+     * Returns the cache of the decoded geometries, shared by all the workers.
+     * 
+     * @return the cache, or null if it is disabled
+     */
+    public GeometryCache getGeometryCache() {
+        if (geometryCacheSize <= 0)
+            return null;
+        GeometryCache cache = geometryCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (geometryCache == null)
+                    geometryCache = new GeometryCache(geometryCacheSize);
+                cache = geometryCache;
+            }
+        }
+        return cache;
+    }
+
+    public boolean isAsyncIndexing() {
+        return asyncIndexing;
+    }
+
+    public long getAsyncWaitTimeout() {
+        return asyncWaitTimeout;
+    }
+
+    /**
+     * Returns the queue of the background indexing.
+     * 
+     * @return the queue, or null if there is no background indexing
+     */
+    public IndexingQueue getIndexingQueue() {
+        return indexingQueue;
+    }
+
+    /**
+     * Returns the cache of the coordinate reference systems and transformations, shared by all the workers.
+     */
+    public TransformationCache getTransformationCache() {
+        return transformationCache;
+    }
+
+    /**
+     * Returns the registered workers. The registry may change once this method has returned.
+     */
+    protected List<AbstractGMLJDBCIndexWorker> getWorkers() {
+        synchronized (workers) {
+            List<AbstractGMLJDBCIndexWorker> result = new ArrayList<AbstractGMLJDBCIndexWorker>(workers.size());
+            for (WeakReference<AbstractGMLJDBCIndexWorker> ref : workers.values()) {
+                AbstractGMLJDBCIndexWorker worker = ref.get();
+                if (worker != null)
+                    result.add(worker);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the in-memory R-tree used for the filter step of the spatial searches.
+     * 
+     * @return the R-tree, or null if it is disabled or not yet loaded
+     */
+    public SpatialRTree getRTree() {
+        return rtree;
+    }
+
+    /**
+     * Returns whether the R-tree also holds the EPSG:4326 WKB and the node of the geometries.
+     * 
+     * @return true if it is configured so, false by default
+     */
+    public boolean storesRTreeGeometries() {
+        return rtreeGeometries;
+    }
+
+    /**
+     * Returns the memory-mapped store of the EPSG:4326 envelopes.
+     * 
+     * @return the envelope store, or null if it is disabled or not yet loaded
+     */
+    public EnvelopeStore getEnvelopeStore() {
+        return envelopeStore;
+    }
+
+    /**
+     * Returns whether some filter structures are kept in sync with the row IDs of the spatial table.
+     * 
+     * @return true if there is an R-tree or an envelope store
+     */
+    public boolean hasRowIdFilters() {
+        return rtree != null || envelopeStore != null;
+    }
+
+    /**
+     * Returns the cache of the prepared statements of a connection.
+     * 
+     * @param connection the connection
+     * @return the cache
+     */
+    public StatementCache getStatementCache(Connection connection) {
+        synchronized (statementCaches) {
+            StatementCache cache = statementCaches.get(connection);
+            if (cache == null) {
+                cache = new StatementCache(connection, statementCacheSize, statementCacheStatistics);
+                statementCaches.put(connection, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Closes the cached prepared statements of a connection, that is about to be closed.
+     * 
+     * @param connection the connection
+     */
+    protected void discardStatementCache(Connection connection) {
+        StatementCache cache;
+        synchronized (statementCaches) {
+            cache = statementCaches.remove(connection);
+        }
+        if (cache != null)
+            cache.close();
+    }
+
+    /**
+     * Returns the hits, misses and prepare time of the prepared statements caches.
+     * 
+     * @return the statistics
+     */
+    public StatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+
+    /**
+     * Returns a new row ID for a geometry to be indexed.
+     * 
+     * @return the row ID
+     */
+    protected long nextRowId() {
+        return lastRowId.incrementAndGet();
+    }
+
+    /**
+     * Returns the Hilbert key of a geometry to be indexed, i.e. the key of its envelope's centre.
+     * 
+     * @param envelope the EPSG:4326 envelope of the geometry
+     * @return the key, or {@link HilbertCurve#NO_KEY} if the geometry is too large
+     */
+    protected synchronized long hilbertKey(Envelope envelope) {
+        if (envelope.isNull() || envelope.getWidth() > hilbertMaxExtent || envelope.getHeight() > hilbertMaxExtent)
+            return HilbertCurve.NO_KEY;
+        //Never shrinks : the removed geometries only make the windows a bit larger than needed
+        hilbertWidth = Math.max(hilbertWidth, envelope.getWidth());
+        hilbertHeight = Math.max(hilbertHeight, envelope.getHeight());
+        return HilbertCurve.key((envelope.getMinX() + envelope.getMaxX()) / 2, (envelope.getMinY() + envelope.getMaxY()) / 2);
+    }
+
+    /**
+     * Returns whether the geometries are indexed under the quadtree cells that cover them.
+     * 
+     * @return true if the cell index is maintained
+     */
+    public boolean useCells() {
+        return useCells;
+    }
+
+    /**
+     * Returns the quadtree levels that hold at least one cell.
+     * 
+     * @return the levels, as a bit mask
+     */
+    public synchronized int getCellLevels() {
+        return cellLevels;
+    }
+
+    protected synchronized void addCellLevel(int level) {
+        cellLevels |= 1 << level;
+    }
+
+    /**
+     * Returns the window in which the centres of the candidate geometries for a spatial search lie.
+     * 
+     * @param envelope the EPSG:4326 envelope of the searched geometry
+     * @param spatialOp the spatial operator
+     * @return the window
+     */
+    public synchronized Envelope getHilbertWindow(Envelope envelope, int spatialOp) {
+        //The candidates' envelopes are equal to, or within, the searched one
+        if (spatialOp == SpatialOperator.EQUALS || spatialOp == SpatialOperator.WITHIN)
+            return new Envelope(envelope);
+        Envelope window = new Envelope(envelope);
+        window.expandBy(hilbertWidth / 2, hilbertHeight / 2);
+        return window;
     }
 
     @Override
@@ -109,15 +541,23 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
 
     @Override
     public void close() throws DBException {
-        Iterator<AbstractGMLJDBCIndexWorker> i = workers.values().iterator();
-        while (i.hasNext()) {
-            AbstractGMLJDBCIndexWorker worker = i.next();
+        for (AbstractGMLJDBCIndexWorker worker : getWorkers()) {
             //Flush any pending stuff 
             worker.flush();
             //Reset state
             worker.setDocument(null, ReindexMode.UNKNOWN);
         }
         shutdownDatabase();
+        synchronized (this) {
+            if (refinementPool != null) {
+                refinementPool.shutdown();
+                refinementPool = null;
+            }
+            if (ingestPool != null) {
+                ingestPool.shutdown();
+                ingestPool = null;
+            }
+        }
     }
 
     //Seems to never be used
@@ -136,9 +576,7 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
 
     @Override
     public void remove() throws DBException {
-        Iterator<AbstractGMLJDBCIndexWorker> i = workers.values().iterator();
-        while (i.hasNext()) {
-            AbstractGMLJDBCIndexWorker worker = i.next();
+        for (AbstractGMLJDBCIndexWorker worker : getWorkers()) {
             //Flush any pending stuff
             worker.flush();
             //Reset state
@@ -157,6 +595,13 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
     @Override
     public abstract IndexWorker getWorker(DBBroker broker);
 
+    /**
+     * Returns a new worker, which isn't registered for the broker.
+     * 
+     * @param broker the broker of the worker, if any
+     */
+    protected abstract AbstractGMLJDBCIndexWorker createWorker(DBBroker broker);
+
     /**
      * Checks if the JDBC database that contains the indexed spatial data is available an reachable.
      * Creates it if necessary.
@@ -188,21 +633,104 @@ public abstract class AbstractGMLJDBCIndex extends AbstractIndex {
     protected abstract void removeIndexContent() throws DBException;
 
     /**
-     * Convenience method that can be used by the IndexWorker to acquire a connection 
-     * to the JDBC database that contains the indexed spatial data.
+     * Convenience method that can be used by the IndexWorker to acquire the connection 
+     * used to update the JDBC database that contains the indexed spatial data.
      * 
      * @param broker the broker that will use th connection
      * @return the connection
      */
     protected abstract Connection acquireConnection(DBBroker broker) throws SQLException;
 
+    /**
+     * Convenience method that can be used by the IndexWorker to acquire a read-only connection 
+     * to the JDBC database that contains the indexed spatial data.
+     * 
+     * @param broker the broker that will use th connection
+     * @return the connection
+     */
+    protected abstract Connection acquireReadConnection(DBBroker broker) throws SQLException;
+
     /**
      * Convenience method that can be used by the IndexWorker to release a connection 
      * to the JDBC database that contains the indexed spatial data. This connection should have been
      * previously acquired by {@link org.exist.indexing.geospatial.AbstractGMLJDBCIndex#acquireConnection(DBBroker)} 
+     * or {@link org.exist.indexing.geospatial.AbstractGMLJDBCIndex#acquireReadConnection(DBBroker)} 
      * 
-     * @param broker the broker that will use th connection
+     * @param broker the broker that used the connection
+     * @param conn the connection
+     * 
+     */
+    protected abstract void releaseConnection(DBBroker broker, Connection conn) throws SQLException;
+
+    /**
+     * Returns the row-count statistics of the table that contains the indexed spatial data, 
+     * computing them with the given connection if they are missing or stale.
      * 
+     * @param conn the connection
+     * @return the statistics
+     */
+    public abstract TableStatistics getTableStatistics(Connection conn) throws SQLException;
+
+    /**
+     * Records that some rows of the spatial table have been inserted or deleted.
+     * The statistics are computed again once enough of them have changed.
+     * 
+     * @param rows the number of rows
+     */
+    public void recordChanges(int rows) {
+        changesSinceStatistics.addAndGet(rows);
+    }
+
+    /**
+     * The row-count statistics of the spatial table.
      */
-    protected abstract void releaseConnection(DBBroker broker) throws SQLException;
+    public static class TableStatistics {
+
+        private final long rowCount;
+        private final long documentCount;
+        //The EPSG:4326 extent of the geometries, null if there are none
+        private final Envelope extent;
+
+        public TableStatistics(long rowCount, long documentCount, Envelope extent) {
+            this.rowCount = rowCount;
+            this.documentCount = documentCount;
+            this.extent = extent;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public long getDocumentCount() {
+            return documentCount;
+        }
+
+        /**
+         * Estimates how many rows the given number of documents have.
+         */
+        public double estimateDocumentRows(int documents) {
+            if (documentCount == 0)
+                return 0;
+            return (double)rowCount * Math.min(documents, documentCount) / documentCount;
+        }
+
+        /**
+         * Estimates how many rows have an envelope that intersects the given window,
+         * assuming that the geometries are evenly spread over the extent of the table.
+         */
+        public double estimateWindowRows(Envelope EPSG4326_window) {
+            if (extent == null || !extent.intersects(EPSG4326_window))
+                return 0;
+            double area = extent.getWidth() * extent.getHeight();
+            if (area == 0)
+                return rowCount;
+            Envelope overlap = extent.intersection(EPSG4326_window);
+            return rowCount * overlap.getWidth() * overlap.getHeight() / area;
+        }
+
+        @Override
+        public String toString() {
+            return rowCount + " rows, " + documentCount + " documents, extent " + extent;
+        }
+    }
 }
@@ -23,7 +23,10 @@
  */
 package org.exist.indexing.geospatial;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.io.WKTReader;
@@ -41,10 +44,13 @@ import org.exist.indexing.IndexWorker;
 import org.exist.indexing.MatchListener;
 import org.exist.indexing.StreamListener;
 import org.exist.indexing.StreamListener.ReindexMode;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
 import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
 import org.exist.storage.IndexSpec;
 import org.exist.storage.NodePath;
+import org.exist.storage.dom.INodeIterator;
 import org.exist.storage.txn.Txn;
 import org.exist.util.Base64Decoder;
 import org.exist.util.Base64Encoder;
@@ -62,11 +68,7 @@ import org.geotools.gml.GMLFilterDocument;
 import org.geotools.gml.GMLFilterGeometry;
 import org.geotools.gml.GMLHandlerJTS;
 import org.geotools.gml.producer.GeometryTransformerWrapper;
-import org.geotools.referencing.CRS;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.OperationNotFoundException;
 import org.opengis.referencing.operation.TransformException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -86,10 +88,21 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
 
@@ -102,6 +115,51 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     
     private static final Logger LOG = LogManager.getLogger(AbstractGMLJDBCIndexWorker.class);
 
+    //How many points of each edge of an envelope are transformed
+    private final static int ENVELOPE_EDGE_POINTS = 16;
+
+    //The insertion of a row in the spatial table
+    protected final static String GEOMETRY_INSERT = "INSERT INTO " + GMLHSQLIndex.TABLE_NAME + "(" +
+            /*1*/ "DOC_ID, " +
+            /*2*/ "NODE_ID_UNITS, " +
+            /*3*/ "NODE_ID, " +
+            /*4*/ "GEOMETRY_TYPE, " +
+            /*5*/ "SRS_NAME, " +
+            /*6*/ "WKT, " +
+            /*7*/ "WKB, " +
+            /*8*/ "MINX, " +
+            /*9*/ "MAXX, " +
+            /*10*/ "MINY, " +
+            /*11*/ "MAXY, " +
+            /*12*/ "CENTROID_X, " +
+            /*13*/ "CENTROID_Y, " +
+            /*14*/ "AREA, " +
+            //Boundary ?
+            /*15*/ "EPSG4326_WKT, " +
+            /*16*/ "EPSG4326_WKB, " +
+            /*17*/ "EPSG4326_MINX, " +
+            /*18*/ "EPSG4326_MAXX, " +
+            /*19*/ "EPSG4326_MINY, " +
+            /*20*/ "EPSG4326_MAXY, " +
+            /*21*/ "EPSG4326_CENTROID_X, " +
+            /*22*/ "EPSG4326_CENTROID_Y, " +
+            /*23*/ "EPSG4326_AREA," +
+            //Boundary ?
+            /*24*/ "IS_CLOSED, " +
+            /*25*/ "IS_SIMPLE, " +
+            /*26*/ "IS_VALID, " +
+            /*27*/ "ROW_ID, " +
+            /*28*/ "HILBERT_KEY, " +
+            /*29*/ "COLLECTION_ID" +
+            ") VALUES (" +
+                "?, ?, ?, ?, ?, " +
+                "?, ?, ?, ?, ?, " +
+                "?, ?, ?, ?, ?, " +
+                "?, ?, ?, ?, ?, " +
+                "?, ?, ?, ?, ?, " +
+                "?, ?, ?, ?"
+            + ")";
+
     protected IndexController controller;
     protected AbstractGMLJDBCIndex index;
     protected DBBroker broker;
@@ -110,23 +168,36 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     private boolean isDocumentGMLAware = false;
     protected Map<NodeId, SRSGeometry> geometries = new TreeMap<NodeId, SRSGeometry>();
     NodeId currentNodeId = null;
+    //The nodes to drop, gathered while the document is streamed in REMOVE_SOME_NODES mode
+    protected Set<NodeId> removedNodes = new TreeSet<NodeId>();
     Geometry streamedGeometry = null;
     boolean documentDeleted = false;
     int flushAfter = -1;
+    int cellDepth = GMLIndexConfig.DEFAULT_CELL_DEPTH;
     protected GMLHandlerJTS geometryHandler = new GeometryHandler(); 
     protected GMLFilterGeometry geometryFilter = new GMLFilterGeometry(geometryHandler); 
     protected GMLFilterDocument geometryDocument = new GMLFilterDocument(geometryFilter);
     protected GMLStreamListener gmlStreamListener = new GMLStreamListener();
-    protected TreeMap<String, MathTransform> transformations = new TreeMap<String, MathTransform>();
-    protected boolean useLenientMode = false;
     protected GeometryCoordinateSequenceTransformer coordinateTransformer = new GeometryCoordinateSequenceTransformer();
     protected GeometryTransformerWrapper gmlTransformer = new GeometryTransformerWrapper();
     protected WKBWriter wkbWriter = new WKBWriter();
     protected WKBReader wkbReader = new WKBReader();
     protected WKTWriter wktWriter = new WKTWriter();
     protected WKTReader wktReader = new WKTReader();
+    protected GeometryFactory geometryFactory = new GeometryFactory();
     protected Base64Encoder base64Encoder = new Base64Encoder();
     protected Base64Decoder base64Decoder = new Base64Decoder();
+    //The changes to the R-tree and the envelope store are only applied once the JDBC transaction is committed
+    private List<SpatialRTree.Entry> filterInsertions = new ArrayList<SpatialRTree.Entry>();
+    private List<Long> filterRemovals = new ArrayList<Long>();
+    //The rows queued for the background indexing, and discarded from the queue, by the current transaction
+    private int queuedRows = 0;
+    private long lastQueuedSequence = 0;
+    private int discardedRows = 0;
+    //Bounds how many geometries of the stored document are being computed on the ingest pool
+    private Semaphore ingestPermits = null;
+    //The documents of the collection reindexed in bulk by this worker that have not been stored again yet
+    private Set<Integer> bulkDocuments = new HashSet<Integer>();
 
     public AbstractGMLJDBCIndexWorker(AbstractGMLJDBCIndex index, DBBroker broker) {
         this.index = index;
@@ -167,14 +238,17 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     public void setDocument(DocumentImpl document) {
         isDocumentGMLAware = false;
         documentDeleted= false;
+        cellDepth = GMLIndexConfig.DEFAULT_CELL_DEPTH;
         if (document != null) {
             IndexSpec idxConf = document.getCollection().getIndexConfiguration(getBroker());
             if (idxConf != null) {
                 Map collectionConfig = (Map) idxConf.getCustomIndexSpec(AbstractGMLJDBCIndex.ID);
                 if (collectionConfig != null) {
                     isDocumentGMLAware = true;
-                    if (collectionConfig.get(AbstractGMLJDBCIndex.ID) != null)
+                    if (collectionConfig.get(AbstractGMLJDBCIndex.ID) != null) {
                         flushAfter = ((GMLIndexConfig)collectionConfig.get(AbstractGMLJDBCIndex.ID)).getFlushAfter();
+                        cellDepth = ((GMLIndexConfig)collectionConfig.get(AbstractGMLJDBCIndex.ID)).getCellDepth();
+                    }
                 }
             }
         }
@@ -251,13 +325,21 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         Connection conn = null;
         try {
             conn = acquireConnection();
+            //This broker is done with its bulk reindex
+            if (currentMode != ReindexMode.STORE && index.isBulkLoading(broker)) {
+                bulkDocuments.clear();
+                index.endBulkLoad(conn);
+            }
             conn.setAutoCommit(false);
             switch (currentMode) {
                 case STORE :
-                    saveDocumentNodes(conn);
+                    if (index.isAsyncIndexing())
+                        queueDocumentNodes(conn);
+                    else
+                        saveDocumentNodes(conn);
                     break;
                 case REMOVE_SOME_NODES :
-                    dropDocumentNode(conn);
+                    dropDocumentNodes(conn);
                     break;
                 case REMOVE_ALL_NODES:
                     removeDocument(conn);
@@ -265,8 +347,18 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
                     break;
             }
             conn.commit();
+            applyFilterChanges();
+            applyQueueChanges(currentDoc.getDocId());
+            if (index.getGeometryCache() != null)
+                index.getGeometryCache().invalidateDocument(currentDoc.getDocId());
+            //The last document of the collection reindexed in bulk has been stored again
+            if (currentMode == ReindexMode.STORE && bulkDocuments.remove(Integer.valueOf(currentDoc.getDocId())) &&
+                    bulkDocuments.isEmpty() && index.isBulkLoading(broker))
+                index.endBulkLoad(conn);
         } catch (SQLException e) {
             LOG.error("Document: " + currentDoc + " NodeID: " + currentNodeId, e);
+            discardFilterChanges();
+            discardQueueChanges();
             try {
                 if (conn != null)
                     conn.rollback();
@@ -290,45 +382,12 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         if (geometries.size() == 0)
             return;
 
-        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + GMLHSQLIndex.TABLE_NAME + "(" +
-                /*1*/ "DOCUMENT_URI, " +
-                /*2*/ "NODE_ID_UNITS, " +
-                /*3*/ "NODE_ID, " +
-                /*4*/ "GEOMETRY_TYPE, " +
-                /*5*/ "SRS_NAME, " +
-                /*6*/ "WKT, " +
-                /*7*/ "WKB, " +
-                /*8*/ "MINX, " +
-                /*9*/ "MAXX, " +
-                /*10*/ "MINY, " +
-                /*11*/ "MAXY, " +
-                /*12*/ "CENTROID_X, " +
-                /*13*/ "CENTROID_Y, " +
-                /*14*/ "AREA, " +
-                //Boundary ?
-                /*15*/ "EPSG4326_WKT, " +
-                /*16*/ "EPSG4326_WKB, " +
-                /*17*/ "EPSG4326_MINX, " +
-                /*18*/ "EPSG4326_MAXX, " +
-                /*19*/ "EPSG4326_MINY, " +
-                /*20*/ "EPSG4326_MAXY, " +
-                /*21*/ "EPSG4326_CENTROID_X, " +
-                /*22*/ "EPSG4326_CENTROID_Y, " +
-                /*23*/ "EPSG4326_AREA," +
-                //Boundary ?
-                /*24*/ "IS_CLOSED, " +
-                /*25*/ "IS_SIMPLE, " +
-                /*26*/ "IS_VALID" +
-                ") VALUES (" +
-                    "?, ?, ?, ?, ?, " +
-                    "?, ?, ?, ?, ?, " +
-                    "?, ?, ?, ?, ?, " +
-                    "?, ?, ?, ?, ?, " +
-                    "?, ?, ?, ?, ?, " +
-                    "?"
-                + ")"
-            );
+        PreparedStatement ps = prepareStatement(conn, GEOMETRY_INSERT);
 
+        //The rows are sent to the database by batches
+        int batchSize = index.getBatchSize();
+        int batched = 0;
+        boolean executed = false;
         try {
             NodeId nodeId = null;
             SRSGeometry srsGeometry = null;
@@ -337,34 +396,346 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
                 srsGeometry = entry.getValue();
                 
                 try {
-                    saveGeometryNode(srsGeometry.getGeometry(), srsGeometry.getSRSName(), 
-                            currentDoc, nodeId, ps);
+                    //Computed on the ingest pool while the document was streamed, if any
+                    if (srsGeometry.getRow() != null) {
+                        if (saveGeometryRow(getRow(srsGeometry.getRow()), 
+                                currentDoc.getDocId(), currentDoc.getCollection().getId(), nodeId, ps))
+                            batched++;
+                    } else if (saveGeometryNode(srsGeometry.getGeometry(), srsGeometry.getSRSName(), 
+                            currentDoc.getDocId(), currentDoc.getCollection().getId(), nodeId, ps))
+                        batched++;
                 } finally {
                     //Help the garbage collector
                     srsGeometry = null;
                 }
+                if (batched >= batchSize) {
+                    executeBatch(ps);
+                    batched = 0;
+                }
             }
+            if (batched > 0)
+                executeBatch(ps);
+            executed = true;
         } finally {
             geometries.clear();
-            if (ps != null) {
-            	ps.close();
-            	ps = null;
+            //The statements are cached : don't leave a pending batch for the next flush
+            if (!executed)
+                clearBatch(ps);
+        }
+    }
+
+    /**
+     * Starts computing the row of a streamed geometry on the ingest pool, if any.
+     * The streaming thread blocks while too many geometries are being computed.
+     */
+    private void computeRow(SRSGeometry srsGeometry) {
+        ForkJoinPool pool = index.getIngestPool();
+        //The queued geometries are computed by the background indexing
+        if (pool == null || index.isAsyncIndexing())
+            return;
+        if (ingestPermits == null)
+            ingestPermits = new Semaphore(index.getIngestQueueSize());
+        final Semaphore permits = ingestPermits;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            //Will be computed when flushed
+            Thread.currentThread().interrupt();
+            return;
+        }
+        final Geometry geometry = srsGeometry.getGeometry();
+        final String srsName = srsGeometry.getSRSName();
+        final TransformationCache cache = index.getTransformationCache();
+        try {
+            srsGeometry.setRow(pool.submit(new Callable<GeometryRow>() {
+                @Override
+                public GeometryRow call() throws SpatialIndexException {
+                    try {
+                        //Transformers and writers aren't thread-safe
+                        return new GeometryRow(geometry, srsName, cache,
+                            new GeometryCoordinateSequenceTransformer(), new WKTWriter(), new WKBWriter());
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            //The pool is shut down : will be computed when flushed
+            permits.release();
+        }
+    }
+
+    /**
+     * Waits for a row computed on the ingest pool.
+     */
+    private GeometryRow getRow(Future<GeometryRow> row) throws SQLException {
+        try {
+            return row.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SQLException ee = new SQLException("Interrupted while computing a geometry");
+            ee.initCause(e);
+            throw ee;
+        } catch (ExecutionException e) {
+            //Transforms the exception into an SQLException.
+            SQLException ee = new SQLException(e.getCause().getMessage());
+            ee.initCause(e.getCause());
+            throw ee;
+        }
+    }
+
+    /**
+     * Queues the geometries of the document for the background indexing. They are only
+     * encoded as they have been read : the transformation and the other encodings are left
+     * to the background thread.
+     */
+    private void queueDocumentNodes(Connection conn) throws SQLException {
+        if (geometries.size() == 0)
+            return;
+        IndexingQueue queue = index.getIndexingQueue();
+        PreparedStatement ps = prepareStatement(conn, "INSERT INTO " + GMLHSQLIndex.QUEUE_TABLE_NAME + "(" +
+                /*1*/ "SEQ, " +
+                /*2*/ "DOC_ID, " +
+                /*3*/ "COLLECTION_ID, " +
+                /*4*/ "NODE_ID_UNITS, " +
+                /*5*/ "NODE_ID, " +
+                /*6*/ "SRS_NAME, " +
+                /*7*/ "WKB" +
+                ") VALUES (?, ?, ?, ?, ?, ?, ?)"
+            );
+        int batchSize = index.getBatchSize();
+        int batched = 0;
+        boolean executed = false;
+        try {
+            for (Map.Entry<NodeId, SRSGeometry> entry : geometries.entrySet()) {
+                NodeId nodeId = entry.getKey();
+                long sequence = queue.nextSequence();
+                /*SEQ*/ ps.setLong(1, sequence);
+                /*DOC_ID*/ ps.setInt(2, currentDoc.getDocId());
+                /*COLLECTION_ID*/ ps.setInt(3, currentDoc.getCollection().getId());
+                /*NODE_ID_UNITS*/ ps.setInt(4, nodeId.units());
+                byte[] bytes = new byte[nodeId.size()];
+                nodeId.serialize(bytes, 0);
+                /*NODE_ID*/ ps.setBytes(5, bytes);
+                /*SRS_NAME*/ ps.setString(6, entry.getValue().getSRSName());
+                /*WKB*/ ps.setBytes(7, wkbWriter.write(entry.getValue().getGeometry()));
+                ps.addBatch();
+                queuedRows++;
+                lastQueuedSequence = sequence;
+                if (++batched >= batchSize) {
+                    ps.executeBatch();
+                    batched = 0;
+                }
             }
+            if (batched > 0)
+                ps.executeBatch();
+            executed = true;
+        } finally {
+            geometries.clear();
+            //The statements are cached : don't leave a pending batch for the next flush
+            if (!executed)
+                ps.clearBatch();
+        }
+    }
+
+    /**
+     * Indexes the first queued rows, and removes them from the queue, in a single transaction.
+     * Called by the thread of the queue, on a worker without broker.
+     * 
+     * @param queue the queue to notify once the transaction is committed
+     * @param maxRows how many rows to index, at most
+     * @throws SQLException if the transaction failed : the rows stay in the queue
+     */
+    public void indexQueuedRows(IndexingQueue queue, int maxRows) throws SQLException {
+        Connection conn = acquireConnection();
+        try {
+            conn.setAutoCommit(false);
+            IndexingQueue.Batch batch = saveQueuedNodes(conn, maxRows);
+            conn.commit();
+            applyFilterChanges();
+            if (index.getGeometryCache() != null) {
+                for (Integer docId : batch.docIds) {
+                    index.getGeometryCache().invalidateDocument(docId.intValue());
+                }
+            }
+            queue.indexed(batch.rows, batch.lastSequence, batch.rows < maxRows);
+        } catch (SQLException e) {
+            discardFilterChanges();
+            discardQueueChanges();
+            try {
+                conn.rollback();
+            } catch (SQLException ee) {
+                LOG.error(ee);
+            }
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } finally {
+                releaseConnection(conn);
+            }
+        }
+    }
+
+    /**
+     * Streams a stored document and computes the rows of its geometries, without writing them.
+     * Called by the threads of a parallel reindex, on a worker of their own that isn't chained
+     * to the listeners of the other indexes.
+     *
+     * @param doc the document
+     * @return the rows, in node order ; the geometries that can't be transformed are skipped
+     * @throws IOException if the nodes of the document can't be read
+     */
+    public Map<NodeId, GeometryRow> computeDocumentRows(DocumentImpl doc) throws IOException {
+        Map<NodeId, GeometryRow> rows = new TreeMap<NodeId, GeometryRow>();
+        setDocument(doc, ReindexMode.STORE);
+        try {
+            if (currentDoc == null)
+                //Not concerned
+                return rows;
+            NodeList children = doc.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                IStoredNode node = (IStoredNode) children.item(i);
+                if (node.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+                INodeIterator iterator = getBroker().getNodeIterator(node);
+                try {
+                    streamNode(iterator, iterator.next(), new NodePath());
+                } finally {
+                    iterator.close();
+                }
+            }
+            for (Map.Entry<NodeId, SRSGeometry> entry : geometries.entrySet()) {
+                SRSGeometry srsGeometry = entry.getValue();
+                try {
+                    //Computed on the ingest pool while the document was streamed, if any
+                    if (srsGeometry.getRow() != null)
+                        rows.put(entry.getKey(), getRow(srsGeometry.getRow()));
+                    else
+                        rows.put(entry.getKey(), new GeometryRow(srsGeometry.getGeometry(), srsGeometry.getSRSName(),
+                            index.getTransformationCache(), coordinateTransformer, wktWriter, wkbWriter));
+                } catch (SQLException e) {
+                    LOG.error("Unable to index geometry for node: " + entry.getKey() + " of document " + doc.getURI(), e);
+                } catch (SpatialIndexException e) {
+                    LOG.error("Unable to index geometry for node: " + entry.getKey() + " of document " + doc.getURI(), e);
+                }
+            }
+            return rows;
+        } finally {
+            geometries.clear();
+            setDocument(null, ReindexMode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Feeds the listener of the worker with a stored node and its descendants,
+     * read in document order from the iterator.
+     */
+    private void streamNode(INodeIterator iterator, IStoredNode node, NodePath currentPath) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE :
+                ElementImpl element = (ElementImpl) node;
+                currentPath.addComponent(element.getQName());
+                gmlStreamListener.startElement(null, element, currentPath);
+                //The attributes come first
+                int childCount = element.getChildCount();
+                for (int i = 0; i < childCount; i++) {
+                    streamNode(iterator, iterator.next(), currentPath);
+                }
+                gmlStreamListener.endElement(null, element, currentPath);
+                currentPath.removeLastComponent();
+                break;
+            case Node.ATTRIBUTE_NODE :
+                gmlStreamListener.attribute(null, (AttrImpl) node, currentPath);
+                break;
+            case Node.TEXT_NODE :
+            case Node.CDATA_SECTION_NODE :
+                gmlStreamListener.characters(null, (AbstractCharacterData) node, currentPath);
+                break;
         }
     }
 
-    private void dropDocumentNode(Connection conn) throws SQLException {
-        if (currentNodeId == null)
+    /**
+     * Inserts the rows computed for some documents in place of their current ones, in a single transaction.
+     * Called by the writer of a parallel reindex, which holds the read locks of the documents.
+     *
+     * @param documents the rows of each document
+     * @return how many rows have been inserted
+     * @throws SQLException if the transaction failed
+     */
+    public int saveDocumentRows(Map<DocumentImpl, Map<NodeId, GeometryRow>> documents) throws SQLException {
+        Connection conn = acquireConnection();
+        int rows = 0;
+        try {
+            conn.setAutoCommit(false);
+            PreparedStatement ps = prepareStatement(conn, GEOMETRY_INSERT);
+            int batchSize = index.getBatchSize();
+            int batched = 0;
+            boolean executed = false;
+            try {
+                for (Map.Entry<DocumentImpl, Map<NodeId, GeometryRow>> document : documents.entrySet()) {
+                    DocumentImpl doc = document.getKey();
+                    //In place of its current rows, in the same transaction
+                    removeDocument(doc, conn);
+                    for (Map.Entry<NodeId, GeometryRow> entry : document.getValue().entrySet()) {
+                        if (saveGeometryRow(entry.getValue(), doc.getDocId(), doc.getCollection().getId(), entry.getKey(), ps)) {
+                            batched++;
+                            rows++;
+                        }
+                        if (batched >= batchSize) {
+                            executeBatch(ps);
+                            batched = 0;
+                        }
+                    }
+                }
+                if (batched > 0)
+                    executeBatch(ps);
+                executed = true;
+            } finally {
+                //The statements are cached : don't leave a pending batch for the next transaction
+                if (!executed)
+                    clearBatch(ps);
+            }
+            conn.commit();
+            applyFilterChanges();
+            applyQueueChanges(-1);
+            for (DocumentImpl doc : documents.keySet()) {
+                bulkDocuments.remove(Integer.valueOf(doc.getDocId()));
+                if (index.getGeometryCache() != null)
+                    index.getGeometryCache().invalidateDocument(doc.getDocId());
+            }
+            return rows;
+        } catch (SQLException e) {
+            discardFilterChanges();
+            discardQueueChanges();
+            try {
+                conn.rollback();
+            } catch (SQLException ee) {
+                LOG.error(ee);
+            }
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } finally {
+                releaseConnection(conn);
+            }
+        }
+    }
+
+    private void dropDocumentNodes(Connection conn) throws SQLException {
+        if (removedNodes.isEmpty())
             return;
         try {
-            boolean removed = removeDocumentNode(currentDoc, currentNodeId, conn);
-            if (!removed)
-                LOG.error("No data dropped for node " + currentNodeId.toString() + " from GML index");
+            int nodeCount = removeDocumentNodes(currentDoc, removedNodes, conn);
+            if (nodeCount == 0)
+                LOG.error("No data dropped for " + removedNodes.size() + " nodes of document " + currentDoc.getURI() + " from GML index");
             else {
                 if (LOG.isDebugEnabled())
-                    LOG.debug("Dropped data for node " + currentNodeId.toString() + " from GML index");
+                    LOG.debug("Dropped " + nodeCount + " nodes of document " + currentDoc.getURI() + " from GML index");
             }
         } finally {
+            removedNodes.clear();
             currentNodeId = null;
         }
     }
@@ -387,32 +758,105 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         if (!isCollectionGMLAware)
             return;
 
+        //The rows are removed by document : eXist notifies the index before it removes
+        //the documents of the collection, and moves a document by reindexing it
+        int[] docIds = getDocumentIds(collection, broker);
+        if (docIds == null)
+            return;
         Connection conn = null;
         try {
             conn = acquireConnection();
+            //The whole collection is about to be stored again : the bulk load ends with its last document
+            if (reindex && docIds.length > 0) {
+                index.startBulkLoad(this.broker, conn);
+                if (index.isBulkLoading(this.broker)) {
+                    for (int i = 0; i < docIds.length; i++) {
+                        bulkDocuments.add(Integer.valueOf(docIds[i]));
+                    }
+                }
+            } else if (index.isBulkLoading(this.broker)) {
+                bulkDocuments.clear();
+                index.endBulkLoad(conn);
+            }
             if (LOG.isDebugEnabled())
                 LOG.debug("Dropping GML index for collection " + collection.getURI());
-            int nodeCount = removeCollection(collection, conn);
+            int nodeCount = removeCollection(collection, docIds, conn);
+            applyFilterChanges();
+            applyQueueChanges(-1);
+            if (index.getGeometryCache() != null) {
+                for (int i = 0; i < docIds.length; i++) {
+                    index.getGeometryCache().invalidateDocument(docIds[i]);
+                }
+            }
             if (LOG.isDebugEnabled())
                 LOG.debug("Dropped " + nodeCount + " nodes from GML index");
         } catch (SQLException e) {
-            LOG.error(e);
-        } finally {
+            LOG.error("Collection: " + collection.getURI(), e);
+            discardFilterChanges();
+            discardQueueChanges();
             try {
                 if (conn != null)
+                    conn.rollback();
+            } catch (SQLException ee) {
+                LOG.error(ee);
+            }
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
                     releaseConnection(conn);
+                }
             } catch (SQLException e) {
                 LOG.error(e);
             }
         }
     }
 
+    /**
+     * Returns the IDs of the XML documents of a collection, not of its sub-collections.
+     * The caller holds the collection's lock.
+     *
+     * @return the IDs, or null if the broker can't read the collection
+     */
+    private static int[] getDocumentIds(Collection collection, DBBroker broker) {
+        List<Integer> docIds = new ArrayList<Integer>();
+        try {
+            for (Iterator<DocumentImpl> i = collection.iteratorNoLock(broker); i.hasNext(); ) {
+                DocumentImpl doc = i.next();
+                if (doc.getResourceType() == DocumentImpl.XML_FILE)
+                    docIds.add(Integer.valueOf(doc.getDocId()));
+            }
+        } catch (PermissionDeniedException e) {
+            LOG.error("Unable to list the documents of " + collection.getURI(), e);
+            return null;
+        }
+        int[] result = new int[docIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = docIds.get(i).intValue();
+        }
+        return result;
+    }
+
     public NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp)
             throws SpatialIndexException {
+        return search(broker, contextSet, EPSG4326_geometry, spatialOp, -1);
+    }
+
+    /**
+     * Searches the nodes whose geometry matches the given one, 
+     * returning at most maxResults of them, the first ones in document order.
+     * The candidates that come after the last returned node are not refined.
+     * 
+     * @param maxResults the maximal number of returned nodes, or -1 for all of them
+     */
+    public NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, int maxResults)
+            throws SpatialIndexException {
+        if (maxResults == 0)
+            return NodeSet.EMPTY_SET;
         Connection conn = null;
         try { 
-            conn = acquireConnection();
-            return search(broker, contextSet, EPSG4326_geometry, spatialOp, conn);
+            conn = acquireReadConnection();
+            return search(broker, contextSet, EPSG4326_geometry, spatialOp, maxResults, conn);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
         } finally {
@@ -426,12 +870,161 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
+    /**
+     * Joins two sets of nodes on their geometries.
+     * 
+     * @param left the nodes of the left side
+     * @param right the nodes of the right side
+     * @param spatialOp the spatial operator between a left geometry and a right one, except DISJOINT
+     * @return the matching pairs of left and right nodes, in document order of the left node, then of the right one
+     */
+    public List<NodeProxy[]> join(DBBroker broker, NodeSet left, NodeSet right, int spatialOp)
+            throws SpatialIndexException {
+        Connection conn = null;
+        try { 
+            conn = acquireReadConnection();
+            return join(broker, left, right, spatialOp, conn);
+        } catch (SQLException e) {
+            throw new SpatialIndexException(e);
+        } finally {
+            try {
+                if (conn != null)
+                    releaseConnection(conn);
+            } catch (SQLException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    /**
+     * Searches the nodes whose geometry's envelope intersects, or is within, the given envelope.
+     * Only the envelopes are compared : the geometries are neither decoded nor refined.
+     * 
+     * @param contextSet the nodes to search, or null for all the indexed nodes
+     * @param EPSG4326_envelope the envelope
+     * @param spatialOp SpatialOperator.INTERSECTS or SpatialOperator.WITHIN
+     * @return the nodes, in document order
+     */
+    public NodeSet bboxSearch(DBBroker broker, NodeSet contextSet, Envelope EPSG4326_envelope, int spatialOp)
+            throws SpatialIndexException {
+        if (spatialOp != SpatialOperator.INTERSECTS && spatialOp != SpatialOperator.WITHIN)
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        if (EPSG4326_envelope.isNull())
+            return NodeSet.EMPTY_SET;
+        Connection conn = null;
+        try { 
+            conn = acquireReadConnection();
+            return bboxSearch(broker, contextSet, EPSG4326_envelope, spatialOp, conn);
+        } catch (SQLException e) {
+            throw new SpatialIndexException(e);
+        } finally {
+            try {
+                if (conn != null)
+                    releaseConnection(conn);
+            } catch (SQLException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    /**
+     * Searches the nodes whose geometry is within some geodesic distance of the given one.
+     * 
+     * @param contextSet the nodes to search, or null for all the indexed nodes
+     * @param EPSG4326_geometry the geometry
+     * @param metres the distance, in metres on the WGS84 ellipsoid
+     * @return the nodes, in document order
+     */
+    public NodeSet withinDistance(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, double metres)
+            throws SpatialIndexException {
+        if (metres < 0)
+            return NodeSet.EMPTY_SET;
+        Connection conn = null;
+        try { 
+            conn = acquireReadConnection();
+            return withinDistance(broker, contextSet, EPSG4326_geometry, metres, conn);
+        } catch (SQLException e) {
+            throw new SpatialIndexException(e);
+        } finally {
+            try {
+                if (conn != null)
+                    releaseConnection(conn);
+            } catch (SQLException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the nodes of the context whose geometry is the closest to a geometry,
+     * by increasing distance in EPSG:4326 coordinates.
+     * 
+     * @param contextSet the nodes to search, or null for all the indexed nodes
+     * @param EPSG4326_geometry the geometry
+     * @param k how many nodes to return, at most
+     * @return the nodes, the closest first, ties in document order
+     */
+    public ValueSequence nearest(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int k)
+            throws SpatialIndexException {
+        if (k <= 0)
+            return new ValueSequence();
+        Connection conn = null;
+        try { 
+            conn = acquireReadConnection();
+            return nearest(broker, contextSet, EPSG4326_geometry, k, conn);
+        } catch (SQLException e) {
+            throw new SpatialIndexException(e);
+        } finally {
+            try {
+                if (conn != null)
+                    releaseConnection(conn);
+            } catch (SQLException e) {
+                LOG.error(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the geometries queued for some documents to be indexed in the background.
+     * 
+     * @param docs the documents, or null for all of them
+     * @param timeout how long to wait at most, in milliseconds, or -1 for the default of the index
+     * @return whether the index is up to date for the documents, false if the results may be stale
+     */
+    public boolean awaitIndexing(DocumentSet docs, long timeout) {
+        IndexingQueue queue = index.getIndexingQueue();
+        if (queue == null)
+            return true;
+        if (timeout < 0)
+            timeout = index.getAsyncWaitTimeout();
+        try {
+            if (queue.await(docs, timeout))
+                return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (timeout > 0)
+            LOG.warn("The background indexing is late : " + queue + ". The results may be stale");
+        return false;
+    }
+
     public Geometry getGeometryForNode(DBBroker broker, NodeProxy p, boolean getEPSG4326) 
             throws  SpatialIndexException {
+        GeometryCache cache = index.getGeometryCache();
+        long version = 0;
+        if (cache != null) {
+            Geometry geometry = cache.get(p.getDoc().getDocId(), p.getNodeId(), getEPSG4326);
+            if (geometry != null)
+                return geometry;
+            version = cache.getVersion(p.getDoc().getDocId());
+        }
         Connection conn = null;
         try {
-            conn = acquireConnection();
-            return getGeometryForNode(broker, p, getEPSG4326, conn);
+            conn = acquireReadConnection();
+            Geometry geometry = getGeometryForNode(broker, p, getEPSG4326, conn);
+            if (cache != null && geometry != null)
+                cache.put(p.getDoc().getDocId(), p.getNodeId(), getEPSG4326, geometry, version);
+            return geometry;
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
         } finally {
@@ -449,7 +1042,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
             throws SpatialIndexException {
         Connection conn = null;
         try {
-            conn = acquireConnection();
+            conn = acquireReadConnection();
             return getGeometriesForNodes(broker, contextSet, getEPSG4326, conn);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
@@ -468,7 +1061,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
             throws  SpatialIndexException {
         Connection conn = null;
         try {
-            conn = acquireConnection();
+            conn = acquireReadConnection();
             return getGeometricPropertyForNode(context, p, conn, propertyName);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
@@ -489,7 +1082,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
             throws  SpatialIndexException {
         Connection conn = null;
         try {
-            conn = acquireConnection();
+            conn = acquireReadConnection();
             return getGeometricPropertyForNodes(context, contextSet, conn, propertyName);
         } catch (SQLException e) {
             throw new SpatialIndexException(e);
@@ -509,7 +1102,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     public boolean checkIndex(DBBroker broker) {
         Connection conn = null;
         try {
-            conn = acquireConnection();
+            conn = acquireReadConnection();
             return checkIndex(broker, conn);
         } catch (SQLException e) {
             LOG.error(e);
@@ -528,13 +1121,154 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
-    protected abstract boolean saveGeometryNode(Geometry geometry, String srsName, DocumentImpl doc, NodeId nodeId, PreparedStatement ps) throws SQLException;
+    /**
+     * Records that a geometry has been inserted in the spatial table.
+     * The R-tree and the envelope store, if any, will be updated once the insertion is committed.
+     * 
+     * @param rowId the row ID of the geometry
+     * @param EPSG4326_envelope the EPSG:4326 envelope of the geometry
+     * @param docId the document of the geometry
+     */
+    protected void filterInsert(long rowId, Envelope EPSG4326_envelope, int docId) {
+        if (index.hasRowIdFilters())
+            filterInsertions.add(new SpatialRTree.Entry(rowId, 
+                EPSG4326_envelope.getMinX(), EPSG4326_envelope.getMaxX(), EPSG4326_envelope.getMinY(), EPSG4326_envelope.getMaxY(), docId));
+    }
 
-    protected abstract boolean removeDocumentNode(DocumentImpl doc, NodeId nodeID, Connection conn) throws SQLException;
+    /**
+     * Records that a geometry has been inserted in the spatial table, 
+     * together with what the R-tree needs to search it without the table.
+     * 
+     * @param rowId the row ID of the geometry
+     * @param EPSG4326_envelope the EPSG:4326 envelope of the geometry
+     * @param EPSG4326_wkb the EPSG:4326 WKB of the geometry
+     * @param docId the document of the geometry
+     * @param collectionId the collection of the document
+     * @param nodeId the node of the geometry
+     */
+    protected void filterInsert(long rowId, Envelope EPSG4326_envelope, byte[] EPSG4326_wkb, int docId, int collectionId, NodeId nodeId) {
+        SpatialRTree rtree = index.getRTree();
+        if (rtree == null || !rtree.storesGeometries()) {
+            filterInsert(rowId, EPSG4326_envelope, docId);
+            return;
+        }
+        byte[] bytes = new byte[nodeId.size()];
+        nodeId.serialize(bytes, 0);
+        filterInsertions.add(new SpatialRTree.Entry(rowId, 
+            EPSG4326_envelope.getMinX(), EPSG4326_envelope.getMaxX(), EPSG4326_envelope.getMinY(), EPSG4326_envelope.getMaxY(),
+            EPSG4326_wkb, docId, collectionId, nodeId.units(), bytes));
+    }
+
+    /**
+     * Records that a geometry has been removed from the spatial table.
+     * The R-tree and the envelope store, if any, will be updated once the removal is committed.
+     * 
+     * @param rowId the row ID of the geometry
+     */
+    protected void filterRemove(long rowId) {
+        if (index.hasRowIdFilters())
+            filterRemovals.add(Long.valueOf(rowId));
+    }
+
+    private void applyFilterChanges() {
+        SpatialRTree rtree = index.getRTree();
+        EnvelopeStore envelopeStore = index.getEnvelopeStore();
+        try {
+            //Publishes a new snapshot for the readers, or packs the tree at the end of a bulk load
+            if (rtree != null && (!filterRemovals.isEmpty() || !filterInsertions.isEmpty())) {
+                if (index.isBulkLoading())
+                    index.deferFilterChanges(filterInsertions, filterRemovals);
+                else
+                    rtree.apply(filterInsertions, filterRemovals);
+            }
+            if (envelopeStore != null && (!filterRemovals.isEmpty() || !filterInsertions.isEmpty()))
+                envelopeStore.apply(filterInsertions, filterRemovals);
+        } finally {
+            discardFilterChanges();
+        }
+    }
+
+    private void discardFilterChanges() {
+        filterInsertions.clear();
+        filterRemovals.clear();
+    }
+
+    /**
+     * Records that rows have been removed from the queue of the background indexing.
+     * The queue will be notified once the removal is committed.
+     */
+    protected void queueDiscard(int rows) {
+        discardedRows += rows;
+    }
+
+    /**
+     * Notifies the queue of the rows queued and discarded by the committed transaction.
+     * 
+     * @param docId the document whose rows have been queued, if any
+     */
+    private void applyQueueChanges(int docId) {
+        IndexingQueue queue = index.getIndexingQueue();
+        try {
+            if (queue == null)
+                return;
+            if (queuedRows > 0)
+                queue.queued(docId, queuedRows, lastQueuedSequence);
+            if (discardedRows > 0)
+                queue.discarded(discardedRows);
+        } finally {
+            discardQueueChanges();
+        }
+    }
+
+    private void discardQueueChanges() {
+        queuedRows = 0;
+        lastQueuedSequence = 0;
+        discardedRows = 0;
+    }
+
+    /**
+     * Adds the row of a geometry to the batch of the given statement.
+     * 
+     * @return whether a row has been added
+     */
+    protected abstract boolean saveGeometryNode(Geometry geometry, String srsName, int docId, int collectionId, NodeId nodeId, PreparedStatement ps) throws SQLException;
+
+    /**
+     * Adds an already computed row to the batch of the given statement.
+     * 
+     * @return whether a row has been added
+     */
+    protected abstract boolean saveGeometryRow(GeometryRow row, int docId, int collectionId, NodeId nodeId, PreparedStatement ps) throws SQLException;
+
+    /**
+     * Adds the first queued rows to the spatial table and removes them from the queue.
+     * 
+     * @param maxRows how many rows to read from the queue, at most
+     * @return the rows read from the queue
+     */
+    protected abstract IndexingQueue.Batch saveQueuedNodes(Connection conn, int maxRows) throws SQLException;
+
+    /**
+     * Executes the batches of rows added by saveGeometryNode.
+     */
+    protected abstract void executeBatch(PreparedStatement ps) throws SQLException;
+
+    /**
+     * Discards the batches of rows added by saveGeometryNode.
+     */
+    protected abstract void clearBatch(PreparedStatement ps) throws SQLException;
+
+    protected abstract int removeDocumentNodes(DocumentImpl doc, Set<NodeId> nodeIds, Connection conn) throws SQLException;
 
     protected abstract int removeDocument(DocumentImpl doc, Connection conn) throws SQLException;
 
-    protected abstract int removeCollection(Collection collection, Connection conn) throws SQLException;
+    /**
+     * Removes the rows of the documents of a collection.
+     *
+     * @param collection the collection
+     * @param docIds the IDs of its documents
+     */
+    protected abstract int removeCollection(Collection collection, int[] docIds, Connection conn) throws SQLException;
 
     protected abstract Map<Geometry, String> getGeometriesForDocument(DocumentImpl doc, Connection conn) throws SQLException;
 
@@ -546,12 +1280,40 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
 
     protected abstract Geometry[] getGeometriesForNodes(DBBroker broker, NodeSet contextSet, boolean getEPSG4326, Connection conn) throws SQLException;
 
-    protected abstract NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException;
+    protected abstract NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, int maxResults, Connection conn) throws SQLException;
+
+    protected abstract List<NodeProxy[]> join(DBBroker broker, NodeSet left, NodeSet right, int spatialOp, Connection conn) throws SQLException;
+
+    protected abstract NodeSet bboxSearch(DBBroker broker, NodeSet contextSet, Envelope EPSG4326_envelope, int spatialOp, Connection conn) throws SQLException;
+
+    protected abstract NodeSet withinDistance(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, double metres, Connection conn) throws SQLException;
+
+    protected abstract ValueSequence nearest(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int k, Connection conn) throws SQLException;
 
     protected abstract boolean checkIndex(DBBroker broker, Connection conn) throws SQLException, SpatialIndexException;
 
+    /**
+     * Returns a prepared statement from the connection's cache.
+     * The statement must not be closed.
+     * 
+     * @param conn the connection
+     * @param sql the SQL of the statement. Should not embed any value, that should be a parameter instead.
+     * @return the statement
+     */
+    protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        return index.getStatementCache(conn).prepare(sql);
+    }
+
+    /**
+     * Acquires the connection used to update the spatial data.
+     */
     protected abstract Connection acquireConnection() throws SQLException;
 
+    /**
+     * Acquires a connection that is only used to read the spatial data.
+     */
+    protected abstract Connection acquireReadConnection() throws SQLException;
+
     protected abstract void releaseConnection(Connection conn) throws SQLException;
 
     public Occurrences[] scanIndex(XQueryContext context, DocumentSet docs, NodeSet contextSet, Map hints) {
@@ -559,7 +1321,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         Map<Geometry, Occurrences> occurences = new TreeMap<Geometry, Occurrences>();
         Connection conn = null;
         try {
-            conn = acquireConnection();
+            conn = acquireReadConnection();
             //Collect the (normalized) geometries for each document
             for (Iterator<DocumentImpl> iDoc = docs.getDocumentIterator(); iDoc.hasNext();) {
                 DocumentImpl doc = iDoc.next();
@@ -655,35 +1417,8 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
     }
 
     public Geometry transformGeometry(Geometry geometry, String sourceCRS, String targetCRS) throws SpatialIndexException {
-        //provisional workarounds
-        if ("osgb:BNG".equalsIgnoreCase(sourceCRS.trim()))
-            sourceCRS = "EPSG:27700";
-        if ("osgb:BNG".equalsIgnoreCase(targetCRS.trim()))
-            targetCRS = "EPSG:27700"; 
-        MathTransform transform = transformations.get(sourceCRS + "_" + targetCRS);
-        if (transform == null) {
-            try {
-                try {
-                    transform = CRS.findMathTransform(CRS.decode(sourceCRS), CRS.decode(targetCRS), useLenientMode);
-                } catch (OperationNotFoundException e) {
-                    LOG.info(e);
-                    LOG.info("Switching to lenient mode... beware of precision loss !");
-                    //Last parameter set to true ; won't bail out if it can't find the Bursa Wolf parameters
-                    //as it is the case in current gt2-epsg-wkt-2.4-M1.jar
-                    useLenientMode = true;
-                    transform = CRS.findMathTransform(CRS.decode(sourceCRS), CRS.decode(targetCRS), useLenientMode);	
-                }
-                transformations.put(sourceCRS + "_" + targetCRS, transform);
-                LOG.debug("Instantiated transformation from '" + sourceCRS + "' to '" + targetCRS + "'");
-            } catch (NoSuchAuthorityCodeException e) {
-                LOG.error(e);
-            } catch (FactoryException e) {
-                LOG.error(e);
-            }
-        }
-        if (transform == null) {
-            throw new SpatialIndexException("Unable to get a transformation from '" + sourceCRS + "' to '" + targetCRS +"'");        		           	
-        }
+        //Shared by all the workers ; the SRS aliases are normalized there
+        MathTransform transform = index.getTransformationCache().getTransformation(sourceCRS, targetCRS).getMathTransform();
         coordinateTransformer.setMathTransform(transform);
         try {
         	return coordinateTransformer.transform(geometry);
@@ -692,6 +1427,26 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
+    /**
+     * Transforms an envelope. Its edges may become curves : points along them are transformed,
+     * and the envelope of the result is returned.
+     */
+    public Envelope transformEnvelope(Envelope envelope, String sourceCRS, String targetCRS) throws SpatialIndexException {
+        Coordinate[] coordinates = new Coordinate[ENVELOPE_EDGE_POINTS * 4 + 1];
+        double width = envelope.getWidth();
+        double height = envelope.getHeight();
+        for (int i = 0; i < ENVELOPE_EDGE_POINTS; i++) {
+            double f = (double) i / ENVELOPE_EDGE_POINTS;
+            coordinates[i] = new Coordinate(envelope.getMinX() + f * width, envelope.getMinY());
+            coordinates[ENVELOPE_EDGE_POINTS + i] = new Coordinate(envelope.getMaxX(), envelope.getMinY() + f * height);
+            coordinates[ENVELOPE_EDGE_POINTS * 2 + i] = new Coordinate(envelope.getMaxX() - f * width, envelope.getMaxY());
+            coordinates[ENVELOPE_EDGE_POINTS * 3 + i] = new Coordinate(envelope.getMinX(), envelope.getMaxY() - f * height);
+        }
+        coordinates[ENVELOPE_EDGE_POINTS * 4] = coordinates[0];
+        Geometry boundary = geometryFactory.createLineString(coordinates);
+        return transformGeometry(boundary, sourceCRS, targetCRS).getEnvelopeInternal();
+    }
+
     @Override
     public QueryRewriter getQueryRewriter(XQueryContext context) {
         return null;
@@ -798,8 +1553,14 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
             try {
                 geometryDocument.endElement(element.getNamespaceURI(), element.getLocalName(), element.getQName().getStringValue());
                 //Some invalid/(yet) incomplete geometries don't have a SRS
-                if (streamedGeometry != null && currentSrsName != null) {
-                    geometries.put(currentNodeId, new SRSGeometry(currentSrsName, streamedGeometry));
+                if (currentMode == ReindexMode.REMOVE_SOME_NODES) {
+                    //Dropped later, all at once
+                    removedNodes.add(currentNodeId);
+                } else if (streamedGeometry != null && currentSrsName != null) {
+                    SRSGeometry srsGeometry = new SRSGeometry(currentSrsName, streamedGeometry);
+                    geometries.put(currentNodeId, srsGeometry);
+                    if (currentMode == ReindexMode.STORE)
+                        computeRow(srsGeometry);
                     if (flushAfter != -1 && geometries.size() >= flushAfter) {
                         //Mmmh... doesn't flush since it is currently dependant from the
                         //number of nodes in the DOM file ; would need refactorings
@@ -835,6 +1596,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
 
         private String SRSName;
         private Geometry geometry;
+        private Future<GeometryRow> row = null;
 
         public SRSGeometry(String SRSName, Geometry geometry) {
             //TODO : implement a default, eventually configurable, SRS ?
@@ -853,5 +1615,17 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         public Geometry getGeometry() {
             return geometry;
         }
+
+        public Future<GeometryRow> getRow() {
+            return row;
+        }
+
+        /**
+         * Sets the row being computed from the geometry, which isn't needed anymore.
+         */
+        public void setRow(Future<GeometryRow> row) {
+            this.row = row;
+            this.geometry = null;
+        }
     }
 }
@@ -0,0 +1,301 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * The refinement step of a spatial search : checks the exact spatial relationship
+ * between the candidates and the query geometry.
+ *
+ * Without a pool, the candidates are refined one at a time on the calling thread.
+ * With a pool, they are buffered, then decoded and refined on the pool if there are
+ * at least threshold of them, each task with its own WKB reader. The matching nodes
+ * are added to the result in the order of the candidates, once they have all been refined.
+ *
+ * When the number of results is limited, all the candidates are buffered, then sorted
+ * in document order and refined by growing chunks until enough of them match :
+ * the remaining candidates are never decoded.
+ */
+public class CandidateRefiner {
+
+    //How many candidates a task refines, at most
+    private final static int TASK_SIZE = 256;
+    //How many candidates are buffered before they are refined, at least
+    private final static int BUFFER_SIZE = 16384;
+
+    private final PreparedQueryGeometry query;
+    private final NodeSet result;
+    private final WKBReader wkbReader;
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int maxResults;
+    private NodeProxy[] nodes;
+    private byte[][] wkbs;
+    private int count = 0;
+    private int refinedInParallel = 0;
+
+    /**
+     * @param query the prepared query geometry
+     * @param result where to add the matching nodes
+     * @param wkbReader the reader of the calling thread
+     * @param pool the pool that refines the candidates in parallel, or null
+     * @param threshold from how many buffered candidates the pool is used
+     * @param maxResults the maximal number of matching nodes, in document order, or -1 for all of them
+     */
+    public CandidateRefiner(PreparedQueryGeometry query, NodeSet result, WKBReader wkbReader, ForkJoinPool pool, int threshold, int maxResults) {
+        this.query = query;
+        this.result = result;
+        this.wkbReader = wkbReader;
+        this.pool = pool;
+        this.threshold = threshold;
+        this.maxResults = maxResults;
+        if (maxResults >= 0) {
+            //Grows as needed
+            nodes = new NodeProxy[TASK_SIZE];
+            wkbs = new byte[TASK_SIZE][];
+        } else if (pool != null) {
+            int capacity = Math.max(BUFFER_SIZE, threshold);
+            nodes = new NodeProxy[capacity];
+            wkbs = new byte[capacity][];
+        }
+    }
+
+    /**
+     * Refines a candidate, now or later.
+     *
+     * @param p the node of the candidate
+     * @param EPSG4326_wkb the EPSG:4326 WKB of the candidate
+     * @throws SQLException if the WKB can't be read
+     */
+    public void add(NodeProxy p, byte[] EPSG4326_wkb) throws SQLException {
+        if (pool == null && maxResults < 0) {
+            if (matches(wkbReader, EPSG4326_wkb))
+                result.add(p);
+            return;
+        }
+        buffer(p, EPSG4326_wkb);
+        if (maxResults < 0 && count == nodes.length)
+            refineBuffered();
+    }
+
+    /**
+     * Adds a candidate that is known to match without refinement.
+     *
+     * @param p the node of the candidate
+     */
+    public void addMatch(NodeProxy p) {
+        if (maxResults < 0)
+            result.add(p);
+        else
+            //Must be ordered with the other candidates
+            buffer(p, null);
+    }
+
+    /**
+     * Refines the buffered candidates.
+     *
+     * @throws SQLException if a WKB can't be read
+     */
+    public void finish() throws SQLException {
+        if (maxResults >= 0) {
+            refineInDocumentOrder();
+            return;
+        }
+        if (count > 0)
+            refineBuffered();
+    }
+
+    /**
+     * Returns how many candidates have been refined on the pool.
+     */
+    public int getRefinedInParallel() {
+        return refinedInParallel;
+    }
+
+    private void buffer(NodeProxy p, byte[] EPSG4326_wkb) {
+        //Only the buffer of a limited search is full here
+        if (count == nodes.length) {
+            nodes = Arrays.copyOf(nodes, count * 2);
+            wkbs = Arrays.copyOf(wkbs, count * 2);
+        }
+        nodes[count] = p;
+        wkbs[count] = EPSG4326_wkb;
+        count++;
+    }
+
+    private void refineBuffered() throws SQLException {
+        try {
+            boolean[] matches = new boolean[count];
+            refine(matches, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (matches[i])
+                    result.add(nodes[i]);
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    private void refineInDocumentOrder() throws SQLException {
+        try {
+            sortInDocumentOrder();
+            boolean[] matches = new boolean[count];
+            int found = 0;
+            int from = 0;
+            //Enough candidates for the results if most of them match
+            int chunk = Math.max(TASK_SIZE, maxResults);
+            while (from < count && found < maxResults) {
+                int to = (int)Math.min(count, (long)from + chunk);
+                refine(matches, from, to);
+                for (int i = from; i < to && found < maxResults; i++) {
+                    if (matches[i]) {
+                        result.add(nodes[i]);
+                        found++;
+                    }
+                }
+                from = to;
+                chunk = chunk > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : chunk * 2;
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    private void sortInDocumentOrder() {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return nodes[i1].compareTo(nodes[i2]);
+            }
+        });
+        NodeProxy[] sortedNodes = new NodeProxy[nodes.length];
+        byte[][] sortedWkbs = new byte[wkbs.length][];
+        for (int i = 0; i < count; i++) {
+            sortedNodes[i] = nodes[order[i]];
+            sortedWkbs[i] = wkbs[order[i]];
+        }
+        nodes = sortedNodes;
+        wkbs = sortedWkbs;
+    }
+
+    /**
+     * Refines the buffered candidates between from (inclusive) and to (exclusive),
+     * on the pool if there are enough of them.
+     */
+    private void refine(boolean[] matches, int from, int to) throws SQLException {
+        if (pool == null || to - from < threshold) {
+            for (int i = from; i < to; i++) {
+                matches[i] = wkbs[i] == null || matches(wkbReader, wkbs[i]);
+            }
+            return;
+        }
+        try {
+            pool.invoke(new RefinementTask(matches, from, to));
+        } catch (RefinementException e) {
+            //Transforms the exception into an SQLException.
+            //Very unlikely to happen though...
+            SQLException ee = new SQLException(e.getCause().getMessage());
+            ee.initCause(e.getCause());
+            throw ee;
+        }
+        refinedInParallel += to - from;
+    }
+
+    private void clear() {
+        //Help the garbage collector
+        for (int i = 0; i < count; i++) {
+            nodes[i] = null;
+            wkbs[i] = null;
+        }
+        count = 0;
+    }
+
+    private boolean matches(WKBReader reader, byte[] EPSG4326_wkb) throws SQLException {
+        try {
+            return query.matches(reader.read(EPSG4326_wkb));
+        } catch (ParseException e) {
+            //Transforms the exception into an SQLException.
+            //Very unlikely to happen though...
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        }
+    }
+
+    private class RefinementTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean[] matches;
+        private final int from;
+        private final int to;
+
+        RefinementTask(boolean[] matches, int from, int to) {
+            this.matches = matches;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RefinementTask(matches, from, middle), new RefinementTask(matches, middle, to));
+                return;
+            }
+            //WKB readers aren't thread-safe
+            WKBReader reader = new WKBReader();
+            for (int i = from; i < to; i++) {
+                try {
+                    matches[i] = wkbs[i] == null || query.matches(reader.read(wkbs[i]));
+                } catch (ParseException e) {
+                    throw new RefinementException(e);
+                }
+            }
+        }
+    }
+
+    private static class RefinementException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        RefinementException(ParseException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+
+/**
+ * A query geometry that matches the candidates within some geodesic distance of it, in metres.
+ *
+ * The filter step selects the candidates whose envelope intersects one of the query envelopes widened
+ * by the distance (see {@link Geodesic#expand(Envelope, double)}) : two of them when the antimeridian is crossed.
+ * The candidates that intersect the query geometry match at once. For the other ones, the closest points
+ * of the two geometries are found in a plane where the longitudes are scaled by the cosine of the query's latitude,
+ * with the candidate shifted by a turn when it lies across the antimeridian. When the distance between these points,
+ * measured on the ellipsoid, is short enough, the candidate matches. Between points, it is exact.
+ * Otherwise, away from the query's latitude, the closest points on the ellipsoid may be other ones :
+ * a lower bound of the distance (see {@link Geodesic#minDistance(double, double, Envelope, Envelope)}) may prove it too far.
+ * When it doesn't, the candidate is split into bands of latitude and each piece is measured the same way :
+ * the candidate matches unless every piece is proven too far. No candidate within the distance is missed,
+ * but some a bit farther may match, the more so when the query spreads over a wide range of latitudes.
+ *
+ * The instances are immutable once built and may be shared by several threads.
+ */
+public class DistanceQueryGeometry extends PreparedQueryGeometry {
+
+    private final static double[] SHIFTS = { 0, 360.0, -360.0 };
+    //The height of the bands of latitude the candidates are split into, in degrees
+    private final static double BAND_HEIGHT = 1.0;
+    private final static int WITHIN = 0;
+    private final static int BEYOND = 1;
+    private final static int MAYBE_WITHIN = 2;
+
+    private final double metres;
+    private final Envelope envelope;
+    private final Envelope[] searchEnvelopes;
+    //The search envelope before it wraps around the antimeridian
+    private final Envelope unwrappedEnvelope;
+    private final double scale;
+    //The query geometry in the scaled plane
+    private final Geometry scaledGeometry;
+
+    /**
+     * @param EPSG4326_geometry the query geometry
+     * @param metres the distance
+     */
+    public DistanceQueryGeometry(Geometry EPSG4326_geometry, double metres) {
+        super(EPSG4326_geometry, SpatialOperator.INTERSECTS);
+        this.metres = metres;
+        this.envelope = EPSG4326_geometry.getEnvelopeInternal();
+        this.searchEnvelopes = Geodesic.expand(envelope, metres);
+        Envelope first = searchEnvelopes[0];
+        if (searchEnvelopes.length == 1 && first.getWidth() < 360.0)
+            this.unwrappedEnvelope = first;
+        else if (searchEnvelopes.length == 1)
+            //Around the whole globe : the candidates are met in every turn
+            this.unwrappedEnvelope = new Envelope(-540.0, 540.0, first.getMinY(), first.getMaxY());
+        else if (first.getMinX() == -180.0)
+            this.unwrappedEnvelope = new Envelope(searchEnvelopes[1].getMinX() - 360.0, first.getMaxX(), first.getMinY(), first.getMaxY());
+        else
+            this.unwrappedEnvelope = new Envelope(first.getMinX(), searchEnvelopes[1].getMaxX() + 360.0, first.getMinY(), first.getMaxY());
+        this.scale = Geodesic.getLongitudeScale(envelope);
+        this.scaledGeometry = Geodesic.scaleLongitudes(EPSG4326_geometry, scale);
+    }
+
+    public double getDistance() {
+        return metres;
+    }
+
+    /**
+     * Returns the envelopes of the filter step, which contain every point within the distance :
+     * one, or two when the antimeridian is crossed. Each one is to be searched.
+     */
+    public Envelope[] getSearchEnvelopes() {
+        return searchEnvelopes;
+    }
+
+    @Override
+    public boolean matches(Geometry candidate) {
+        if (candidate.isEmpty())
+            return false;
+        Envelope candidateEnvelope = candidate.getEnvelopeInternal();
+        boolean selected = false;
+        for (int i = 0; i < searchEnvelopes.length && !selected; i++) {
+            selected = searchEnvelopes[i].intersects(candidateEnvelope);
+        }
+        if (!selected)
+            return false;
+        //Null distance
+        if (super.matches(candidate))
+            return true;
+        for (double shift : SHIFTS) {
+            Envelope shiftedEnvelope = new Envelope(candidateEnvelope.getMinX() + shift, candidateEnvelope.getMaxX() + shift,
+                candidateEnvelope.getMinY(), candidateEnvelope.getMaxY());
+            if (!unwrappedEnvelope.intersects(shiftedEnvelope))
+                continue;
+            Geometry shifted = candidate;
+            if (shift != 0) {
+                shifted = (Geometry) candidate.clone();
+                shifted.apply(AffineTransformation.translationInstance(shift, 0));
+                shifted.geometryChanged();
+            }
+            int within = isWithin(shifted, shiftedEnvelope);
+            if (within == WITHIN)
+                return true;
+            if (within == MAYBE_WITHIN && isWithinBands(shifted, shiftedEnvelope))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Measures a candidate, on the same side of the antimeridian as the query.
+     *
+     * @return WITHIN, BEYOND or MAYBE_WITHIN when neither is proven
+     */
+    private int isWithin(Geometry candidate, Envelope candidateEnvelope) {
+        Coordinate[] closest = DistanceOp.closestPoints(scaledGeometry, Geodesic.scaleLongitudes(candidate, scale));
+        //Two points of the geometries : the distance between them is an upper bound
+        if (Geodesic.distance(closest[0].x / scale, closest[0].y, closest[1].x / scale, closest[1].y) <= metres)
+            return WITHIN;
+        //Between points, the closest ones are known
+        if (scaledGeometry.getNumPoints() == 1 && candidate.getNumPoints() == 1)
+            return BEYOND;
+        if (Geodesic.minDistance(closest[0].distance(closest[1]), scale, envelope, candidateEnvelope) > metres)
+            return BEYOND;
+        return MAYBE_WITHIN;
+    }
+
+    /**
+     * Measures the pieces of a candidate within bands of latitude, whose lower bounds are much closer
+     * to the exact distance than the one of the whole candidate.
+     * A piece that isn't proven beyond the distance matches.
+     */
+    private boolean isWithinBands(Geometry candidate, Envelope candidateEnvelope) {
+        if (candidateEnvelope.getHeight() <= BAND_HEIGHT)
+            return true;
+        for (int i = 0; i < candidate.getNumGeometries(); i++) {
+            Geometry component = candidate.getGeometryN(i);
+            Envelope componentEnvelope = component.getEnvelopeInternal();
+            for (double minY = componentEnvelope.getMinY(); minY < componentEnvelope.getMaxY(); minY += BAND_HEIGHT) {
+                Geometry band = component.getFactory().toGeometry(new Envelope(componentEnvelope.getMinX(), componentEnvelope.getMaxX(),
+                    minY, Math.min(componentEnvelope.getMaxY(), minY + BAND_HEIGHT)));
+                Geometry piece = component.intersection(band);
+                if (!piece.isEmpty() && isWithin(piece, piece.getEnvelopeInternal()) != BEYOND)
+                    return true;
+            }
+        }
+        return false;
+    }
+}
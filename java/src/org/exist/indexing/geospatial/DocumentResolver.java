@@ -0,0 +1,137 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+
+/**
+ * Resolves the documents and nodes of the rows read by a query.
+ *
+ * Each document is resolved, and its permissions checked, once per query : the rows of
+ * a document that is missing, unreadable or out of the context are then skipped by a
+ * map lookup. Consecutive rows usually belong to the same document, which is kept at hand.
+ * An instance is meant for a single query on a single thread.
+ */
+public class DocumentResolver {
+
+    private final static Logger LOG = LogManager.getLogger(DocumentResolver.class);
+
+    private final DBBroker broker;
+    private final NodeSet contextSet;
+    //null for the documents that are skipped
+    private final Map<Integer, DocumentImpl> documents = new HashMap<Integer, DocumentImpl>();
+    private int lastDocId = -1;
+    private DocumentImpl lastDoc = null;
+    private int skippedRows = 0;
+
+    /**
+     * @param broker the broker that runs the query
+     * @param contextSet the nodes the rows must belong to, or null to accept
+     *  all the nodes of the documents the broker can read
+     */
+    public DocumentResolver(DBBroker broker, NodeSet contextSet) {
+        this.broker = broker;
+        this.contextSet = contextSet;
+    }
+
+    /**
+     * Returns the document of a row.
+     *
+     * @return the document, or null if it is not in the context set or not readable by the broker
+     */
+    public DocumentImpl getDocument(int docId, int collectionId) {
+        if (docId == lastDocId)
+            return lastDoc;
+        Integer key = Integer.valueOf(docId);
+        DocumentImpl doc = documents.get(key);
+        if (doc == null && !documents.containsKey(key)) {
+            doc = resolve(docId, collectionId);
+            documents.put(key, doc);
+        }
+        lastDocId = docId;
+        lastDoc = doc;
+        return doc;
+    }
+
+    /**
+     * Returns the node of a row, provided it is readable by the broker and belongs to the context set.
+     *
+     * @return the node, or null
+     */
+    public NodeProxy getNode(int docId, int collectionId, int nodeIdUnits, byte[] nodeIdBytes) {
+        DocumentImpl doc = getDocument(docId, collectionId);
+        if (doc == null) {
+            skippedRows++;
+            return null;
+        }
+        NodeId nodeId = new DLN(nodeIdUnits, nodeIdBytes, 0);
+        NodeProxy p = new NodeProxy(doc, nodeId);
+        //Node is in the context : check if it is accurate
+        //contextSet.contains(p) would have made more sense but there is a problem with
+        //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
+        if (contextSet != null && contextSet.get(p) == null)
+            return null;
+        return p;
+    }
+
+    /**
+     * Returns how many documents have been resolved.
+     */
+    public int getResolvedDocuments() {
+        return documents.size();
+    }
+
+    /**
+     * Returns how many rows have been skipped without being decoded, because of their document.
+     */
+    public int getSkippedRows() {
+        return skippedRows;
+    }
+
+    private DocumentImpl resolve(int docId, int collectionId) {
+        //The documents of the context set are looked up by their ID in the set
+        if (contextSet != null)
+            return contextSet.getDocumentSet().getDoc(docId);
+        //contextSet == null should be used to scan the whole index.
+        //The COLLECTION_ID of a row is current : eXist reindexes a document it moves to another collection,
+        //and a moved collection keeps its ID
+        try {
+            return broker.getResourceById(collectionId, DocumentImpl.XML_FILE, docId);
+        } catch (PermissionDeniedException e) {
+            LOG.debug(e);
+            //Ignore since the broker has no right on the document
+            return null;
+        }
+    }
+}
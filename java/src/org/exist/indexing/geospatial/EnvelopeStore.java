@@ -0,0 +1,445 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Memory-mapped, column oriented store of the EPSG:4326 envelopes of the indexed geometries.
+ *
+ * The envelopes are kept in blocks of {@link #BLOCK_SIZE} entries. Each block holds 4 float
+ * columns (MINX, MAXX, MINY, MAXY), rounded outwards, and the column of the ROW_IDs.
+ * A search is a sequential scan over the columns, that stay out of the Java heap.
+ *
+ * The entries are normally appended in increasing ROW_ID order, so that a removed entry is found
+ * by a binary search over the slots. Removed entries are left in place with a NaN envelope and
+ * their ROW_ID negated (minus one), which keeps that order ; they are only reclaimed when the store is reopened.
+ *
+ * The store is only a copy of the spatial table : it is marked as clean when it is closed
+ * and must be rebuilt from the table if it wasn't.
+ */
+public class EnvelopeStore {
+
+    private final static Logger LOG = LogManager.getLogger(EnvelopeStore.class);
+
+    public final static int BLOCK_SIZE = 1024;
+
+    private final static int MAGIC = 0x47454E56; //"GENV"
+    private final static int VERSION = 2;
+    private final static int HEADER_SIZE = 64;
+    private final static int HEADER_MAGIC = 0;
+    private final static int HEADER_VERSION = 4;
+    private final static int HEADER_CLEAN = 8;
+    private final static int HEADER_COUNT = 16;
+    private final static int HEADER_LAST_ROW_ID = 24;
+
+    private final static int MINX = 0;
+    private final static int MAXX = BLOCK_SIZE * 4;
+    private final static int MINY = BLOCK_SIZE * 8;
+    private final static int MAXY = BLOCK_SIZE * 12;
+    private final static int ROW_ID = BLOCK_SIZE * 16;
+    private final static int BLOCK_BYTES = BLOCK_SIZE * 24;
+    //How many blocks are mapped at once
+    private final static int BLOCKS_PER_SEGMENT = 64;
+
+    private final static Comparator<SpatialRTree.Entry> ROW_ID_COMPARATOR = new Comparator<SpatialRTree.Entry>() {
+        public int compare(SpatialRTree.Entry e1, SpatialRTree.Entry e2) {
+            return Long.compare(e1.getRowId(), e2.getRowId());
+        }
+    };
+
+    private final Path file;
+    private FileChannel channel = null;
+    private MappedByteBuffer header = null;
+    private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    //Number of used slots, including the removed entries
+    private int count = 0;
+    private int removed = 0;
+    private long lastRowId = 0;
+    //Whether the slots are in increasing ROW_ID order
+    private boolean sorted = true;
+    private boolean dirty = false;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public EnvelopeStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the store.
+     *
+     * @param expectedLastRowId the last ROW_ID of the spatial table
+     * @return true if the store is up to date, false if it is empty and must be loaded
+     * @throws IOException
+     */
+    public boolean open(long expectedLastRowId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            count = 0;
+            removed = 0;
+            dirty = false;
+            sorted = true;
+            boolean upToDate = header.getInt(HEADER_MAGIC) == MAGIC && header.getInt(HEADER_VERSION) == VERSION &&
+                header.getInt(HEADER_CLEAN) == 1 && header.getLong(HEADER_LAST_ROW_ID) == expectedLastRowId;
+            if (!upToDate) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Envelope store " + file.toAbsolutePath().toString() + " is out of date");
+                reset();
+                lastRowId = expectedLastRowId;
+                return false;
+            }
+            count = (int)header.getLong(HEADER_COUNT);
+            lastRowId = expectedLastRowId;
+            ensureCapacity(count);
+            for (int slot = 0; slot < count; slot++) {
+                if (getRowId(slot) < 0)
+                    removed++;
+                if (slot > 0 && decode(getRowId(slot)) <= decode(getRowId(slot - 1)))
+                    sorted = false;
+            }
+            //Until it is closed properly
+            markDirty();
+            if (removed > count / 2 || !sorted) {
+                List<SpatialRTree.Entry> entries = entriesUnlocked();
+                reset();
+                append(entries);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the store to disk and marks it as clean.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel == null)
+                return;
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.putLong(HEADER_COUNT, count);
+            header.putLong(HEADER_LAST_ROW_ID, lastRowId);
+            header.putInt(HEADER_CLEAN, 1);
+            header.force();
+            dirty = false;
+            segments.clear();
+            header = null;
+            channel.close();
+            channel = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the content of the store.
+     */
+    public void load(List<SpatialRTree.Entry> entries) {
+        lock.writeLock().lock();
+        try {
+            reset();
+            append(new ArrayList<SpatialRTree.Entry>(entries));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the changes of a committed transaction.
+     *
+     * @param insertions the inserted entries
+     * @param removals the ROW_IDs of the removed entries
+     */
+    public void apply(List<SpatialRTree.Entry> insertions, List<Long> removals) {
+        lock.writeLock().lock();
+        try {
+            markDirty();
+            List<SpatialRTree.Entry> appended = new ArrayList<SpatialRTree.Entry>(insertions);
+            if (!removals.isEmpty()) {
+                long[] rowIds = new long[removals.size()];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowIds[i] = removals.get(i);
+                }
+                Arrays.sort(rowIds);
+                //A row both inserted and removed by the same changes is never stored
+                for (Iterator<SpatialRTree.Entry> i = appended.iterator(); i.hasNext(); ) {
+                    if (Arrays.binarySearch(rowIds, i.next().getRowId()) >= 0)
+                        i.remove();
+                }
+                if (sorted) {
+                    for (int i = 0; i < rowIds.length; i++) {
+                        int slot = findSlot(rowIds[i]);
+                        if (slot >= 0)
+                            remove(slot);
+                    }
+                } else {
+                    //After an out of order commit, until the store is compacted
+                    for (int slot = 0; slot < count; slot++) {
+                        long rowId = getRowId(slot);
+                        if (rowId >= 0 && Arrays.binarySearch(rowIds, rowId) >= 0)
+                            remove(slot);
+                    }
+                }
+            }
+            append(appended);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of live entries.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count - removed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the live entries, in storage order.
+     */
+    public List<SpatialRTree.Entry> entries() {
+        lock.readLock().lock();
+        try {
+            return entriesUnlocked();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Filter step : scans the envelopes.
+     *
+     * @param envelope the EPSG:4326 envelope of the searched geometry
+     * @param spatialOp the spatial operator. DISJOINT is processed as INTERSECTS.
+     * @return the sorted ROW_IDs of the candidates
+     */
+    public long[] search(Envelope envelope, int spatialOp) {
+        //The stored envelopes are larger than the actual ones : "within" can't be checked on them
+        boolean mustContain = spatialOp == SpatialOperator.EQUALS || spatialOp == SpatialOperator.CONTAINS;
+        float qMinX = roundDown(envelope.getMinX());
+        float qMaxX = roundUp(envelope.getMaxX());
+        float qMinY = roundDown(envelope.getMinY());
+        float qMaxY = roundUp(envelope.getMaxY());
+        long[] result = new long[64];
+        int found = 0;
+        lock.readLock().lock();
+        try {
+            for (int first = 0; first < count; first += BLOCK_SIZE) {
+                MappedByteBuffer segment = segment(first);
+                int block = offset(first);
+                int n = Math.min(BLOCK_SIZE, count - first);
+                for (int i = 0; i < n; i++) {
+                    float minX = segment.getFloat(block + MINX + i * 4);
+                    float maxX = segment.getFloat(block + MAXX + i * 4);
+                    float minY = segment.getFloat(block + MINY + i * 4);
+                    float maxY = segment.getFloat(block + MAXY + i * 4);
+                    //NaN (removed entries) never matches
+                    boolean matches = mustContain ?
+                        minX <= qMinX && maxX >= qMaxX && minY <= qMinY && maxY >= qMaxY :
+                        minX <= qMaxX && maxX >= qMinX && minY <= qMaxY && maxY >= qMinY;
+                    if (matches) {
+                        if (found == result.length)
+                            result = Arrays.copyOf(result, found * 2);
+                        result[found++] = segment.getLong(block + ROW_ID + i * 8);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        result = Arrays.copyOf(result, found);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private List<SpatialRTree.Entry> entriesUnlocked() {
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>(count - removed);
+        for (int slot = 0; slot < count; slot++) {
+            long rowId = getRowId(slot);
+            if (rowId < 0)
+                continue;
+            MappedByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            entries.add(new SpatialRTree.Entry(rowId,
+                segment.getFloat(offset + MINX), segment.getFloat(offset + MAXX),
+                segment.getFloat(offset + MINY), segment.getFloat(offset + MAXY)));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the slot of a live entry, or -1.
+     */
+    private int findSlot(long rowId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long slotRowId = getRowId(middle);
+            long value = decode(slotRowId);
+            if (value < rowId)
+                low = middle + 1;
+            else if (value > rowId)
+                high = middle - 1;
+            else
+                return slotRowId < 0 ? -1 : middle;
+        }
+        return -1;
+    }
+
+    private void remove(int slot) {
+        segment(slot).putFloat(offset(slot) + MINX, Float.NaN);
+        putRowId(slot, -getRowId(slot) - 1);
+        removed++;
+    }
+
+    //The ROW_ID of a slot, whether its entry is removed or not
+    private static long decode(long slotRowId) {
+        return slotRowId < 0 ? -slotRowId - 1 : slotRowId;
+    }
+
+    /**
+     * Appends entries, sorted by ROW_ID first.
+     */
+    private void append(List<SpatialRTree.Entry> entries) {
+        Collections.sort(entries, ROW_ID_COMPARATOR);
+        if (!entries.isEmpty() && count > 0 && entries.get(0).getRowId() <= decode(getRowId(count - 1)))
+            sorted = false;
+        ensureCapacity(count + entries.size());
+        for (SpatialRTree.Entry entry : entries) {
+            MappedByteBuffer segment = segment(count);
+            int offset = offset(count);
+            segment.putFloat(offset + MINX, roundDown(entry.minX));
+            segment.putFloat(offset + MAXX, roundUp(entry.maxX));
+            segment.putFloat(offset + MINY, roundDown(entry.minY));
+            segment.putFloat(offset + MAXY, roundUp(entry.maxY));
+            putRowId(count, entry.getRowId());
+            lastRowId = Math.max(lastRowId, entry.getRowId());
+            count++;
+        }
+    }
+
+    private void reset() {
+        count = 0;
+        removed = 0;
+        sorted = true;
+        markDirty();
+    }
+
+    private void markDirty() {
+        if (dirty)
+            return;
+        header.putInt(HEADER_MAGIC, MAGIC);
+        header.putInt(HEADER_VERSION, VERSION);
+        header.putInt(HEADER_CLEAN, 0);
+        header.force();
+        dirty = true;
+    }
+
+    private void ensureCapacity(int slots) {
+        int blocks = (slots + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        while (segments.size() * BLOCKS_PER_SEGMENT < blocks) {
+            long position = HEADER_SIZE + (long)segments.size() * BLOCKS_PER_SEGMENT * BLOCK_BYTES;
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long)BLOCKS_PER_SEGMENT * BLOCK_BYTES));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map " + file.toAbsolutePath().toString(), e);
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(int slot) {
+        return segments.get(slot / BLOCK_SIZE / BLOCKS_PER_SEGMENT);
+    }
+
+    /**
+     * Returns the offset, within its segment, of the slot's MINX. The other columns
+     * of the same slot are at the same offset plus the column's offset, except for
+     * the ROW_ID whose values are twice as large.
+     */
+    private int offset(int slot) {
+        return ((slot / BLOCK_SIZE) % BLOCKS_PER_SEGMENT) * BLOCK_BYTES + (slot % BLOCK_SIZE) * 4;
+    }
+
+    private long getRowId(int slot) {
+        return segment(slot).getLong(rowIdOffset(slot));
+    }
+
+    private void putRowId(int slot, long rowId) {
+        segment(slot).putLong(rowIdOffset(slot), rowId);
+    }
+
+    private int rowIdOffset(int slot) {
+        return ((slot / BLOCK_SIZE) % BLOCKS_PER_SEGMENT) * BLOCK_BYTES + ROW_ID + (slot % BLOCK_SIZE) * 8;
+    }
+
+    private static float roundDown(double value) {
+        float f = (float)value;
+        return f > value ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+    }
+
+    private static float roundUp(double value) {
+        float f = (float)value;
+        return f < value ? Math.nextAfter(f, Double.POSITIVE_INFINITY) : f;
+    }
+}
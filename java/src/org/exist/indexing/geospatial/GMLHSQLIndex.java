@@ -25,6 +25,7 @@ package org.exist.indexing.geospatial;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
@@ -34,6 +35,19 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -46,6 +60,8 @@ import org.exist.storage.btree.DBException;
 import org.exist.util.DatabaseConfigurationException;
 import org.w3c.dom.Element;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  */
 public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSupport {
@@ -54,9 +70,43 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
 
     public static String db_file_name_prefix = "spatial_index";
     //Keep this upper case ;-)
-    public static String TABLE_NAME = "SPATIAL_INDEX_V1";
-    private DBBroker connectionOwner = null;
+    public static String TABLE_NAME = "SPATIAL_INDEX_V4";
+    public static String CELL_TABLE_NAME = "SPATIAL_INDEX_CELLS_V2";
+    //The geometries waiting for the background indexing
+    public static String QUEUE_TABLE_NAME = "SPATIAL_INDEX_QUEUE";
+    //A temporary table, whose rows are private to each connection
+    public static String CONTEXT_TABLE_NAME = "SPATIAL_CONTEXT_DOCUMENTS";
+    //The tables of the previous layouts, which would clash with the indexes of the current ones
+    private final static String[] OBSOLETE_TABLE_NAMES = {
+        "SPATIAL_INDEX_V1", "SPATIAL_INDEX_V2", "SPATIAL_INDEX_V3", "SPATIAL_INDEX_CELLS_V1"
+    };
     private long connectionTimeout = 100000L;
+    //The connection that updates the database : this.conn
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    //The read-only connections
+    private int maxReadConnections = Runtime.getRuntime().availableProcessors();
+    private Semaphore readPermits = null;
+    private final Deque<Connection> idleReadConnections = new ArrayDeque<Connection>();
+    //Connection statistics
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    //The row-count statistics of the spatial table, for the choice of the query plans.
+    //Published once computed : the readers never wait for them
+    private volatile TableStatistics tableStatistics = null;
+    //Whether a thread is computing the statistics again
+    private final AtomicBoolean computingStatistics = new AtomicBoolean(false);
+    //How many rows may change before the statistics are computed again, at least
+    private final static long MIN_STATISTICS_CHANGES = 1000;
+    //The indexes of the spatial table, named after their column, that are dropped during a bulk reindex
+    private final static String[] SECONDARY_INDEXES = {
+        "NODE_ID", "GEOMETRY_TYPE", "SRS_NAME", "WKB", "EPSG4326_WKB",
+        "EPSG4326_MINX", "EPSG4326_MAXX", "EPSG4326_MINY", "EPSG4326_MAXY",
+        "EPSG4326_CENTROID_X", "EPSG4326_CENTROID_Y", "HILBERT_KEY"
+    };
+    //When the current bulk reindex started
+    private long bulkLoadStart = 0;
     
     public GMLHSQLIndex() {
         //Nothing to do ;-)
@@ -74,27 +124,121 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
             }
         }
 
-        param = config.getAttribute("max_docs_in_context_to_refine_query");
-        if (param != null) {
+        maxReadConnections = Math.max(1, getIntAttribute(config, "maxReadConnections", maxReadConnections));
+        readPermits = new Semaphore(maxReadConnections, true);
+        if (LOG.isDebugEnabled())
+            LOG.debug("maxReadConnections = " + maxReadConnections);
+
+        statementCacheSize = Math.max(16, getIntAttribute(config, "statementCacheSize", statementCacheSize));
+
+        batchSize = Math.max(1, getIntAttribute(config, "batchSize", batchSize));
+        if (LOG.isDebugEnabled())
+            LOG.debug("batchSize = " + batchSize);
+
+        parallelRefinementThreshold = getIntAttribute(config, "parallelRefinementThreshold", parallelRefinementThreshold);
+        refinementThreads = getIntAttribute(config, "refinementThreads", refinementThreads);
+        if (LOG.isDebugEnabled())
+            LOG.debug("parallelRefinementThreshold = " + parallelRefinementThreshold + ", refinementThreads = " + refinementThreads);
+
+        ingestThreads = getIntAttribute(config, "ingestThreads", ingestThreads);
+        ingestQueueSize = Math.max(1, getIntAttribute(config, "ingestQueueSize", ingestQueueSize));
+        if (LOG.isDebugEnabled())
+            LOG.debug("ingestThreads = " + ingestThreads + ", ingestQueueSize = " + ingestQueueSize);
+
+        reindexThreads = Math.max(1, getIntAttribute(config, "reindexThreads", reindexThreads));
+        if (LOG.isDebugEnabled())
+            LOG.debug("reindexThreads = " + reindexThreads);
+
+        geometryCacheSize = getIntAttribute(config, "geometryCacheSize", geometryCacheSize);
+        if (LOG.isDebugEnabled())
+            LOG.debug("geometryCacheSize = " + geometryCacheSize);
+
+        if (config.hasAttribute("max_docs_in_context_to_refine_query"))
+            LOG.warn("'max_docs_in_context_to_refine_query' is obsolete : the queries are restricted " +
+                "to the documents of their context according to the statistics of the spatial table");
+
+        param = config.getAttribute("rtree");
+        if (param != null && !"".equals(param))
+            useRTree = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        if (LOG.isDebugEnabled())
+            LOG.debug("rtree = " + useRTree);
+
+        param = config.getAttribute("rtreeGeometries");
+        if (param != null && !"".equals(param))
+            rtreeGeometries = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        if (LOG.isDebugEnabled())
+            LOG.debug("rtreeGeometries = " + rtreeGeometries);
+
+        param = config.getAttribute("envelopeStore");
+        if (param != null && !"".equals(param))
+            useEnvelopeStore = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        if (LOG.isDebugEnabled())
+            LOG.debug("envelopeStore = " + useEnvelopeStore);
+
+        param = config.getAttribute("cells");
+        if (param != null && !"".equals(param))
+            useCells = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        if (LOG.isDebugEnabled())
+            LOG.debug("cells = " + useCells);
+
+        param = config.getAttribute("bulkReindex");
+        if (param != null && !"".equals(param))
+            bulkReindex = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        if (LOG.isDebugEnabled())
+            LOG.debug("bulkReindex = " + bulkReindex);
+
+        param = config.getAttribute("asyncIndexing");
+        if (param != null && !"".equals(param))
+            asyncIndexing = "yes".equalsIgnoreCase(param) || "true".equalsIgnoreCase(param);
+        param = config.getAttribute("asyncWaitTimeout");
+        if (param != null && !"".equals(param)) {
             try {
-                max_docs_in_context_to_refine_query = Integer.parseInt(param);
+                asyncWaitTimeout = Math.max(0, Long.parseLong(param));
             } catch (NumberFormatException e) {
-                LOG.error("Invalid value for 'max_docs_in_context_to_refine_query', using default:" + max_docs_in_context_to_refine_query, e);
+                LOG.error("Invalid value for 'asyncWaitTimeout', using default:" + asyncWaitTimeout, e);
             }
         }
-
         if (LOG.isDebugEnabled())
-            LOG.debug("max_docs_in_context_to_refine_query = " + max_docs_in_context_to_refine_query);
+            LOG.debug("asyncIndexing = " + asyncIndexing + ", asyncWaitTimeout = " + asyncWaitTimeout);
+
+        param = config.getAttribute("hilbertMaxExtent");
+        if (param != null && !"".equals(param)) {
+            try {
+                hilbertMaxExtent = Double.parseDouble(param);
+            } catch (NumberFormatException e) {
+                LOG.error("Invalid value for 'hilbertMaxExtent', using default:" + hilbertMaxExtent, e);
+            }
+        }
+    }
+
+    private static int getIntAttribute(Element config, String name, int defaultValue) {
+        String param = config.getAttribute(name);
+        if (param == null || "".equals(param))
+            return defaultValue;
+        try {
+            return Integer.parseInt(param);
+        } catch (NumberFormatException e) {
+            LOG.error("Invalid value for '" + name + "', using default:" + defaultValue, e);
+            return defaultValue;
+        }
     }
 
     @Override
     public IndexWorker getWorker(DBBroker broker) {
-        AbstractGMLJDBCIndexWorker worker = workers.get(broker);
-        if (worker == null) {
-            worker = new GMLHSQLIndexWorker(this, broker);
-            workers.put(broker, worker);
+        synchronized (workers) {
+            WeakReference<AbstractGMLJDBCIndexWorker> ref = workers.get(broker);
+            AbstractGMLJDBCIndexWorker worker = ref == null ? null : ref.get();
+            if (worker == null) {
+                worker = createWorker(broker);
+                workers.put(broker, new WeakReference<AbstractGMLJDBCIndexWorker>(worker));
+            }
+            return worker;
         }
-        return worker;
+    }
+
+    @Override
+    protected AbstractGMLJDBCIndexWorker createWorker(DBBroker broker) {
+        return new GMLHSQLIndexWorker(this, broker);
     }
 
     @Override
@@ -105,20 +249,50 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
 
     @Override
     protected void shutdownDatabase() throws DBException {
+        //The queued rows stay in the database
+        stopIndexingQueue();
         try {
+            if (conn != null && bulkBroker != null) {
+                writeLock.lock();
+                try {
+                    endBulkLoad(conn);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            synchronized (idleReadConnections) {
+                for (Connection readConnection : idleReadConnections) {
+                    discardStatementCache(readConnection);
+                    readConnection.close();
+                }
+                idleReadConnections.clear();
+            }
             //No need to shutdown if we have opened something
             if (conn != null) {
+                discardStatementCache(conn);
                 Statement stmt = conn.createStatement();
                 stmt.executeQuery("SHUTDOWN");
                 stmt.close();
                 conn.close();
-                if (LOG.isDebugEnabled())
+                if (LOG.isDebugEnabled()) {
                     LOG.debug("GML index: " + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString() + " closed");
+                    LOG.debug("GML index connections: " + getConnectionStatistics());
+                    LOG.debug("GML index prepared statements: " + getStatementCacheStatistics());
+                    if (getGeometryCache() != null)
+                        LOG.debug("GML index geometry cache: " + getGeometryCache());
+                }
             }
+            if (envelopeStore != null)
+                envelopeStore.close();
         } catch (SQLException e) {
             throw new DBException(e.getMessage());
+        } catch (IOException e) {
+            throw new DBException(e.getMessage());
         } finally {
             conn = null;
+            //Will be reloaded with the connection
+            rtree = null;
+            envelopeStore = null;
         }
     }
     
@@ -141,9 +315,22 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
             //Let's be lazy here : we only delete the index content if we have a connection
             //deleteDatabase() should be far more efficient ;-)
             if (conn != null) {
+                //Don't let it index the rows that are removed
+                stopIndexingQueue();
                 Statement stmt = conn.createStatement(); 
                 int nodeCount = stmt.executeUpdate("DELETE FROM " + GMLHSQLIndex.TABLE_NAME + ";");
+                stmt.executeUpdate("DELETE FROM " + GMLHSQLIndex.CELL_TABLE_NAME + ";");
+                stmt.executeUpdate("DELETE FROM " + GMLHSQLIndex.QUEUE_TABLE_NAME + ";");
                 stmt.close();
+                synchronized (this) {
+                    cellLevels = 0;
+                }
+                if (rtree != null)
+                    rtree.clear();
+                if (envelopeStore != null)
+                    envelopeStore.clear();
+                if (getGeometryCache() != null)
+                    getGeometryCache().clear();
                 if (LOG.isDebugEnabled())
                     LOG.debug("GML index: " + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString() + ". " + nodeCount + " nodes removed");
             }
@@ -152,55 +339,145 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
         }
     }
 
+    /**
+     * Ends the bulk reindex of a broker that has been released, when eXist syncs its own files,
+     * unless a broker is currently updating the database.
+     */
+    @Override
+    public void sync() throws DBException {
+        if (conn == null || !writeLock.tryLock())
+            return;
+        try {
+            if (conn == null)
+                return;
+            //The broker has completed its reindex without storing all the documents of the collection again
+            if (bulkBroker != null && bulkBroker.getReferenceCount() == 0)
+                endBulkLoad(conn);
+        } catch (SQLException e) {
+            throw new DBException(e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the connection that updates the database. The brokers get it in turn,
+     * in the order of their requests.
+     */
     @Override
     protected Connection acquireConnection(DBBroker broker) throws SQLException {
-        //Horrible "locking" mechanism
-        synchronized (this) {
-            if (connectionOwner == null) {
-                connectionOwner = broker;
-                if (conn == null)
-                    initializeConnection();
-                return conn;
+        long start = System.nanoTime();
+        try {
+            if (!writeLock.tryLock(connectionTimeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Time out while trying to get the write connection");
             }
-            long timeOut_ = connectionTimeout;
-            long waitTime = timeOut_;
-            long start = System.currentTimeMillis();
-            try {
-                for (;;) {
-                    wait(waitTime);
-                    if (connectionOwner == null) {
-                        connectionOwner = broker;
-                        if (conn == null)
-                            //We should never get there since the connection should have been initialized
-                            //by the first request from a worker
-                            initializeConnection();
-                        return conn;
-                    }
-                    waitTime = timeOut_ - (System.currentTimeMillis() - start);
-                    if (waitTime <= 0) {
-                        LOG.error("Time out while trying to get connection");
-                    }
-                }
-            } catch (InterruptedException ex) {
-                notify();
-                throw new RuntimeException("interrupted while waiting for lock");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the write connection");
+        }
+        recordWait(start);
+        try {
+            return getWriteConnection();
+        } catch (SQLException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns one of the read-only connections. At most maxReadConnections of them
+     * are used at the same time ; the brokers get them in the order of their requests.
+     */
+    @Override
+    protected Connection acquireReadConnection(DBBroker broker) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!readPermits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Time out while trying to get a read connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection");
+        }
+        recordWait(start);
+        try {
+            //Make sure that the database has been initialized
+            getWriteConnection();
+            Connection readConnection;
+            synchronized (idleReadConnections) {
+                readConnection = idleReadConnections.poll();
+            }
+            if (readConnection == null || readConnection.isClosed()) {
+                if (readConnection != null)
+                    discardStatementCache(readConnection);
+                readConnection = openConnection();
+                readConnection.setReadOnly(true);
             }
+            return readConnection;
+        } catch (SQLException e) {
+            readPermits.release();
+            throw e;
         }
     }
 
     @Override
-    protected synchronized void releaseConnection(DBBroker broker) throws SQLException {   
-        if (connectionOwner == null)
-            throw new SQLException("Attempted to release a connection that wasn't acquired");
-        connectionOwner = null;
+    protected void releaseConnection(DBBroker broker, Connection connection) throws SQLException {
+        if (connection == conn) {
+            if (!writeLock.isHeldByCurrentThread())
+                throw new SQLException("Attempted to release a connection that wasn't acquired");
+            writeLock.unlock();
+            return;
+        }
+        if (!connection.isClosed()) {
+            synchronized (idleReadConnections) {
+                idleReadConnections.push(connection);
+            }
+        } else
+            discardStatementCache(connection);
+        readPermits.release();
     }
 
-    private void initializeConnection() throws SQLException {
+    private synchronized Connection getWriteConnection() throws SQLException {
+        if (conn == null)
+            initializeConnection();
+        return conn;
+    }
+
+    private void recordWait(long start) {
+        long waitTime = System.nanoTime() - start;
+        acquisitions.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        long max = maxWaitTime.get();
+        while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    /**
+     * Returns how long the brokers have been waiting for the connections.
+     * 
+     * @return a summary of the statistics
+     */
+    public String getConnectionStatistics() {
+        long count = acquisitions.get();
+        return count + " acquisitions, " +
+            (count == 0 ? 0 : totalWaitTime.get() / count / 1000) + " us average wait, " +
+            maxWaitTime.get() / 1000 + " us max wait, " +
+            timeouts.get() + " time outs";
+    }
+
+    private Connection openConnection() throws SQLException {
         System.setProperty("hsqldb.cache_scale", "11");
         System.setProperty("hsqldb.cache_size_scale", "12");
         System.setProperty("hsqldb.default_table_type", "cached");
+        return DriverManager.getConnection("jdbc:hsqldb:" + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString() /* + ";shutdown=true" */, "sa", "");
+    }
+
+    private void initializeConnection() throws SQLException {
         //Get a connection to the DB... and keep it
-        this.conn = DriverManager.getConnection("jdbc:hsqldb:" + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString() /* + ";shutdown=true" */, "sa", "");
+        this.conn = openConnection();
         if (LOG.isDebugEnabled())
             LOG.debug("Connected to GML index: " + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString());
         ResultSet rs = null;
@@ -213,8 +490,12 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
             //Create the data structure if it doesn't exist
             } else if (rs.getRow() == 0) {
                 Statement stmt = conn.createStatement();
+                //Their content has to be reindexed anyway
+                for (int i = 0; i < OBSOLETE_TABLE_NAMES.length; i++) {
+                    stmt.executeUpdate("DROP TABLE " + OBSOLETE_TABLE_NAMES[i] + " IF EXISTS;");
+                }
                 stmt.executeUpdate("CREATE TABLE " + TABLE_NAME + "(" +
-                    /*1*/ "DOCUMENT_URI VARCHAR, " +
+                    /*1*/ "DOC_ID INTEGER NOT NULL, " +
                     /*2*/ "NODE_ID_UNITS INTEGER, " +
                     /*3*/ "NODE_ID BINARY, " +
                     /*4*/ "GEOMETRY_TYPE VARCHAR, " +
@@ -242,23 +523,17 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
                     /*24*/ "IS_CLOSED BOOLEAN, " +
                     /*25*/ "IS_SIMPLE BOOLEAN, " +
                     /*26*/ "IS_VALID BOOLEAN, " +
+                    /*27*/ "ROW_ID BIGINT NOT NULL, " +
+                    /*28*/ "HILBERT_KEY BIGINT, " +
+                    /*29*/ "COLLECTION_ID INTEGER NOT NULL, " +
                     //Enforce uniqueness
                     "UNIQUE (" +
-                        "DOCUMENT_URI, NODE_ID_UNITS, NODE_ID" +
-                    ")" +
+                        "DOC_ID, NODE_ID_UNITS, NODE_ID" +
+                    "), " +
+                    "PRIMARY KEY (ROW_ID)" +
                 ")");
-                stmt.executeUpdate("CREATE INDEX DOCUMENT_URI ON " + TABLE_NAME + " (DOCUMENT_URI);");
-                stmt.executeUpdate("CREATE INDEX NODE_ID ON " + TABLE_NAME + " (NODE_ID);");
-                stmt.executeUpdate("CREATE INDEX GEOMETRY_TYPE ON " + TABLE_NAME + " (GEOMETRY_TYPE);");
-                stmt.executeUpdate("CREATE INDEX SRS_NAME ON " + TABLE_NAME + " (SRS_NAME);");
-                stmt.executeUpdate("CREATE INDEX WKB ON " + TABLE_NAME + " (WKB);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_WKB ON " + TABLE_NAME + " (EPSG4326_WKB);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_MINX ON " + TABLE_NAME + " (EPSG4326_MINX);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_MAXX ON " + TABLE_NAME + " (EPSG4326_MAXX);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_MINY ON " + TABLE_NAME + " (EPSG4326_MINY);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_MAXY ON " + TABLE_NAME + " (EPSG4326_MAXY);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_CENTROID_X ON " + TABLE_NAME + " (EPSG4326_CENTROID_X);");
-                stmt.executeUpdate("CREATE INDEX EPSG4326_CENTROID_Y ON " + TABLE_NAME + " (EPSG4326_CENTROID_Y);");
+                stmt.executeUpdate("CREATE INDEX DOC_ID ON " + TABLE_NAME + " (DOC_ID);");
+                stmt.executeUpdate("CREATE INDEX COLLECTION_ID ON " + TABLE_NAME + " (COLLECTION_ID);");
                 //AREA ?
                 stmt.close();
                 if (LOG.isDebugEnabled()) 
@@ -270,6 +545,299 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
             if (rs != null)
                 rs.close();
         }
+        rs = null;
+        try {
+            rs = this.conn.getMetaData().getTables(null, null, CELL_TABLE_NAME, new String[] { "TABLE" });
+            if (!rs.next()) {
+                Statement stmt = conn.createStatement();
+                stmt.executeUpdate("CREATE TABLE " + CELL_TABLE_NAME + "(" +
+                    /*1*/ "CELL_ID BIGINT NOT NULL, " +
+                    /*2*/ "CELL_LEVEL INTEGER NOT NULL, " +
+                    /*3*/ "ROW_ID BIGINT NOT NULL, " +
+                    "PRIMARY KEY (CELL_ID, ROW_ID)" +
+                ")");
+                stmt.executeUpdate("CREATE INDEX CELL_ROW_ID ON " + CELL_TABLE_NAME + " (ROW_ID);");
+                stmt.close();
+                if (LOG.isDebugEnabled()) 
+                    LOG.debug("Created GML cell index: " + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString());
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+        rs = null;
+        try {
+            rs = this.conn.getMetaData().getTables(null, null, QUEUE_TABLE_NAME, new String[] { "TABLE" });
+            if (!rs.next()) {
+                Statement stmt = conn.createStatement();
+                stmt.executeUpdate("CREATE TABLE " + QUEUE_TABLE_NAME + "(" +
+                    /*1*/ "SEQ BIGINT NOT NULL, " +
+                    /*2*/ "DOC_ID INTEGER NOT NULL, " +
+                    /*3*/ "COLLECTION_ID INTEGER NOT NULL, " +
+                    /*4*/ "NODE_ID_UNITS INTEGER, " +
+                    /*5*/ "NODE_ID BINARY, " +
+                    /*6*/ "SRS_NAME VARCHAR, " +
+                    /*7*/ "WKB BINARY, " +
+                    "PRIMARY KEY (SEQ)" +
+                ")");
+                stmt.executeUpdate("CREATE INDEX QUEUE_DOC_ID ON " + QUEUE_TABLE_NAME + " (DOC_ID);");
+                stmt.executeUpdate("CREATE INDEX QUEUE_COLLECTION_ID ON " + QUEUE_TABLE_NAME + " (COLLECTION_ID);");
+                stmt.close();
+                if (LOG.isDebugEnabled()) 
+                    LOG.debug("Created GML index queue: " + getDataDir().resolve(db_file_name_prefix).toAbsolutePath().toString());
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+        Statement stmt = conn.createStatement();
+        try {
+            //Nothing to keep
+            stmt.executeUpdate("DROP TABLE " + CONTEXT_TABLE_NAME + " IF EXISTS;");
+            stmt.executeUpdate("CREATE GLOBAL TEMPORARY TABLE " + CONTEXT_TABLE_NAME + "(" +
+                "DOC_ID INTEGER NOT NULL, " +
+                "PRIMARY KEY (DOC_ID)" +
+            ") ON COMMIT PRESERVE ROWS;");
+        } finally {
+            stmt.close();
+        }
+        //Also rebuilds the indexes left out by a bulk reindex that didn't complete
+        createSecondaryIndexes();
+        loadTableState();
+        loadIndexingQueue();
+    }
+
+    /**
+     * Creates the secondary indexes of the spatial table that don't exist.
+     */
+    private void createSecondaryIndexes() throws SQLException {
+        Set<String> existing = new HashSet<String>();
+        ResultSet rs = conn.getMetaData().getIndexInfo(null, null, TABLE_NAME, false, false);
+        try {
+            while (rs.next()) {
+                if (rs.getString("INDEX_NAME") != null)
+                    existing.add(rs.getString("INDEX_NAME").toUpperCase());
+            }
+        } finally {
+            rs.close();
+        }
+        Statement stmt = conn.createStatement();
+        try {
+            for (int i = 0; i < SECONDARY_INDEXES.length; i++) {
+                if (!existing.contains(SECONDARY_INDEXES[i]))
+                    stmt.executeUpdate("CREATE INDEX " + SECONDARY_INDEXES[i] + " ON " + TABLE_NAME + " (" + SECONDARY_INDEXES[i] + ");");
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Drops the secondary indexes of the spatial table, but those on the document and collection IDs
+     * which the removals need, and defers the changes to the R-tree.
+     */
+    @Override
+    protected void startBulkLoad(DBBroker broker, Connection conn) throws SQLException {
+        if (!bulkReindex)
+            return;
+        synchronized (this) {
+            if (bulkBroker != null)
+                return;
+            bulkBroker = broker;
+        }
+        Statement stmt = conn.createStatement();
+        try {
+            for (int i = 0; i < SECONDARY_INDEXES.length; i++) {
+                stmt.executeUpdate("DROP INDEX " + SECONDARY_INDEXES[i] + " IF EXISTS;");
+            }
+        } finally {
+            stmt.close();
+        }
+        bulkLoadStart = System.currentTimeMillis();
+        if (LOG.isDebugEnabled())
+            LOG.debug("GML index: bulk reindex started");
+    }
+
+    @Override
+    protected void endBulkLoad(Connection conn) throws SQLException {
+        if (bulkBroker == null)
+            return;
+        createSecondaryIndexes();
+        applyDeferredFilterChanges();
+        bulkBroker = null;
+        if (LOG.isDebugEnabled())
+            LOG.debug("GML index: bulk reindex ended after " + (System.currentTimeMillis() - bulkLoadStart) + " ms");
+    }
+
+    /**
+     * Starts the background indexing if it is enabled, or if rows have been left in the queue.
+     */
+    private void loadIndexingQueue() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = stmt.executeQuery("SELECT MAX(SEQ), COUNT(*) FROM " + QUEUE_TABLE_NAME + ";");
+            rs.next();
+            long lastSequence = rs.getLong(1);
+            long rows = rs.getLong(2);
+            rs.close();
+            if (!asyncIndexing && rows == 0)
+                return;
+            Map<Integer, Long> lastDocumentSequences = new HashMap<Integer, Long>();
+            rs = stmt.executeQuery("SELECT DOC_ID, MAX(SEQ) FROM " + QUEUE_TABLE_NAME + " GROUP BY DOC_ID;");
+            while (rs.next()) {
+                lastDocumentSequences.put(Integer.valueOf(rs.getInt(1)), Long.valueOf(rs.getLong(2)));
+            }
+            IndexingQueue queue = new IndexingQueue(createWorker(null), batchSize);
+            queue.load(lastSequence, lastDocumentSequences, rows);
+            indexingQueue = queue;
+            queue.start();
+            if (rows > 0)
+                LOG.info("GML index: " + rows + " queued geometries left to index");
+        } finally {
+            if (rs != null)
+                rs.close();
+            stmt.close();
+        }
+    }
+
+    private void stopIndexingQueue() {
+        IndexingQueue queue = indexingQueue;
+        if (queue == null)
+            return;
+        queue.stop();
+        indexingQueue = null;
+        if (LOG.isDebugEnabled())
+            LOG.debug("GML index queue: " + queue);
+    }
+
+    /**
+     * Restores the row ID sequence, the largest extents of the Hilbert keyed geometries,
+     * the levels of the cell index and, if enabled, bulk loads the R-tree from the EPSG:4326 envelopes stored in the table.
+     */
+    private void loadTableState() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = stmt.executeQuery("SELECT MAX(ROW_ID) FROM " + TABLE_NAME + ";");
+            if (rs.next())
+                lastRowId.set(rs.getLong(1));
+            rs.close();
+            rs = stmt.executeQuery("SELECT MAX(EPSG4326_MAXX - EPSG4326_MINX), MAX(EPSG4326_MAXY - EPSG4326_MINY) FROM " + TABLE_NAME +
+                " WHERE HILBERT_KEY <> " + HilbertCurve.NO_KEY + ";");
+            if (rs.next()) {
+                hilbertWidth = rs.getDouble(1);
+                hilbertHeight = rs.getDouble(2);
+            }
+            rs.close();
+            rs = stmt.executeQuery("SELECT DISTINCT CELL_LEVEL FROM " + CELL_TABLE_NAME + ";");
+            synchronized (this) {
+                cellLevels = 0;
+            }
+            while (rs.next()) {
+                addCellLevel(rs.getInt(1));
+            }
+            rs.close();
+            if (useEnvelopeStore) {
+                EnvelopeStore store = new EnvelopeStore(getDataDir().resolve(db_file_name_prefix + ".envelopes"));
+                try {
+                    if (!store.open(lastRowId.get())) {
+                        store.load(readEnvelopes(stmt));
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("Rebuilt envelope store for GML index: " + store.size() + " entries");
+                    }
+                } catch (IOException e) {
+                    //Transforms the exception into an SQLException.
+                    SQLException ee = new SQLException(e.getMessage());
+                    ee.initCause(e);
+                    throw ee;
+                }
+                envelopeStore = store;
+            }
+            if (!useRTree)
+                return;
+            //Not from the envelope store : its envelopes are rounded
+            SpatialRTree tree = new SpatialRTree(SpatialRTree.DEFAULT_NODE_CAPACITY, rtreeGeometries);
+            List<SpatialRTree.Entry> entries = rtreeGeometries ? readEntries(stmt) : readEnvelopes(stmt);
+            tree.load(entries);
+            rtree = tree;
+            if (LOG.isDebugEnabled())
+                LOG.debug("Loaded spatial R-tree for GML index: " + entries.size() + " entries");
+        } finally {
+            if (rs != null)
+                rs.close();
+            stmt.close();
+        }
+    }
+
+    private List<SpatialRTree.Entry> readEnvelopes(Statement stmt) throws SQLException {
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        ResultSet rs = stmt.executeQuery("SELECT ROW_ID, EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY, DOC_ID FROM " + TABLE_NAME + ";");
+        try {
+            while (rs.next()) {
+                entries.add(new SpatialRTree.Entry(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5), rs.getInt(6)));
+            }
+        } finally {
+            rs.close();
+        }
+        return entries;
+    }
+
+    private List<SpatialRTree.Entry> readEntries(Statement stmt) throws SQLException {
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        ResultSet rs = stmt.executeQuery("SELECT ROW_ID, EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY, " +
+            "EPSG4326_WKB, DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID FROM " + TABLE_NAME + ";");
+        try {
+            while (rs.next()) {
+                entries.add(new SpatialRTree.Entry(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5),
+                    rs.getBytes(6), rs.getInt(7), rs.getInt(8), rs.getInt(9), rs.getBytes(10)));
+            }
+        } finally {
+            rs.close();
+        }
+        return entries;
+    }
+
+    @Override
+    public TableStatistics getTableStatistics(Connection connection) throws SQLException {
+        TableStatistics statistics = tableStatistics;
+        if (statistics != null &&
+            changesSinceStatistics.get() < Math.max(MIN_STATISTICS_CHANGES, statistics.getRowCount() / 10))
+            return statistics;
+        //A single thread computes them again, the others keep using the stale ones meanwhile.
+        //Only the very first queries may compute them concurrently
+        if (!computingStatistics.compareAndSet(false, true)) {
+            if (statistics != null)
+                return statistics;
+            return computeTableStatistics(connection);
+        }
+        try {
+            changesSinceStatistics.set(0);
+            statistics = computeTableStatistics(connection);
+            tableStatistics = statistics;
+        } finally {
+            computingStatistics.set(false);
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("Computed statistics of GML index: " + statistics);
+        return statistics;
+    }
+
+    private TableStatistics computeTableStatistics(Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = stmt.executeQuery("SELECT COUNT(*), COUNT(DISTINCT DOC_ID), " +
+                "MIN(EPSG4326_MINX), MAX(EPSG4326_MAXX), MIN(EPSG4326_MINY), MAX(EPSG4326_MAXY) FROM " + TABLE_NAME + ";");
+            rs.next();
+            long rowCount = rs.getLong(1);
+            return new TableStatistics(rowCount, rs.getLong(2), rowCount == 0 ? null :
+                new Envelope(rs.getDouble(3), rs.getDouble(4), rs.getDouble(5), rs.getDouble(6)));
+        } finally {
+            if (rs != null)
+                rs.close();
+            stmt.close();
+        }
     }
 
     @Override
@@ -26,14 +26,20 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.collections.Collection;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.DocumentSet;
 import org.exist.dom.persistent.ExtArrayNodeSet;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.persistent.NodeSet;
@@ -41,9 +47,7 @@ import org.exist.dom.persistent.IStoredNode;
 import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
 import org.exist.numbering.DLN;
 import org.exist.numbering.NodeId;
-import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
-import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.value.AtomicValue;
 import org.exist.xquery.value.BooleanValue;
@@ -51,6 +55,7 @@ import org.exist.xquery.value.DoubleValue;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.ValueSequence;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
 import java.io.ByteArrayInputStream;
@@ -62,6 +67,18 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
 
     private static final Logger LOG = LogManager.getLogger(GMLHSQLIndexWorker.class);
 
+    private final static String CELL_INSERT =
+        "INSERT INTO " + GMLHSQLIndex.CELL_TABLE_NAME + " (CELL_ID, CELL_LEVEL, ROW_ID) VALUES (?, ?, ?);";
+    //The Hilbert key ranges scanned by a search, at most
+    private final static int MAX_HILBERT_RANGES = 16;
+    //The costs of a join with the documents of the context, in rows read by a scan
+    private final static double DOCUMENT_INSERT_COST = 2;
+    private final static double ROW_LOOKUP_COST = 4;
+    //How many row IDs selected by an in-memory filter are read per query
+    private final static int ROW_BATCH_SIZE = 64;
+    //A batch of row IDs is read as a range of ROW_ID when it spans at most that many rows per ID
+    private final static int ROW_RANGE_DENSITY = 4;
+
     public GMLHSQLIndexWorker(GMLHSQLIndex index, DBBroker broker) {
         super(index, broker);
         //TODO : evaluate one connection per worker
@@ -76,291 +93,1295 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
     }
 
     @Override
-    protected boolean saveGeometryNode(Geometry geometry, String srsName, DocumentImpl doc, NodeId nodeId, PreparedStatement ps) throws SQLException {
+    protected boolean saveGeometryNode(Geometry geometry, String srsName, int docId, int collectionId, NodeId nodeId, PreparedStatement ps) throws SQLException {
+        GeometryRow row;
+        try {
+            row = new GeometryRow(geometry, srsName, index.getTransformationCache(), coordinateTransformer, wktWriter, wkbWriter);
+        } catch (SpatialIndexException e) {
+            //Transforms the exception into an SQLException.
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        } finally {
+            //Let's help the garbage collector...
+            geometry = null;
+        }
+        return saveGeometryRow(row, docId, collectionId, nodeId, ps);
+    }
+
+    @Override
+    protected boolean saveGeometryRow(GeometryRow row, int docId, int collectionId, NodeId nodeId, PreparedStatement ps) throws SQLException {
         try {
-            Geometry EPSG4326_geometry = null;
-            try {
-                EPSG4326_geometry = transformGeometry(geometry, srsName, "EPSG:4326");
-            } catch (SpatialIndexException e) {
-                //Transforms the exception into an SQLException.
-                SQLException ee = new SQLException(e.getMessage());
-                ee.initCause(e);
-                throw ee;
-            }
             ps.clearParameters();
             
-            /*DOCUMENT_URI*/ ps.setString(1, doc.getURI().toString());	
+            /*DOC_ID*/ ps.setInt(1, docId);
             /*NODE_ID_UNITS*/ ps.setInt(2, nodeId.units());
             byte[] bytes = new byte[nodeId.size()];
             nodeId.serialize(bytes, 0);
             /*NODE_ID*/ ps.setBytes(3, bytes);
-            /*GEOMETRY_TYPE*/ ps.setString(4, geometry.getGeometryType());
-            /*SRS_NAME*/ ps.setString(5, srsName);
-            /*WKT*/ ps.setString(6, wktWriter.write(geometry));
-            /*WKB*/ ps.setBytes(7, wkbWriter.write(geometry));
-            /*MINX*/ ps.setDouble(8, geometry.getEnvelopeInternal().getMinX());
-            /*MAXX*/ ps.setDouble(9, geometry.getEnvelopeInternal().getMaxX());
-            /*MINY*/ ps.setDouble(10, geometry.getEnvelopeInternal().getMinY());
-            /*MAXY*/ ps.setDouble(11, geometry.getEnvelopeInternal().getMaxY());
-            /*CENTROID_X*/ ps.setDouble(12, geometry.getCentroid().getCoordinate().x);
-            /*CENTROID_Y*/ ps.setDouble(13, geometry.getCentroid().getCoordinate().y);
-            //geometry.getRepresentativePoint()
-            /*AREA*/ ps.setDouble(14, geometry.getArea());
-            //Boundary ?
-            /*EPSG4326_WKT*/ ps.setString(15, wktWriter.write(EPSG4326_geometry));
-            /*EPSG4326_WKB*/ ps.setBytes(16, wkbWriter.write(EPSG4326_geometry));
-            /*EPSG4326_MINX*/ ps.setDouble(17, EPSG4326_geometry.getEnvelopeInternal().getMinX());
-            /*EPSG4326_MAXX*/ ps.setDouble(18, EPSG4326_geometry.getEnvelopeInternal().getMaxX());
-            /*EPSG4326_MINY*/ ps.setDouble(19, EPSG4326_geometry.getEnvelopeInternal().getMinY());
-            /*EPSG4326_MAXY*/ ps.setDouble(20, EPSG4326_geometry.getEnvelopeInternal().getMaxY());
-            /*EPSG4326_CENTROID_X*/ ps.setDouble(21, EPSG4326_geometry.getCentroid().getCoordinate().x);
-            /*EPSG4326_CENTROID_Y*/ ps.setDouble(22, EPSG4326_geometry.getCentroid().getCoordinate().y);
-            //EPSG4326_geometry.getRepresentativePoint()
-            /*EPSG4326_AREA*/ ps.setDouble(23, EPSG4326_geometry.getArea());
-            //Boundary ?
-            //As discussed earlier, all instances of SFS geometry classes
-            //are topologically closed by definition.
-            //For empty Curves, isClosed is defined to have the value false.
-            /*IS_CLOSED*/ ps.setBoolean(24, !geometry.isEmpty());
-            /*IS_SIMPLE*/ ps.setBoolean(25, geometry.isSimple());
-            //Should always be true (the GML SAX parser makes a too severe check)
-            /*IS_VALID*/ ps.setBoolean(26, geometry.isValid());
-            return (ps.executeUpdate() == 1);
+            /*GEOMETRY_TYPE*/ ps.setString(4, row.geometryType);
+            /*SRS_NAME*/ ps.setString(5, row.srsName);
+            /*WKT*/ ps.setString(6, row.wkt);
+            /*WKB*/ ps.setBytes(7, row.wkb);
+            /*MINX*/ ps.setDouble(8, row.envelope.getMinX());
+            /*MAXX*/ ps.setDouble(9, row.envelope.getMaxX());
+            /*MINY*/ ps.setDouble(10, row.envelope.getMinY());
+            /*MAXY*/ ps.setDouble(11, row.envelope.getMaxY());
+            /*CENTROID_X*/ ps.setDouble(12, row.centroid.x);
+            /*CENTROID_Y*/ ps.setDouble(13, row.centroid.y);
+            /*AREA*/ ps.setDouble(14, row.area);
+            /*EPSG4326_WKT*/ ps.setString(15, row.EPSG4326_wkt);
+            /*EPSG4326_WKB*/ ps.setBytes(16, row.EPSG4326_wkb);
+            /*EPSG4326_MINX*/ ps.setDouble(17, row.EPSG4326_envelope.getMinX());
+            /*EPSG4326_MAXX*/ ps.setDouble(18, row.EPSG4326_envelope.getMaxX());
+            /*EPSG4326_MINY*/ ps.setDouble(19, row.EPSG4326_envelope.getMinY());
+            /*EPSG4326_MAXY*/ ps.setDouble(20, row.EPSG4326_envelope.getMaxY());
+            /*EPSG4326_CENTROID_X*/ ps.setDouble(21, row.EPSG4326_centroid.x);
+            /*EPSG4326_CENTROID_Y*/ ps.setDouble(22, row.EPSG4326_centroid.y);
+            /*EPSG4326_AREA*/ ps.setDouble(23, row.EPSG4326_area);
+            /*IS_CLOSED*/ ps.setBoolean(24, row.isClosed);
+            /*IS_SIMPLE*/ ps.setBoolean(25, row.isSimple);
+            /*IS_VALID*/ ps.setBoolean(26, row.isValid);
+            long rowId = index.nextRowId();
+            /*ROW_ID*/ ps.setLong(27, rowId);
+            /*HILBERT_KEY*/ ps.setLong(28, index.hilbertKey(row.EPSG4326_envelope));
+            /*COLLECTION_ID*/ ps.setInt(29, collectionId);
+            ps.addBatch();
+            if (index.useCells())
+                saveGeometryCells(rowId, row.EPSG4326_envelope, ps.getConnection());
+            filterInsert(rowId, row.EPSG4326_envelope, row.EPSG4326_wkb, docId, collectionId, nodeId);
+            return true;
         } finally {
-            //Let's help the garbage collector...
-            geometry = null;
             ps.clearParameters();
         }
     }
 
+    /**
+     * Indexes a row under the quadtree cells that cover its EPSG:4326 envelope.
+     */
+    private void saveGeometryCells(long rowId, Envelope EPSG4326_envelope, Connection conn) throws SQLException {
+        int level = SpatialCells.level(EPSG4326_envelope, cellDepth);
+        long[] cells = SpatialCells.cover(EPSG4326_envelope, level);
+        PreparedStatement ps = prepareStatement(conn, CELL_INSERT);
+        for (int i = 0; i < cells.length; i++) {
+            ps.setLong(1, cells[i]);
+            ps.setInt(2, level);
+            ps.setLong(3, rowId);
+            ps.addBatch();
+        }
+        index.addCellLevel(level);
+    }
+
     @Override
-    protected boolean removeDocumentNode(DocumentImpl doc, NodeId nodeId, Connection conn) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement(
-                "DELETE FROM " + GMLHSQLIndex.TABLE_NAME + 
-                " WHERE DOCUMENT_URI = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?;"
-            ); 
-        ps.setString(1, doc.getURI().toString());
-        ps.setInt(2, nodeId.units());
-        byte[] bytes = new byte[nodeId.size()];
-        nodeId.serialize(bytes, 0);
-        ps.setBytes(3, bytes);
+    protected void executeBatch(PreparedStatement ps) throws SQLException {
+        index.recordChanges(ps.executeBatch().length);
+        if (index.useCells())
+            prepareStatement(ps.getConnection(), CELL_INSERT).executeBatch();
+    }
+
+    @Override
+    protected void clearBatch(PreparedStatement ps) throws SQLException {
+        ps.clearBatch();
+        if (index.useCells())
+            prepareStatement(ps.getConnection(), CELL_INSERT).clearBatch();
+    }
+
+    @Override
+    protected IndexingQueue.Batch saveQueuedNodes(Connection conn, int maxRows) throws SQLException {
+        IndexingQueue.Batch batch = new IndexingQueue.Batch();
+        PreparedStatement queuePs = prepareStatement(conn,
+            "SELECT TOP " + maxRows + " SEQ, DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID, SRS_NAME, WKB FROM " +
+            GMLHSQLIndex.QUEUE_TABLE_NAME + " ORDER BY SEQ;"
+        );
+        PreparedStatement ps = prepareStatement(conn, GEOMETRY_INSERT);
+        int batchSize = index.getBatchSize();
+        int batched = 0;
+        boolean executed = false;
+        ResultSet rs = queuePs.executeQuery();
         try {
-            return (ps.executeUpdate() == 1);
+            while (rs.next()) {
+                int docId = rs.getInt("DOC_ID");
+                batch.add(rs.getLong("SEQ"), docId);
+                NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
+                try {
+                    Geometry geometry = wkbReader.read(rs.getBytes("WKB"));
+                    if (saveGeometryNode(geometry, rs.getString("SRS_NAME"), docId, rs.getInt("COLLECTION_ID"), nodeId, ps))
+                        batched++;
+                } catch (ParseException e) {
+                    //Would block the queue
+                    LOG.error("Discarding the queued geometry of node " + nodeId + " of document " + docId, e);
+                } catch (SQLException e) {
+                    //Would block the queue
+                    if (!(e.getCause() instanceof SpatialIndexException))
+                        throw e;
+                    LOG.error("Discarding the queued geometry of node " + nodeId + " of document " + docId, e);
+                }
+                if (batched >= batchSize) {
+                    executeBatch(ps);
+                    batched = 0;
+                }
+            }
+            if (batched > 0)
+                executeBatch(ps);
+            executed = true;
         } finally {
-            ps.close();
+            rs.close();
+            //The statements are cached : don't leave a pending batch for the next transaction
+            if (!executed)
+                clearBatch(ps);
+        }
+        if (batch.rows > 0) {
+            PreparedStatement deletePs = prepareStatement(conn,
+                "DELETE FROM " + GMLHSQLIndex.QUEUE_TABLE_NAME + " WHERE SEQ <= ?;"
+            );
+            deletePs.setLong(1, batch.lastSequence);
+            deletePs.executeUpdate();
         }
+        return batch;
+    }
+
+    /**
+     * Removes from the queue of the background indexing the rows that match the given constraint.
+     * 
+     * @param ids the values of the constraint's parameters
+     * @return the number of rows removed
+     */
+    private int removeQueuedRows(String rowConstraint, int[] ids, Connection conn) throws SQLException {
+        if (index.getIndexingQueue() == null)
+            return 0;
+        PreparedStatement ps = prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.QUEUE_TABLE_NAME + " WHERE " + rowConstraint + ";"
+        );
+        for (int i = 0; i < ids.length; i++) {
+            ps.setInt(i + 1, ids[i]);
+        }
+        int count = ps.executeUpdate();
+        queueDiscard(count);
+        return count;
+    }
+
+    /**
+     * Removes from the queue of the background indexing the rows of some nodes of a document.
+     * 
+     * @return the number of rows removed
+     */
+    private int removeQueuedNodes(DocumentImpl doc, Set<NodeId> nodeIds, Connection conn) throws SQLException {
+        if (index.getIndexingQueue() == null)
+            return 0;
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT SEQ, NODE_ID_UNITS, NODE_ID FROM " + GMLHSQLIndex.QUEUE_TABLE_NAME + " WHERE DOC_ID = ?;"
+        );
+        ps.setInt(1, doc.getDocId());
+        List<Long> sequences = new ArrayList<Long>();
+        ResultSet rs = ps.executeQuery();
+        try {
+            while (rs.next()) {
+                NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
+                if (nodeIds.contains(nodeId))
+                    sequences.add(Long.valueOf(rs.getLong("SEQ")));
+            }
+        } finally {
+            rs.close();
+        }
+        if (sequences.isEmpty())
+            return 0;
+        ps = prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.QUEUE_TABLE_NAME + " WHERE SEQ = ?;"
+        );
+        for (Long sequence : sequences) {
+            ps.setLong(1, sequence.longValue());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        queueDiscard(sequences.size());
+        return sequences.size();
+    }
+
+    /**
+     * Removes from the cell index the rows that match the given constraint.
+     * The statement's parameters are set by the caller.
+     */
+    private PreparedStatement prepareCellRemoval(String rowConstraint, Connection conn) throws SQLException {
+        return prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.CELL_TABLE_NAME + " WHERE ROW_ID IN (" +
+            "SELECT ROW_ID FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE " + rowConstraint + ");"
+        );
+    }
+
+    private void removeCells(PreparedStatement ps) throws SQLException {
+        ps.executeUpdate();
     }
 
     @Override
-    protected int removeDocument(DocumentImpl doc, Connection conn) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement(
-            "DELETE FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOCUMENT_URI = ?;"
-        ); 
-        ps.setString(1, doc.getURI().toString());
+    protected int removeDocumentNodes(DocumentImpl doc, Set<NodeId> nodeIds, Connection conn) throws SQLException {
+        //The nodes may not have been indexed yet
+        int queuedCount = removeQueuedNodes(doc, nodeIds, conn);
+        //A single query for the rows of the document, which are matched here against the nodes
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT ROW_ID, NODE_ID_UNITS, NODE_ID FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID = ?;"
+        );
+        ps.setInt(1, doc.getDocId());
+        List<Long> rowIds = new ArrayList<Long>();
+        ResultSet rs = ps.executeQuery();
+        try {
+            while (rs.next()) {
+                NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
+                if (nodeIds.contains(nodeId))
+                    rowIds.add(Long.valueOf(rs.getLong("ROW_ID")));
+            }
+        } finally {
+            rs.close();
+        }
+        if (rowIds.isEmpty())
+            return queuedCount;
+        //Then a batch of deletions by primary key
+        PreparedStatement cellsPs = index.useCells() ? prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.CELL_TABLE_NAME + " WHERE ROW_ID = ?;"
+        ) : null;
+        ps = prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE ROW_ID = ?;"
+        );
+        boolean executed = false;
         try {
-            return ps.executeUpdate();
+            int batched = 0;
+            int count = 0;
+            for (Long rowId : rowIds) {
+                if (cellsPs != null) {
+                    cellsPs.setLong(1, rowId.longValue());
+                    cellsPs.addBatch();
+                }
+                ps.setLong(1, rowId.longValue());
+                ps.addBatch();
+                filterRemove(rowId.longValue());
+                if (++batched >= index.getBatchSize()) {
+                    count += executeDeletions(ps, cellsPs);
+                    batched = 0;
+                }
+            }
+            if (batched > 0)
+                count += executeDeletions(ps, cellsPs);
+            executed = true;
+            return count + queuedCount;
         } finally {
-            ps.close();
+            //The statements are cached : don't leave a pending batch
+            if (!executed) {
+                ps.clearBatch();
+                if (cellsPs != null)
+                    cellsPs.clearBatch();
+            }
         }
     }
 
+    /**
+     * Executes the batches of deletions and returns the number of rows deleted from the spatial table.
+     */
+    private int executeDeletions(PreparedStatement ps, PreparedStatement cellsPs) throws SQLException {
+        if (cellsPs != null)
+            cellsPs.executeBatch();
+        int count = 0;
+        int[] counts = ps.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+            //Some drivers don't report the number of rows
+            if (counts[i] == Statement.SUCCESS_NO_INFO)
+                count++;
+            else if (counts[i] > 0)
+                count += counts[i];
+        }
+        index.recordChanges(count);
+        return count;
+    }
+
     @Override
-    protected int removeCollection(Collection collection, Connection conn) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement(
-            "DELETE FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE SUBSTRING(DOCUMENT_URI, 1, ?) = ?;"
+    protected int removeDocument(DocumentImpl doc, Connection conn) throws SQLException {
+        return removeDocuments(doc.getDocId(), doc.getDocId(), conn);
+    }
+
+    /**
+     * Removes the rows of the documents whose IDs are in the given range.
+     * HSQLDB uses the DOC_ID index for a range, but scans the whole table for an IN list. 
+     * 
+     * @return the number of rows removed
+     */
+    private int removeDocuments(int firstDocId, int lastDocId, Connection conn) throws SQLException {
+        int[] range = new int[] { firstDocId, lastDocId };
+        int queuedCount = removeQueuedRows("DOC_ID BETWEEN ? AND ?", range, conn);
+        if (index.hasRowIdFilters()) {
+            PreparedStatement ps = prepareStatement(conn,
+                "SELECT ROW_ID FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID BETWEEN ? AND ?;"
+            );
+            ps.setInt(1, firstDocId);
+            ps.setInt(2, lastDocId);
+            filterRemove(ps);
+        }
+        if (index.useCells()) {
+            PreparedStatement ps = prepareCellRemoval("DOC_ID BETWEEN ? AND ?", conn);
+            ps.setInt(1, firstDocId);
+            ps.setInt(2, lastDocId);
+            removeCells(ps);
+        }
+        PreparedStatement ps = prepareStatement(conn,
+            "DELETE FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID BETWEEN ? AND ?;"
         ); 
-        ps.setInt(1, collection.getURI().toString().length());
-        ps.setString(2, collection.getURI().toString());
+        ps.setInt(1, firstDocId);
+        ps.setInt(2, lastDocId);
+        int count = ps.executeUpdate();
+        index.recordChanges(count);
+        return count + queuedCount;
+    }
+
+    @Override
+    protected int removeCollection(Collection collection, int[] docIds, Connection conn) throws SQLException {
+        //By DOC_ID rather than by COLLECTION_ID, which is only as fresh as the last reindex of the document.
+        //One set-based removal per run of consecutive IDs : the documents of a collection are mostly stored together
+        int[] sortedDocIds = docIds.clone();
+        Arrays.sort(sortedDocIds);
+        int count = 0;
+        int start = 0;
+        for (int i = 1; i <= sortedDocIds.length; i++) {
+            if (i == sortedDocIds.length || sortedDocIds[i] != sortedDocIds[i - 1] + 1) {
+                count += removeDocuments(sortedDocIds[start], sortedDocIds[i - 1], conn);
+                start = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records the removal from the R-tree and the envelope store of the rows selected by the given statement.
+     */
+    private void filterRemove(PreparedStatement ps) throws SQLException {
+        ResultSet rs = ps.executeQuery();
         try {
-            return ps.executeUpdate();
+            while (rs.next()) {
+                filterRemove(rs.getLong(1));
+            }
         } finally {
-            ps.close();
+            rs.close();
         }
     }
 
-    //Since an embedded HSQL has only one connection available (unless I'm totally dumb)
-    //acquire and release the connection from the index, which is *the* connection's owner 
+    //Acquire and release the connections from the index, which pools them
 
     @Override
     protected Connection acquireConnection() throws SQLException {
         return index.acquireConnection(this.broker);
     }
 
+    @Override
+    protected Connection acquireReadConnection() throws SQLException {
+        return index.acquireReadConnection(this.broker);
+    }
+
     @Override
     protected void releaseConnection(Connection conn) throws SQLException {
-        index.releaseConnection(this.broker);
+        index.releaseConnection(this.broker, conn);
     }
 
     @Override
-    protected NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException {
+    protected NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, int maxResults, Connection conn) throws SQLException {
+        //Prepared once for all the candidates
+        PreparedQueryGeometry query = new PreparedQueryGeometry(EPSG4326_geometry, spatialOp);
+        return search(broker, contextSet, query, EPSG4326_geometry.getEnvelopeInternal(), maxResults, conn);
+    }
+
+    @Override
+    protected NodeSet withinDistance(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, double metres, Connection conn) throws SQLException {
+        DistanceQueryGeometry query = new DistanceQueryGeometry(EPSG4326_geometry, metres);
+        //The filter step selects the geometries that intersect the widened envelope, on each side of the antimeridian
+        Envelope[] searchEnvelopes = query.getSearchEnvelopes();
+        NodeSet result = search(broker, contextSet, query, searchEnvelopes[0], -1, conn);
+        for (int i = 1; i < searchEnvelopes.length; i++) {
+            result = result.union(search(broker, contextSet, query, searchEnvelopes[i], -1, conn));
+        }
+        return result;
+    }
+
+    /**
+     * Searches the index with a prepared query.
+     * 
+     * @param EPSG4326_envelope the envelope of the filter step
+     */
+    private NodeSet search(DBBroker broker, NodeSet contextSet, PreparedQueryGeometry query, Envelope EPSG4326_envelope, int maxResults, Connection conn) throws SQLException {
+        int spatialOp = query.getSpatialOp();
+        SpatialRTree rtree = index.getRTree();
+        //During a bulk reindex, the last snapshot before it : the reindexed rows show up once it ends
+        if (rtree != null) {
+            SpatialRTree.Snapshot snapshot = rtree.getSnapshot();
+            if (snapshot.hasGeometries())
+                return search(broker, contextSet, query, EPSG4326_envelope, maxResults, snapshot);
+            return search(broker, contextSet, query, maxResults,
+                snapshot.search(EPSG4326_envelope, spatialOp), "R-tree", conn);
+        }
+        EnvelopeStore envelopeStore = index.getEnvelopeStore();
+        if (envelopeStore != null)
+            return search(broker, contextSet, query, maxResults,
+                envelopeStore.search(EPSG4326_envelope, spatialOp), "envelope store", conn);
+        if (index.useCells())
+            return search(broker, contextSet, query, maxResults,
+                searchCells(EPSG4326_envelope, conn), "cell index", conn);
+
         String extraSelection = null;
-        String bboxConstraint = null;
+        //Nothing much we can do with the BBox at this stage
+        if (spatialOp == SpatialOperator.DISJOINT)
+            //Retrieve the BBox though...
+            extraSelection = ", EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY";
+        String bboxConstraint = getBBoxConstraint(spatialOp);
+        AbstractGMLJDBCIndex.TableStatistics statistics = index.getTableStatistics(conn);
+        //The rows the search reads without the restriction to the documents of the context
+        double scannedRows = bboxConstraint == null ? statistics.getRowCount() : statistics.estimateWindowRows(EPSG4326_envelope);
+        boolean joinContext = contextSet != null && joinContextDocuments(contextSet.getDocumentSet(), scannedRows, statistics);
+        //Scan the Hilbert key ranges that cover the candidates' centres, then the geometries without a key
+        long[] keyRanges = null;
+        if (bboxConstraint != null && !joinContext) {
+            keyRanges = getHilbertKeyRanges(EPSG4326_envelope, spatialOp);
+            bboxConstraint = "(HILBERT_KEY BETWEEN ? AND ?) AND " + bboxConstraint;
+        }
+        if (joinContext)
+            setContextDocuments(contextSet.getDocumentSet(), conn);
+        String sql = "SELECT EPSG4326_WKB, S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID" + (extraSelection == null ? "" : extraSelection) +
+            getFromClause(joinContext) + (bboxConstraint == null ? "" : " WHERE " + bboxConstraint) + ";";
+        PreparedStatement ps = prepareStatement(conn, sql);
+        if (bboxConstraint != null) {
+            int first = keyRanges == null ? 1 : 3;
+            ps.setDouble(first, EPSG4326_envelope.getMinX());
+            ps.setDouble(first + 1, EPSG4326_envelope.getMaxX());
+            ps.setDouble(first + 2, EPSG4326_envelope.getMinY());
+            ps.setDouble(first + 3, EPSG4326_envelope.getMaxY());
+        }
+        ResultSet rs = null;
+        NodeSet result = null;
+        try { 
+            int disjointPostFiltered = 0;
+            int eligible = 0;
+            result = new ExtArrayNodeSet(); //new ExtArrayNodeSet(docs.getLength(), 250)
+            CandidateRefiner refiner = getRefiner(query, result, maxResults);
+            DocumentResolver documents = new DocumentResolver(broker, contextSet);
+            //The ranges are disjoint : a row can't be selected twice
+            for (int range = 0; range == 0 || (keyRanges != null && range < keyRanges.length); range += 2) {
+                if (keyRanges != null) {
+                    ps.setLong(1, keyRanges[range]);
+                    ps.setLong(2, keyRanges[range + 1]);
+                }
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    eligible++;
+                    NodeProxy p = getNodeProxy(documents, rs);
+                    if (p == null)
+                        continue;
+                    if (spatialOp == SpatialOperator.DISJOINT &&
+                        (rs.getDouble("EPSG4326_MAXX") < EPSG4326_envelope.getMinX() ||
+                        rs.getDouble("EPSG4326_MINX") > EPSG4326_envelope.getMaxX() ||
+                        rs.getDouble("EPSG4326_MAXY") < EPSG4326_envelope.getMinY() ||
+                        rs.getDouble("EPSG4326_MINY") > EPSG4326_envelope.getMaxY())) {
+                        //No BBox intersection : obviously disjoint
+                        refiner.addMatch(p);
+                        disjointPostFiltered++;
+                    } else
+                        //Possible match : check the geometry
+                        refiner.add(p, rs.getBytes("EPSG4326_WKB"));
+                }
+                rs.close();
+                rs = null;
+            }
+            refiner.finish();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(eligible + " eligible geometries, " + result.getItemCount() + "selected" +
+                    (keyRanges == null ? "" : " (" + (keyRanges.length / 2) + " Hilbert key ranges)") +
+                    (joinContext ? " (joined with " + contextSet.getDocumentSet().getDocumentCount() + " context documents)" : "") +
+                    (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : "") +
+                    (refiner.getRefinedInParallel() > 0 ? "(" + refiner.getRefinedInParallel() + " refined in parallel)" : "") +
+                    " (" + documents.getResolvedDocuments() + " documents resolved, " + documents.getSkippedRows() + " rows skipped)");
+            }
+            return result;
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+    }
 
-        //TODO : generate it in AbstractGMLJDBCIndexWorker
-        String docConstraint = "";
-        boolean refine_query_on_doc = false;
-        if (contextSet != null) {
-            if(contextSet.getDocumentSet().getDocumentCount() <= index.getMaxDocsInContextToRefineQuery()) {
-                refine_query_on_doc = true;
-                DocumentImpl doc;
-                Iterator<DocumentImpl> it = contextSet.getDocumentSet().getDocumentIterator();
-                doc  = it.next();
-                docConstraint = "(DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                while(it.hasNext()) {
-                    doc  = it.next();
-                    docConstraint = docConstraint + " OR (DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                }
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is enabled.");
+    /**
+     * Searches an R-tree snapshot whose entries carry their geometry and node : 
+     * the database is not queried at all, and the concurrent updates are not seen.
+     */
+    private NodeSet search(DBBroker broker, NodeSet contextSet, PreparedQueryGeometry query, Envelope EPSG4326_envelope, int maxResults, SpatialRTree.Snapshot snapshot) throws SQLException {
+        int spatialOp = query.getSpatialOp();
+        NodeSet result = new ExtArrayNodeSet();
+        CandidateRefiner refiner = getRefiner(query, result, maxResults);
+        DocumentResolver documents = new DocumentResolver(broker, contextSet);
+        int disjointPostFiltered = 0;
+        List<SpatialRTree.Entry> entries;
+        if (spatialOp == SpatialOperator.DISJOINT)
+            entries = snapshot.entries();
+        else
+            entries = snapshot.searchEntries(EPSG4326_envelope, spatialOp);
+        for (SpatialRTree.Entry entry : entries) {
+            NodeProxy p = documents.getNode(entry.getDocId(), entry.getCollectionId(), entry.getNodeIdUnits(), entry.getNodeId());
+            if (p == null)
+                continue;
+            if (spatialOp == SpatialOperator.DISJOINT && !entry.intersects(EPSG4326_envelope)) {
+                //No BBox intersection : obviously disjoint
+                refiner.addMatch(p);
+                disjointPostFiltered++;
+            } else
+                refiner.add(p, entry.getEPSG4326WKB());
+        }
+        refiner.finish();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(entries.size() + " geometries selected by the R-tree snapshot " + snapshot.getVersion() + ", " + 
+                result.getItemCount() + " selected" +
+                (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : "") +
+                (refiner.getRefinedInParallel() > 0 ? "(" + refiner.getRefinedInParallel() + " refined in parallel)" : "") +
+                    " (" + documents.getResolvedDocuments() + " documents resolved, " + documents.getSkippedRows() + " rows skipped)");
+        }
+        return result;
+    }
+
+    @Override
+    protected NodeSet bboxSearch(DBBroker broker, NodeSet contextSet, Envelope EPSG4326_envelope, int spatialOp, Connection conn) throws SQLException {
+        NodeSet result = new ExtArrayNodeSet();
+        DocumentResolver documents = new DocumentResolver(broker, contextSet);
+        SpatialRTree rtree = index.getRTree();
+        int eligible = 0;
+        String filter;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            //During a bulk reindex, the last snapshot before it. The other filters are not exact
+            if (rtree != null) {
+                SpatialRTree.Snapshot snapshot = rtree.getSnapshot();
+                filter = "R-tree snapshot " + snapshot.getVersion();
+                if (snapshot.hasGeometries()) {
+                    List<SpatialRTree.Entry> entries = snapshot.searchEntries(EPSG4326_envelope, spatialOp);
+                    eligible = entries.size();
+                    for (SpatialRTree.Entry entry : entries) {
+                        NodeProxy p = documents.getNode(entry.getDocId(), entry.getCollectionId(), entry.getNodeIdUnits(), entry.getNodeId());
+                        if (p != null)
+                            result.add(p);
+                    }
+                } else {
+                    long[] rowIds = snapshot.search(EPSG4326_envelope, spatialOp);
+                    eligible = rowIds.length;
+                    final NodeSet nodes = result;
+                    final DocumentResolver resolver = documents;
+                    readRows(rowIds, "S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID", contextSet, conn, new RowHandler() {
+                        public void handle(ResultSet rs) throws SQLException {
+                            NodeProxy p = getNodeProxy(resolver, rs);
+                            if (p != null)
+                                nodes.add(p);
+                        }
+                    });
                 }
             } else {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is disabled.");
+                AbstractGMLJDBCIndex.TableStatistics statistics = index.getTableStatistics(conn);
+                boolean joinContext = contextSet != null &&
+                    joinContextDocuments(contextSet.getDocumentSet(), statistics.estimateWindowRows(EPSG4326_envelope), statistics);
+                String bboxConstraint = getBBoxConstraint(spatialOp);
+                long[] keyRanges = null;
+                if (joinContext)
+                    setContextDocuments(contextSet.getDocumentSet(), conn);
+                else {
+                    keyRanges = getHilbertKeyRanges(EPSG4326_envelope, spatialOp);
+                    bboxConstraint = "(HILBERT_KEY BETWEEN ? AND ?) AND " + bboxConstraint;
+                }
+                filter = "envelope columns" + (joinContext ? " (joined with " + contextSet.getDocumentSet().getDocumentCount() + " context documents)" :
+                    " (" + (keyRanges.length / 2) + " Hilbert key ranges)");
+                ps = prepareStatement(conn,
+                    "SELECT S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID" + getFromClause(joinContext) + " WHERE " + bboxConstraint + ";"
+                );
+                int first = keyRanges == null ? 1 : 3;
+                ps.setDouble(first, EPSG4326_envelope.getMinX());
+                ps.setDouble(first + 1, EPSG4326_envelope.getMaxX());
+                ps.setDouble(first + 2, EPSG4326_envelope.getMinY());
+                ps.setDouble(first + 3, EPSG4326_envelope.getMaxY());
+                //The ranges are disjoint : a row can't be selected twice
+                for (int range = 0; range == 0 || (keyRanges != null && range < keyRanges.length); range += 2) {
+                    if (keyRanges != null) {
+                        ps.setLong(1, keyRanges[range]);
+                        ps.setLong(2, keyRanges[range + 1]);
+                    }
+                    rs = ps.executeQuery();
+                    while (rs.next()) {
+                        eligible++;
+                        NodeProxy p = getNodeProxy(documents, rs);
+                        if (p != null)
+                            result.add(p);
+                    }
+                    rs.close();
+                    rs = null;
+                }
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(eligible + " envelopes selected by the " + filter + ", " + result.getItemCount() + " selected" +
+                    " (" + documents.getResolvedDocuments() + " documents resolved, " + documents.getSkippedRows() + " rows skipped)");
+            }
+            return result;
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+    }
+
+    @Override
+    protected List<NodeProxy[]> join(DBBroker broker, NodeSet left, NodeSet right, int spatialOp, final Connection conn) throws SQLException {
+        //The WKB of the candidate pairs only, by batches
+        SpatialJoin join = new SpatialJoin(spatialOp, wkbReader, new SpatialJoin.WKBSource() {
+            public byte[][] getWKB(final long[] rowIds) throws SQLException {
+                final byte[][] wkbs = new byte[rowIds.length][];
+                int count = readRows(rowIds, "EPSG4326_WKB", null, conn, new RowHandler() {
+                    public void handle(ResultSet rs) throws SQLException {
+                        wkbs[Arrays.binarySearch(rowIds, rs.getLong("ROW_ID"))] = rs.getBytes("EPSG4326_WKB");
+                    }
+                });
+                if (count < rowIds.length) {
+                    for (int i = 0; i < rowIds.length; i++) {
+                        if (wkbs[i] == null)
+                            throw new SQLException("Missing geometry at row " + rowIds[i]);
+                    }
+                }
+                return wkbs;
+            }
+        });
+        SpatialRTree rtree = index.getRTree();
+        //During a bulk reindex, the last snapshot before it
+        SpatialRTree.Snapshot snapshot = rtree == null ? null : rtree.getSnapshot();
+        String filter;
+        Envelope leftExtent;
+        //Walking the whole snapshot costs more than reading the rows of a few documents
+        if (snapshot != null && snapshot.hasGeometries() && !joinContextDocuments(left.getDocumentSet(), conn)) {
+            //The database is not queried at all
+            filter = "R-tree snapshot " + snapshot.getVersion();
+            leftExtent = loadJoinSide(broker, left, snapshot.entries(), join, true);
+        } else {
+            leftExtent = loadJoinSide(broker, left, null, join, true, conn);
+            filter = null;
+        }
+        EnvelopeStore envelopeStore = index.getEnvelopeStore();
+        //Only the right geometries that may meet a left one
+        if (snapshot != null) {
+            if (filter == null)
+                filter = "R-tree snapshot " + snapshot.getVersion();
+            if (!leftExtent.isNull()) {
+                List<SpatialRTree.Entry> entries = snapshot.searchEntries(leftExtent, SpatialOperator.INTERSECTS);
+                if (snapshot.hasGeometries())
+                    loadJoinSide(broker, right, entries, join, false);
+                else
+                    loadJoinSide(broker, right, getContextRowIds(entries, right.getDocumentSet()), join, conn);
+            }
+        } else if (envelopeStore != null) {
+            filter = "envelope store";
+            if (!leftExtent.isNull())
+                loadJoinSide(broker, right, envelopeStore.search(leftExtent, SpatialOperator.INTERSECTS), join, conn);
+        } else {
+            filter = "envelope columns";
+            if (!leftExtent.isNull())
+                loadJoinSide(broker, right, leftExtent, join, false, conn);
+        }
+        List<NodeProxy[]> pairs = join.join();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(join.getLeftCount() + " x " + join.getRightCount() + " geometries joined, right ones selected by the " + filter + ", " +
+                join.getCandidates() + " candidate pairs, " + pairs.size() + " selected" +
+                " (" + join.getRead() + " geometries read, " + join.getDecoded() + " decoded)");
+        }
+        return pairs;
+    }
+
+    /**
+     * Returns the sorted row IDs of the entries that belong to the given documents.
+     */
+    private static long[] getContextRowIds(List<SpatialRTree.Entry> entries, DocumentSet docs) {
+        long[] rowIds = new long[entries.size()];
+        int count = 0;
+        for (SpatialRTree.Entry entry : entries) {
+            if (docs.contains(entry.getDocId()))
+                rowIds[count++] = entry.getRowId();
+        }
+        rowIds = Arrays.copyOf(rowIds, count);
+        Arrays.sort(rowIds);
+        return rowIds;
+    }
+
+    /**
+     * Reads the envelopes of the indexed geometries of one side of a join, without their WKB.
+     * 
+     * @param extent only the geometries whose envelope intersects it are read, or null for all of them
+     * @return the extent of the read geometries
+     */
+    private Envelope loadJoinSide(DBBroker broker, NodeSet nodes, Envelope extent, SpatialJoin join, boolean isLeft, Connection conn) throws SQLException {
+        AbstractGMLJDBCIndex.TableStatistics statistics = index.getTableStatistics(conn);
+        double scannedRows = extent == null ? statistics.getRowCount() : statistics.estimateWindowRows(extent);
+        boolean joinContext = joinContextDocuments(nodes.getDocumentSet(), scannedRows, statistics);
+        String bboxConstraint = null;
+        long[] keyRanges = null;
+        if (joinContext)
+            setContextDocuments(nodes.getDocumentSet(), conn);
+        if (extent != null) {
+            bboxConstraint = getBBoxConstraint(SpatialOperator.INTERSECTS);
+            //Scan the Hilbert key ranges that cover the candidates' centres, then the geometries without a key
+            if (!joinContext) {
+                keyRanges = getHilbertKeyRanges(extent, SpatialOperator.INTERSECTS);
+                bboxConstraint = "(HILBERT_KEY BETWEEN ? AND ?) AND " + bboxConstraint;
+            }
+        }
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT S.ROW_ID, S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID, " +
+            "EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY" + getFromClause(joinContext) + 
+            (bboxConstraint == null ? "" : " WHERE " + bboxConstraint) + ";"
+        );
+        if (extent != null) {
+            int first = keyRanges == null ? 1 : 3;
+            ps.setDouble(first, extent.getMinX());
+            ps.setDouble(first + 1, extent.getMaxX());
+            ps.setDouble(first + 2, extent.getMinY());
+            ps.setDouble(first + 3, extent.getMaxY());
+        }
+        Envelope loaded = new Envelope();
+        DocumentResolver documents = new DocumentResolver(broker, nodes);
+        ResultSet rs = null;
+        try {
+            //The ranges are disjoint : a row can't be selected twice
+            for (int range = 0; range == 0 || (keyRanges != null && range < keyRanges.length); range += 2) {
+                if (keyRanges != null) {
+                    ps.setLong(1, keyRanges[range]);
+                    ps.setLong(2, keyRanges[range + 1]);
+                }
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    NodeProxy p = getNodeProxy(documents, rs);
+                    if (p == null)
+                        continue;
+                    double minX = rs.getDouble("EPSG4326_MINX");
+                    double maxX = rs.getDouble("EPSG4326_MAXX");
+                    double minY = rs.getDouble("EPSG4326_MINY");
+                    double maxY = rs.getDouble("EPSG4326_MAXY");
+                    if (isLeft)
+                        join.addLeft(p, rs.getLong("ROW_ID"), null, minX, maxX, minY, maxY);
+                    else
+                        join.addRight(p, rs.getLong("ROW_ID"), null, minX, maxX, minY, maxY);
+                    loaded.expandToInclude(minX, minY);
+                    loaded.expandToInclude(maxX, maxY);
+                }
+                rs.close();
+                rs = null;
+            }
+            return loaded;
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+    }
+
+    /**
+     * Reads the envelopes of the right geometries of a join selected by an in-memory filter, without their WKB.
+     * 
+     * @param rowIds the rows selected by the filter
+     */
+    private void loadJoinSide(DBBroker broker, NodeSet nodes, long[] rowIds, final SpatialJoin join, Connection conn) throws SQLException {
+        final DocumentResolver documents = new DocumentResolver(broker, nodes);
+        readRows(rowIds, "S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID, EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY",
+            nodes, conn, new RowHandler() {
+                public void handle(ResultSet rs) throws SQLException {
+                    NodeProxy p = getNodeProxy(documents, rs);
+                    if (p != null)
+                        join.addRight(p, rs.getLong("ROW_ID"), null, rs.getDouble("EPSG4326_MINX"), rs.getDouble("EPSG4326_MAXX"),
+                            rs.getDouble("EPSG4326_MINY"), rs.getDouble("EPSG4326_MAXY"));
                 }
+            });
+    }
+
+    /**
+     * Reads one side of a join from the entries of an R-tree snapshot that carry their geometry and node.
+     * 
+     * @return the extent of the read geometries
+     */
+    private Envelope loadJoinSide(DBBroker broker, NodeSet nodes, List<SpatialRTree.Entry> entries, SpatialJoin join, boolean isLeft) {
+        Envelope loaded = new Envelope();
+        DocumentSet docs = nodes.getDocumentSet();
+        DocumentResolver documents = new DocumentResolver(broker, nodes);
+        for (SpatialRTree.Entry entry : entries) {
+            if (!docs.contains(entry.getDocId()))
+                continue;
+            NodeProxy p = documents.getNode(entry.getDocId(), entry.getCollectionId(), entry.getNodeIdUnits(), entry.getNodeId());
+            if (p == null)
+                continue;
+            if (isLeft)
+                join.addLeft(p, entry.getRowId(), entry.getEPSG4326WKB(), entry.minX, entry.maxX, entry.minY, entry.maxY);
+            else
+                join.addRight(p, entry.getRowId(), entry.getEPSG4326WKB(), entry.minX, entry.maxX, entry.minY, entry.maxY);
+            loaded.expandToInclude(entry.minX, entry.minY);
+            loaded.expandToInclude(entry.maxX, entry.maxY);
+        }
+        return loaded;
+    }
+
+    @Override
+    protected ValueSequence nearest(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int k, Connection conn) throws SQLException {
+        Envelope EPSG4326_envelope = EPSG4326_geometry.getEnvelopeInternal();
+        NearestNeighbours neighbours = new NearestNeighbours(EPSG4326_geometry, k);
+        DocumentResolver documents = new DocumentResolver(broker, contextSet);
+        DocumentSet contextDocs = contextSet == null ? null : contextSet.getDocumentSet();
+        SpatialRTree rtree = index.getRTree();
+        SpatialRTree.Snapshot snapshot;
+        //The rows of the context that are still to be visited, or -1 if unknown
+        int remaining = -1;
+        if (rtree != null) {
+            //During a bulk reindex, the last snapshot before it : the table may not have the same rows
+            snapshot = rtree.getSnapshot();
+            if (contextDocs != null && !index.isBulkLoading() && joinContextDocuments(contextDocs, conn))
+                remaining = countContextRows(contextDocs, conn);
+        } else {
+            //The envelopes of the context, walked in the same order as those of the R-tree
+            snapshot = readContextEnvelopes(contextSet, conn);
+            contextDocs = null;
+        }
+        int visited = 0;
+        int fetched = 0;
+        //The first batches are small : the k first neighbours may be enough to stop the walk
+        int batchSize = Math.min(k, ROW_BATCH_SIZE);
+        List<SpatialRTree.Entry> batch = new ArrayList<SpatialRTree.Entry>(batchSize);
+        try {
+            //Best-first traversal of the R-tree, until the context is exhausted
+            for (Iterator<SpatialRTree.Entry> it = snapshot.nearestEntries(EPSG4326_envelope); remaining != 0 && it.hasNext(); ) {
+                SpatialRTree.Entry entry = it.next();
+                if (neighbours.isComplete(entry.distance(EPSG4326_envelope)))
+                    break;
+                if (contextDocs != null && !contextDocs.contains(entry.getDocId()))
+                    continue;
+                visited++;
+                if (snapshot.hasGeometries()) {
+                    if (remaining > 0)
+                        remaining--;
+                    NodeProxy p = documents.getNode(entry.getDocId(), entry.getCollectionId(), entry.getNodeIdUnits(), entry.getNodeId());
+                    if (p != null)
+                        neighbours.add(p, wkbReader.read(entry.getEPSG4326WKB()));
+                    continue;
+                }
+                batch.add(entry);
+                if (batch.size() == batchSize) {
+                    int rows = readNeighbours(batch, EPSG4326_envelope, neighbours, documents, conn);
+                    fetched += batch.size();
+                    if (remaining > 0)
+                        remaining = Math.max(0, remaining - rows);
+                    batch.clear();
+                    batchSize = Math.min(batchSize * 2, ROW_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                readNeighbours(batch, EPSG4326_envelope, neighbours, documents, conn);
+                fetched += batch.size();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(visited + " geometries visited by the nearest neighbour search, " + fetched + " fetched, " + neighbours.getRefined() + " measured" +
+                    " (" + documents.getResolvedDocuments() + " documents resolved, " + documents.getSkippedRows() + " rows skipped)");
             }
+            return neighbours.getResult();
+        } catch (ParseException e) {
+            //Transforms the exception into an SQLException.
+            //Very unlikely to happen though...
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
         }
+    }
+
+    /**
+     * Reads the rows of a batch of entries of a nearest neighbour search, 
+     * and only decodes those whose envelope may still be closer than the neighbours found so far.
+     * 
+     * @return the number of rows read
+     */
+    private int readNeighbours(List<SpatialRTree.Entry> batch, final Envelope EPSG4326_envelope, final NearestNeighbours neighbours, 
+            final DocumentResolver documents, Connection conn) throws SQLException {
+        final long[] rowIds = new long[batch.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = batch.get(i).getRowId();
+        }
+        Arrays.sort(rowIds);
+        final double[] distances = new double[rowIds.length];
+        for (SpatialRTree.Entry entry : batch) {
+            distances[Arrays.binarySearch(rowIds, entry.getRowId())] = entry.distance(EPSG4326_envelope);
+        }
+        //The entries are already restricted to the context's documents
+        return readRows(rowIds, "EPSG4326_WKB, S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID", null, conn, new RowHandler() {
+            public void handle(ResultSet rs) throws SQLException {
+                int i = Arrays.binarySearch(rowIds, rs.getLong("ROW_ID"));
+                if (neighbours.isComplete(distances[i]))
+                    return;
+                NodeProxy p = getNodeProxy(documents, rs);
+                if (p == null)
+                    return;
+                try {
+                    neighbours.add(p, wkbReader.read(rs.getBytes("EPSG4326_WKB")));
+                } catch (ParseException e) {
+                    //Transforms the exception into an SQLException.
+                    SQLException ee = new SQLException(e.getMessage());
+                    ee.initCause(e);
+                    throw ee;
+                }
+            }
+        });
+    }
 
+    /**
+     * Reads the envelopes of the rows of the context, without their geometries, 
+     * into a temporary R-tree that walks them by increasing distance.
+     */
+    private SpatialRTree.Snapshot readContextEnvelopes(NodeSet contextSet, Connection conn) throws SQLException {
+        DocumentSet docs = contextSet == null ? null : contextSet.getDocumentSet();
+        boolean joinContext = docs != null && joinContextDocuments(docs, conn);
+        if (joinContext)
+            setContextDocuments(docs, conn);
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT S.ROW_ID, EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY, S.DOC_ID" + getFromClause(joinContext) + ";"
+        );
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        ResultSet rs = ps.executeQuery();
+        try {
+            while (rs.next()) {
+                int docId = rs.getInt(6);
+                if (docs != null && !joinContext && !docs.contains(docId))
+                    continue;
+                entries.add(new SpatialRTree.Entry(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5), docId));
+            }
+        } finally {
+            rs.close();
+        }
+        SpatialRTree tree = new SpatialRTree(SpatialRTree.DEFAULT_NODE_CAPACITY, false);
+        tree.load(entries);
+        return tree.getSnapshot();
+    }
+
+    /**
+     * Returns the number of rows of the documents of the context.
+     */
+    private int countContextRows(DocumentSet docs, Connection conn) throws SQLException {
+        setContextDocuments(docs, conn);
+        PreparedStatement ps = prepareStatement(conn, "SELECT COUNT(*)" + getFromClause(true) + ";");
+        ResultSet rs = ps.executeQuery();
+        try {
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Filter step using the cell index : collects the rows indexed under a cell
+     * that covers the query window, at every level that holds cells.
+     * 
+     * @return the sorted row IDs, a superset of the rows whose BBox intersects the window
+     */
+    private long[] searchCells(Envelope EPSG4326_envelope, Connection conn) throws SQLException {
+        long[] rowIds = new long[64];
+        int count = 0;
+        int levels = index.getCellLevels();
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT ROW_ID FROM " + GMLHSQLIndex.CELL_TABLE_NAME + " WHERE CELL_ID BETWEEN ? AND ?;"
+        );
+        ResultSet rs = null;
+        try {
+            for (int level = 0; level <= SpatialCells.MAX_LEVEL; level++) {
+                if ((levels & (1 << level)) == 0)
+                    continue;
+                long[] ranges = SpatialCells.ranges(EPSG4326_envelope, level, MAX_HILBERT_RANGES);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    ps.setLong(1, ranges[i]);
+                    ps.setLong(2, ranges[i + 1]);
+                    rs = ps.executeQuery();
+                    while (rs.next()) {
+                        if (count == rowIds.length)
+                            rowIds = Arrays.copyOf(rowIds, count * 2);
+                        rowIds[count++] = rs.getLong(1);
+                    }
+                    rs.close();
+                    rs = null;
+                }
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+        //A geometry may be indexed under several of the cells
+        Arrays.sort(rowIds, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || rowIds[unique - 1] != rowIds[i])
+                rowIds[unique++] = rowIds[i];
+        }
+        return Arrays.copyOf(rowIds, unique);
+    }
+
+    /**
+     * Searches the index using the given filter step result. Only the rows
+     * that pass the filter step are fetched, by their ROW_ID.
+     * 
+     * @param rowIds the sorted IDs of the rows that passed the filter step.
+     *  They include all the rows whose BBox intersects the query's one. 
+     * @param filter the name of the filter, for logging
+     */
+    private NodeSet search(DBBroker broker, NodeSet contextSet, PreparedQueryGeometry query, int maxResults, long[] rowIds, String filter, Connection conn) throws SQLException {
+        int spatialOp = query.getSpatialOp();
+        NodeSet result = new ExtArrayNodeSet();
+        CandidateRefiner refiner = getRefiner(query, result, maxResults);
+        DocumentResolver documents = new DocumentResolver(broker, contextSet);
+        int disjointPostFiltered = 0;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            if (spatialOp == SpatialOperator.DISJOINT) {
+                //The filter returned (at least) the rows whose BBox intersects the query's one : 
+                //all the other ones are obviously disjoint
+                ps = prepareStatement(conn,
+                    "SELECT EPSG4326_WKB, DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID, ROW_ID FROM " + GMLHSQLIndex.TABLE_NAME + ";"
+                );
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    NodeProxy p = getNodeProxy(documents, rs);
+                    if (p == null)
+                        continue;
+                    if (Arrays.binarySearch(rowIds, rs.getLong("ROW_ID")) < 0) {
+                        refiner.addMatch(p);
+                        disjointPostFiltered++;
+                    } else
+                        refiner.add(p, rs.getBytes("EPSG4326_WKB"));
+                }
+            } else {
+                final CandidateRefiner candidates = refiner;
+                final DocumentResolver resolver = documents;
+                readRows(rowIds, "EPSG4326_WKB, S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID", contextSet, conn, new RowHandler() {
+                    public void handle(ResultSet rs) throws SQLException {
+                        NodeProxy p = getNodeProxy(resolver, rs);
+                        if (p != null)
+                            candidates.add(p, rs.getBytes("EPSG4326_WKB"));
+                    }
+                });
+            }
+            refiner.finish();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(rowIds.length + " geometries selected by the " + filter + ", " + result.getItemCount() + " selected" +
+                    (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : "") +
+                    (refiner.getRefinedInParallel() > 0 ? "(" + refiner.getRefinedInParallel() + " refined in parallel)" : "") +
+                    " (" + documents.getResolvedDocuments() + " documents resolved, " + documents.getSkippedRows() + " rows skipped)");
+            }
+            return result;
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+    }
+
+    /**
+     * Returns the constraint of the filter step on the envelope columns, with the parameters 
+     * of the query envelope in the order MINX, MAXX, MINY, MAXY.
+     * 
+     * @return the constraint, or null if the envelopes can't filter anything
+     */
+    private static String getBBoxConstraint(int spatialOp) {
         switch (spatialOp) {
         //BBoxes are equal
         case SpatialOperator.EQUALS:
-            bboxConstraint = "(EPSG4326_MINX = ? AND EPSG4326_MAXX = ?)" +
+            return "(EPSG4326_MINX = ? AND EPSG4326_MAXX = ?)" +
                 " AND (EPSG4326_MINY = ? AND EPSG4326_MAXY = ?)";
-            break;
         //Nothing much we can do with the BBox at this stage
         case SpatialOperator.DISJOINT:
-            //Retrieve the BBox though...
-            extraSelection = ", EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY";
-            break;
+            return null;
         //BBoxes intersect themselves
         case SpatialOperator.INTERSECTS:
         case SpatialOperator.TOUCHES:
         case SpatialOperator.CROSSES:
         case SpatialOperator.OVERLAPS:
-            bboxConstraint = "(EPSG4326_MAXX >= ? AND EPSG4326_MINX <= ?)" +
+            return "(EPSG4326_MAXX >= ? AND EPSG4326_MINX <= ?)" +
             " AND (EPSG4326_MAXY >= ? AND EPSG4326_MINY <= ?)";
-            break;
         //BBox is fully within
         case SpatialOperator.WITHIN:
-            bboxConstraint = "(EPSG4326_MINX >= ? AND EPSG4326_MAXX <= ?)" +
+            return "(EPSG4326_MINX >= ? AND EPSG4326_MAXX <= ?)" +
             " AND (EPSG4326_MINY >= ? AND EPSG4326_MAXY <= ?)";
-            break;
         //BBox fully contains
         case SpatialOperator.CONTAINS: 
-            bboxConstraint = "(EPSG4326_MINX <= ? AND EPSG4326_MAXX >= ?)" +
+            return "(EPSG4326_MINX <= ? AND EPSG4326_MAXX >= ?)" +
             " AND (EPSG4326_MINY <= ? AND EPSG4326_MAXY >= ?)";
-            break;
         default:
             throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
         }
-        PreparedStatement ps = conn.prepareStatement(
-            "SELECT EPSG4326_WKB, DOCUMENT_URI, NODE_ID_UNITS, NODE_ID" + (extraSelection == null ? "" : extraSelection) +
-            " FROM " + GMLHSQLIndex.TABLE_NAME + 
-            (bboxConstraint == null ? 
-                (refine_query_on_doc ? " WHERE " + docConstraint : "") : 
-                " WHERE " +	(refine_query_on_doc ? "(" + docConstraint + ") AND " :	"") + bboxConstraint) + ";"
-        );
-        if (bboxConstraint != null) {
-            ps.setDouble(1, EPSG4326_geometry.getEnvelopeInternal().getMinX());
-            ps.setDouble(2, EPSG4326_geometry.getEnvelopeInternal().getMaxX());
-            ps.setDouble(3, EPSG4326_geometry.getEnvelopeInternal().getMinY());
-            ps.setDouble(4, EPSG4326_geometry.getEnvelopeInternal().getMaxY());
-        }
-        ResultSet rs = null;
-        NodeSet result = null;
-        try { 
-            int disjointPostFiltered = 0;
-            rs = ps.executeQuery();
-            result = new ExtArrayNodeSet(); //new ExtArrayNodeSet(docs.getLength(), 250)
-            while (rs.next()) {
-                DocumentImpl doc = null;
-                try {
-                    doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(rs.getString("DOCUMENT_URI")));        			
-                } catch (PermissionDeniedException e) {
-                    LOG.debug(e);
-                    //Ignore since the broker has no right on the document
-                    continue;
-                }
-                //contextSet == null should be used to scan the whole index
-                if (contextSet == null || refine_query_on_doc || contextSet.getDocumentSet().contains(doc.getDocId())) {
-                    NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0); 
-                    NodeProxy p = new NodeProxy(doc, nodeId);
-                    //Node is in the context : check if it is accurate
-                    //contextSet.contains(p) would have made more sense but there is a problem with
-                    //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
-                    if (contextSet == null || contextSet.get(p) != null) {
-                        boolean geometryMatches = false;
-                        if (spatialOp == SpatialOperator.DISJOINT) {
-                            //No BBox intersection : obviously disjoint
-                            if (rs.getDouble("EPSG4326_MAXX") < EPSG4326_geometry.getEnvelopeInternal().getMinX() ||
-                                rs.getDouble("EPSG4326_MINX") > EPSG4326_geometry.getEnvelopeInternal().getMaxX() ||
-                                rs.getDouble("EPSG4326_MAXY") < EPSG4326_geometry.getEnvelopeInternal().getMinY() ||
-                                rs.getDouble("EPSG4326_MINY") > EPSG4326_geometry.getEnvelopeInternal().getMaxY()) {
-                                geometryMatches = true;
-                                disjointPostFiltered++;	
-                            }
-                        }
-                        //Possible match : check the geometry
-                        if (!geometryMatches) {	
-                            try {
-                                Geometry geometry = wkbReader.read(rs.getBytes("EPSG4326_WKB"));
-                                switch (spatialOp) {
-                                case SpatialOperator.EQUALS:
-                                    geometryMatches = geometry.equals(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.DISJOINT:
-                                    geometryMatches = geometry.disjoint(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.INTERSECTS:
-                                    geometryMatches = geometry.intersects(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.TOUCHES:
-                                    geometryMatches = geometry.touches(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CROSSES:
-                                    geometryMatches = geometry.crosses(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.WITHIN:
-                                    geometryMatches = geometry.within(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CONTAINS:
-                                    geometryMatches = geometry.contains(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.OVERLAPS:
-                                    geometryMatches = geometry.overlaps(EPSG4326_geometry);
-                                    break;
-                                }
-                            } catch (ParseException e) {
-                                //Transforms the exception into an SQLException.
-                                //Very unlikely to happen though...
-                                SQLException ee = new SQLException(e.getMessage());
-                                ee.initCause(e);
-                                throw ee;
-                            }
-                        }
-                        if (geometryMatches)
-                            result.add(p);
+    }
+
+    /**
+     * Returns the Hilbert key ranges that cover the candidates' centres, 
+     * followed by the range of the geometries without a key.
+     */
+    private long[] getHilbertKeyRanges(Envelope EPSG4326_envelope, int spatialOp) {
+        long[] ranges = HilbertCurve.ranges(index.getHilbertWindow(EPSG4326_envelope, spatialOp), MAX_HILBERT_RANGES);
+        long[] keyRanges = Arrays.copyOf(ranges, ranges.length + 2);
+        keyRanges[ranges.length] = HilbertCurve.NO_KEY;
+        keyRanges[ranges.length + 1] = HilbertCurve.NO_KEY;
+        return keyRanges;
+    }
+
+    /**
+     * Handles the rows read by {@link #readRows(long[], String, NodeSet, Connection, RowHandler)}.
+     */
+    private interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Reads the rows of the spatial table selected by an in-memory filter, in batches : 
+     * the IDs of a batch are read as a range of ROW_ID when they are close enough, as a list otherwise.
+     * When the statistics say it is worth it, the rows are joined with the documents of the context, 
+     * so that the rows of the other documents are not read.
+     * 
+     * @param rowIds the sorted row IDs
+     * @param columns the selected columns, besides ROW_ID, those of the spatial table prefixed by S. if ambiguous
+     * @param contextSet the context of the query, or null
+     * @return how many rows were handled
+     */
+    private int readRows(long[] rowIds, String columns, NodeSet contextSet, Connection conn, RowHandler handler) throws SQLException {
+        if (rowIds.length == 0)
+            return 0;
+        boolean joinContext = contextSet != null &&
+            joinContextDocuments(contextSet.getDocumentSet(), rowIds.length, index.getTableStatistics(conn));
+        if (joinContext)
+            setContextDocuments(contextSet.getDocumentSet(), conn);
+        String select = "SELECT S.ROW_ID, " + columns + getFromClause(joinContext);
+        PreparedStatement range = prepareStatement(conn, select + " WHERE S.ROW_ID BETWEEN ? AND ?;");
+        PreparedStatement list = null;
+        int handled = 0;
+        for (int first = 0; first < rowIds.length; first += ROW_BATCH_SIZE) {
+            int last = Math.min(rowIds.length, first + ROW_BATCH_SIZE) - 1;
+            boolean isRange = rowIds[last] - rowIds[first] < (long)(last - first + 1) * ROW_RANGE_DENSITY;
+            PreparedStatement ps;
+            if (isRange) {
+                ps = range;
+                ps.setLong(1, rowIds[first]);
+                ps.setLong(2, rowIds[last]);
+            } else {
+                if (list == null) {
+                    StringBuilder parameters = new StringBuilder("?");
+                    for (int i = 1; i < ROW_BATCH_SIZE; i++) {
+                        parameters.append(", ?");
                     }
+                    list = prepareStatement(conn, select + " WHERE S.ROW_ID IN (" + parameters + ");");
+                }
+                ps = list;
+                //The last batch repeats its last ID
+                for (int i = 0; i < ROW_BATCH_SIZE; i++) {
+                    ps.setLong(i + 1, rowIds[Math.min(first + i, last)]);
                 }
             }
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(rs.getRow() + " eligible geometries, " + result.getItemCount() + "selected" +
-                    (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : ""));
+            ResultSet rs = ps.executeQuery();
+            try {
+                while (rs.next()) {
+                    //A range also holds the rows that were not selected
+                    if (isRange && Arrays.binarySearch(rowIds, first, last + 1, rs.getLong("ROW_ID")) < 0)
+                        continue;
+                    handler.handle(rs);
+                    handled++;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * Returns the node referenced by the current row of the result set,
+     * provided it is readable by the broker and belongs to the context set.
+     * 
+     * @return the node, or null
+     */
+    private NodeProxy getNodeProxy(DocumentResolver documents, ResultSet rs) throws SQLException {
+        return documents.getNode(rs.getInt("DOC_ID"), rs.getInt("COLLECTION_ID"), rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"));
+    }
+
+    /**
+     * Chooses whether a query that would otherwise scan the whole spatial table 
+     * should rather be joined with the documents of its context.
+     */
+    private boolean joinContextDocuments(DocumentSet docs, Connection conn) throws SQLException {
+        AbstractGMLJDBCIndex.TableStatistics statistics = index.getTableStatistics(conn);
+        return joinContextDocuments(docs, statistics.getRowCount(), statistics);
+    }
+
+    /**
+     * Chooses whether a query should be joined with the documents of its context, 
+     * by comparing the cost of the join with the number of rows the query reads otherwise.
+     * 
+     * @param scannedRows the estimated number of rows read without the join
+     */
+    private boolean joinContextDocuments(DocumentSet docs, double scannedRows, AbstractGMLJDBCIndex.TableStatistics statistics) {
+        int documentCount = docs.getDocumentCount();
+        //Each document is inserted in the temporary table, then each of its rows is looked up in the DOC_ID index
+        double joinCost = documentCount * DOCUMENT_INSERT_COST + statistics.estimateDocumentRows(documentCount) * ROW_LOOKUP_COST;
+        boolean join = joinCost < scannedRows;
+        if (LOG.isDebugEnabled())
+            LOG.debug("Query on " + documentCount + " documents " + (join ? "joined with them" : "filtered") + 
+                " (join cost " + (long)joinCost + ", " + (long)scannedRows + " rows read otherwise)");
+        return join;
+    }
+
+    /**
+     * Fills the connection's temporary table with the IDs of the given documents.
+     */
+    private void setContextDocuments(DocumentSet docs, Connection conn) throws SQLException {
+        //The rows of the temporary table are private to the connection, which may be a read-only one
+        boolean readOnly = conn.isReadOnly();
+        if (readOnly)
+            conn.setReadOnly(false);
+        try {
+            prepareStatement(conn, "DELETE FROM " + GMLHSQLIndex.CONTEXT_TABLE_NAME + ";").executeUpdate();
+            PreparedStatement ps = prepareStatement(conn,
+                "INSERT INTO " + GMLHSQLIndex.CONTEXT_TABLE_NAME + " (DOC_ID) VALUES (?);"
+            );
+            boolean executed = false;
+            try {
+                int batched = 0;
+                for (Iterator<DocumentImpl> it = docs.getDocumentIterator(); it.hasNext(); ) {
+                    ps.setInt(1, it.next().getDocId());
+                    ps.addBatch();
+                    if (++batched >= index.getBatchSize()) {
+                        ps.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0)
+                    ps.executeBatch();
+                executed = true;
+            } finally {
+                //The statements are cached : don't leave a pending batch
+                if (!executed)
+                    ps.clearBatch();
             }
-            return result;
         } finally {
-            if (rs != null)
-                rs.close();
-            if (ps != null)
-                ps.close();
+            if (readOnly)
+                conn.setReadOnly(true);
         }
     }
 
+    /**
+     * Returns the FROM clause of a query on the spatial table, aliased as S, 
+     * joined with the documents of the context if needed.
+     */
+    private static String getFromClause(boolean joinContext) {
+        if (joinContext)
+            return " FROM " + GMLHSQLIndex.CONTEXT_TABLE_NAME + " D INNER JOIN " + GMLHSQLIndex.TABLE_NAME + " S ON S.DOC_ID = D.DOC_ID";
+        return " FROM " + GMLHSQLIndex.TABLE_NAME + " S";
+    }
+
+    /**
+     * Returns the refinement step of a search, which runs on the index's shared pool 
+     * when there are enough candidates.
+     */
+    private CandidateRefiner getRefiner(PreparedQueryGeometry query, NodeSet result, int maxResults) {
+        return new CandidateRefiner(query, result, wkbReader, index.getRefinementPool(), index.getParallelRefinementThreshold(), maxResults);
+    }
+
     @Override
     protected Map<Geometry, String> getGeometriesForDocument(DocumentImpl doc, Connection conn) throws SQLException {       	
-        PreparedStatement ps = conn.prepareStatement(
-            "SELECT EPSG4326_WKB, EPSG4326_WKT FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOCUMENT_URI = ?;"
-        ); 
-        ps.setString(1, doc.getURI().toString());
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT EPSG4326_WKB, EPSG4326_WKT FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID = ?;"
+        );
+        ps.setInt(1, doc.getDocId());
         ResultSet rs = null;
         try {
             rs = ps.executeQuery();
@@ -380,19 +1401,17 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         } finally {
             if (rs != null)
                 rs.close();
-            if (ps != null)
-                ps.close();
         }
     }
 
     @Override
     protected Geometry getGeometryForNode(DBBroker broker, NodeProxy p, boolean getEPSG4326, Connection conn) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement(
+        PreparedStatement ps = prepareStatement(conn,
             "SELECT " + (getEPSG4326 ? "EPSG4326_WKB" : "WKB") +
             " FROM " + GMLHSQLIndex.TABLE_NAME + 
-            " WHERE DOCUMENT_URI = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?;"
+            " WHERE DOC_ID = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?;"
         );
-        ps.setString(1, p.getDoc().getURI().toString());
+        ps.setInt(1, p.getDoc().getDocId());
         ps.setInt(2, p.getNodeId().units());
         byte[] bytes = new byte[p.getNodeId().size()];
         p.getNodeId().serialize(bytes, 0);
@@ -418,61 +1437,28 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         } finally {
             if (rs != null)
                 rs.close();
-            ps.close();
         }
     }
     
     @Override
     protected Geometry[] getGeometriesForNodes(DBBroker broker, NodeSet contextSet, boolean getEPSG4326, Connection conn) throws SQLException {
-        //TODO : generate it in AbstractGMLJDBCIndexWorker
-        String docConstraint = "";
-        boolean refine_query_on_doc = false;
-        if (contextSet != null) {
-            if(contextSet.getDocumentSet().getDocumentCount() <= index.getMaxDocsInContextToRefineQuery()) {
-                DocumentImpl doc;
-                Iterator<DocumentImpl> it = contextSet.getDocumentSet().getDocumentIterator();
-                doc  = it.next();
-                docConstraint = "(DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                while(it.hasNext()) {
-                    doc  = it.next();
-                    docConstraint = docConstraint + " OR (DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                }
-            }
-        }
-
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Refine query on documents is " + (refine_query_on_doc ? "enabled." : "disabled."));
-        }
-
-        PreparedStatement ps = conn.prepareStatement(
-            "SELECT " + (getEPSG4326 ? "EPSG4326_WKB" : "WKB") + ", DOCUMENT_URI, NODE_ID_UNITS, NODE_ID" +
-            " FROM " + GMLHSQLIndex.TABLE_NAME + (refine_query_on_doc ? " WHERE " + docConstraint : "")
+        boolean joinContext = joinContextDocuments(contextSet.getDocumentSet(), conn);
+        if (joinContext)
+            setContextDocuments(contextSet.getDocumentSet(), conn);
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT " + (getEPSG4326 ? "EPSG4326_WKB" : "WKB") + ", S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID" + getFromClause(joinContext) + ";"
         );
         ResultSet rs = null;
         try {
             rs = ps.executeQuery();
             Geometry[] result = new Geometry[contextSet.getLength()];
             int index= 0;
+            DocumentResolver documents = new DocumentResolver(broker, contextSet);
             while (rs.next()) {
-                DocumentImpl doc = null;
-                try {
-                    doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(rs.getString("DOCUMENT_URI")));        			
-                } catch (PermissionDeniedException e) {
-                    LOG.debug(e);
-                    result[index++] = null;
-                    //Ignore since the broker has no right on the document
-                    continue;
-                }
-                if (contextSet == null || refine_query_on_doc || contextSet.getDocumentSet().contains(doc.getDocId())) {
-                    NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0); 
-                    NodeProxy p = new NodeProxy(doc, nodeId);
-                    //Node is in the context : check if it is accurate
-                    //contextSet.contains(p) would have made more sense but there is a problem with
-                    //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
-                    if (contextSet.get(p) != null) {
-                        Geometry geometry = wkbReader.read(rs.getBytes(1));
-                        result[index++] = geometry;
-                    }
+                NodeProxy p = getNodeProxy(documents, rs);
+                if (p != null) {
+                    Geometry geometry = wkbReader.read(rs.getBytes(1));
+                    result[index++] = geometry;
                 }
             }
             return result;
@@ -485,19 +1471,17 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         } finally {
             if (rs != null)
                 rs.close();
-            if (ps != null)
-                ps.close();
         }
     }
 
     @Override
     protected AtomicValue getGeometricPropertyForNode(XQueryContext context, NodeProxy p, Connection conn, String propertyName) throws SQLException, XPathException {
-        PreparedStatement ps = conn.prepareStatement(
+        PreparedStatement ps = prepareStatement(conn,
             "SELECT " + propertyName + 
             " FROM " + GMLHSQLIndex.TABLE_NAME + 
-            " WHERE DOCUMENT_URI = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?"
+            " WHERE DOC_ID = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?"
         );
-        ps.setString(1, p.getDoc().getURI().toString());
+        ps.setInt(1, p.getDoc().getDocId());
         ps.setInt(2, p.getNodeId().units());
         byte[] bytes = new byte[p.getNodeId().size()];
         p.getNodeId().serialize(bytes, 0);
@@ -527,38 +1511,16 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         } finally {
             if (rs != null)
                 rs.close();
-            ps.close();
         }
     }
 
     @Override
     protected ValueSequence getGeometricPropertyForNodes(XQueryContext context, NodeSet contextSet, Connection conn, String propertyName) throws SQLException, XPathException {
-        //TODO : generate it in AbstractGMLJDBCIndexWorker
-        String docConstraint = "";
-        boolean refine_query_on_doc = false;
-        if (contextSet != null) {
-            if(contextSet.getDocumentSet().getDocumentCount() <= index.getMaxDocsInContextToRefineQuery()) {
-                DocumentImpl doc;
-                Iterator<DocumentImpl> it = contextSet.getDocumentSet().getDocumentIterator();
-                doc  = it.next();
-                docConstraint = "(DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                while(it.hasNext()) {
-                    doc = it.next();
-                    docConstraint = docConstraint + " OR (DOCUMENT_URI = '" + doc.getURI().toString() + "')";
-                }
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is enabled.");
-                }
-            } else {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Refine query on documents is disabled.");
-                }
-            }
-        }
-
-        PreparedStatement ps = conn.prepareStatement(
-            "SELECT " + propertyName + ", DOCUMENT_URI, NODE_ID_UNITS, NODE_ID" + 
-            " FROM " + GMLHSQLIndex.TABLE_NAME + (refine_query_on_doc ? " WHERE " + docConstraint : "")
+        boolean joinContext = contextSet != null && joinContextDocuments(contextSet.getDocumentSet(), conn);
+        if (joinContext)
+            setContextDocuments(contextSet.getDocumentSet(), conn);
+        PreparedStatement ps = prepareStatement(conn,
+            "SELECT " + propertyName + ", S.DOC_ID, COLLECTION_ID, NODE_ID_UNITS, NODE_ID" + getFromClause(joinContext) + ";"
         );
         ResultSet rs = null;
         try {
@@ -568,52 +1530,26 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
                 result = new ValueSequence();
             else
                 result = new ValueSequence(contextSet.getLength());
+            DocumentResolver documents = new DocumentResolver(context.getBroker(), contextSet);
             while (rs.next()) {
-                DocumentImpl doc = null;
-                try {
-                    doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(rs.getString("DOCUMENT_URI")));        			
-                } catch (PermissionDeniedException e) {
-                    LOG.debug(e);
-                    //Untested, but that is roughly what should be returned.
+                NodeProxy p = getNodeProxy(documents, rs);
+                if (p != null) {
                     if (rs.getMetaData().getColumnClassName(1).equals(Boolean.class.getName())) {
-                        result.add(AtomicValue.EMPTY_VALUE);
+                        result.add(new BooleanValue(rs.getBoolean(1)));
                     } else if (rs.getMetaData().getColumnClassName(1).equals(Double.class.getName())) {
-                        result.add(AtomicValue.EMPTY_VALUE);
+                        result.add(new DoubleValue(rs.getDouble(1)));
                     } else if (rs.getMetaData().getColumnClassName(1).equals(String.class.getName())) {
-                        result.add(AtomicValue.EMPTY_VALUE);
+                        result.add(new StringValue(rs.getString(1)));
                     } else if (rs.getMetaData().getColumnType(1) == java.sql.Types.BINARY) {
-                        result.add(AtomicValue.EMPTY_VALUE);
+                        result.add(BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new ByteArrayInputStream(rs.getBytes(1))));
                     } else 
                         throw new SQLException("Unable to make an atomic value from '" + rs.getMetaData().getColumnClassName(1) + "'");
-                    //Ignore since the broker has no right on the document
-                    continue;
-                }
-                if (contextSet.getDocumentSet().contains(doc.getDocId())) {
-                    NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
-                    NodeProxy p = new NodeProxy(doc, nodeId);
-                    //Node is in the context : check if it is accurate
-                    //contextSet.contains(p) would have made more sense but there is a problem with
-                    //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
-                    if (contextSet.get(p) != null) {
-                        if (rs.getMetaData().getColumnClassName(1).equals(Boolean.class.getName())) {
-                            result.add(new BooleanValue(rs.getBoolean(1)));
-                        } else if (rs.getMetaData().getColumnClassName(1).equals(Double.class.getName())) {
-                            result.add(new DoubleValue(rs.getDouble(1)));
-                        } else if (rs.getMetaData().getColumnClassName(1).equals(String.class.getName())) {
-                            result.add(new StringValue(rs.getString(1)));
-                        } else if (rs.getMetaData().getColumnType(1) == java.sql.Types.BINARY) {
-                            result.add(BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new ByteArrayInputStream(rs.getBytes(1))));
-                        } else 
-                            throw new SQLException("Unable to make an atomic value from '" + rs.getMetaData().getColumnClassName(1) + "'");
-                    }
                 }
             }
             return result;
         } finally {
             if (rs != null)
                 rs.close();
-            if (ps != null)
-                ps.close();
         }
     }
 
@@ -625,7 +1561,11 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         ResultSet rs = null;
         try {
             rs = ps.executeQuery();
+            int rowCount = 0;
+            //Each document is resolved once
+            DocumentResolver documents = new DocumentResolver(broker, null);
             while (rs.next()) {
+                rowCount++;
                 Geometry original_geometry = wkbReader.read(rs.getBytes("WKB"));
                 if (!original_geometry.equals(wktReader.read(rs.getString("WKT")))) {
                     LOG.info("Inconsistent WKT : " + rs.getString("WKT"));
@@ -721,12 +1661,9 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
                     return false;
                 }
 
-                DocumentImpl doc = null;
-                try {
-                    doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(rs.getString("DOCUMENT_URI")));
-                } catch (PermissionDeniedException e) {
-                    //The broker has no right on the document
-                    LOG.error(e);
+                DocumentImpl doc = documents.getDocument(rs.getInt("DOC_ID"), rs.getInt("COLLECTION_ID"));
+                if (doc == null) {
+                    LOG.info("Document " + rs.getInt("DOC_ID") + " doesn't exist or isn't readable");
                     return false;
                 }
                 NodeId nodeId = new DLN(rs.getInt("NODE_ID_UNITS"), rs.getBytes("NODE_ID"), 0);
@@ -753,6 +1690,16 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
                 }
                 LOG.info(node);
             }
+            SpatialRTree rtree = index.getRTree();
+            if (rtree != null && !index.isBulkLoading() && rtree.size() != rowCount) {
+                LOG.info("Inconsistent R-tree: " + rtree.size() + " entries for " + rowCount + " rows");
+                return false;
+            }
+            EnvelopeStore envelopeStore = index.getEnvelopeStore();
+            if (envelopeStore != null && envelopeStore.size() != rowCount) {
+                LOG.info("Inconsistent envelope store: " + envelopeStore.size() + " entries for " + rowCount + " rows");
+                return false;
+            }
             return true;
 
         } catch (ParseException e) {
@@ -36,6 +36,9 @@ public class GMLIndexConfig {
 
     private final static String FLUSH_AFTER = "flushAfter";	
     private int flushAfter = -1;
+    private final static String CELL_DEPTH = "cellDepth";
+    public final static int DEFAULT_CELL_DEPTH = 12;
+    private int cellDepth = DEFAULT_CELL_DEPTH;
 
     public GMLIndexConfig(Map<String, String> namespaces, Element node) {
         String param = node.getAttribute(FLUSH_AFTER);
@@ -46,9 +49,27 @@ public class GMLIndexConfig {
                 LOG.info("Invalid value for '" + FLUSH_AFTER + "'", e);
             }
         }
+        param = node.getAttribute(CELL_DEPTH);
+        if (param != null && !"".equals(param)) {
+            try {
+                cellDepth = Math.max(0, Math.min(SpatialCells.MAX_LEVEL, Integer.parseInt(param)));
+            } catch (NumberFormatException e) {
+                LOG.info("Invalid value for '" + CELL_DEPTH + "'", e);
+            }
+        }
     }
 
     public int getFlushAfter() {
         return flushAfter;
     }
+
+    /**
+     * Returns the deepest quadtree level under which the geometries are indexed
+     * in the cell index.
+     * 
+     * @return the level
+     */
+    public int getCellDepth() {
+        return cellDepth;
+    }
 }
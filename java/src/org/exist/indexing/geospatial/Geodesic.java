@@ -0,0 +1,241 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+
+/**
+ * Distances in metres on the WGS84 ellipsoid, between EPSG:4326 coordinates
+ * (X is the longitude, Y the latitude, in degrees).
+ */
+public class Geodesic {
+
+    //WGS84
+    private final static double SEMI_MAJOR_AXIS = 6378137.0;
+    private final static double FLATTENING = 1 / 298.257223563;
+    private final static double SEMI_MINOR_AXIS = SEMI_MAJOR_AXIS * (1 - FLATTENING);
+    //The smallest radius of curvature of a meridian, at the equator
+    private final static double MIN_MERIDIAN_RADIUS = SEMI_MAJOR_AXIS * (1 - FLATTENING) * (1 - FLATTENING);
+    private final static double MEAN_RADIUS = 6371008.8;
+    //Don't flatten the plane of the closest points near the poles
+    private final static double MIN_LONGITUDE_SCALE = 0.01;
+    private final static int MAX_ITERATIONS = 100;
+
+    private Geodesic() {
+        //Utility class
+    }
+
+    /**
+     * Returns the length of the geodesic between two points, by Vincenty's inverse formula.
+     * The formula doesn't converge for nearly antipodal points : their distance is computed on the sphere.
+     *
+     * @param lon1 the longitude of the first point
+     * @param lat1 the latitude of the first point
+     * @param lon2 the longitude of the second point
+     * @param lat2 the latitude of the second point
+     * @return the distance in metres
+     */
+    public static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double L = Math.toRadians(lon2 - lon1);
+        double U1 = Math.atan((1 - FLATTENING) * Math.tan(Math.toRadians(lat1)));
+        double U2 = Math.atan((1 - FLATTENING) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
+        double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
+        double lambda = L;
+        double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+        int iterations = 0;
+        while (true) {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double a = cosU2 * sinLambda;
+            double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(a * a + b * b);
+            //Coincident points
+            if (sinSigma == 0)
+                return 0;
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1 - sinAlpha * sinAlpha;
+            //On the equator
+            cos2SigmaM = cos2Alpha == 0 ? 0 : cosSigma - 2 * sinU1 * sinU2 / cos2Alpha;
+            double C = FLATTENING / 16 * cos2Alpha * (4 + FLATTENING * (4 - 3 * cos2Alpha));
+            double previous = lambda;
+            lambda = L + (1 - C) * FLATTENING * sinAlpha *
+                (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previous) < 1e-12)
+                break;
+            if (++iterations >= MAX_ITERATIONS)
+                return sphericalDistance(lon1, lat1, lon2, lat2);
+        }
+        double u2 = cos2Alpha * (SEMI_MAJOR_AXIS * SEMI_MAJOR_AXIS - SEMI_MINOR_AXIS * SEMI_MINOR_AXIS) / (SEMI_MINOR_AXIS * SEMI_MINOR_AXIS);
+        double A = 1 + u2 / 16384 * (4096 + u2 * (-768 + u2 * (320 - 175 * u2)));
+        double B = u2 / 1024 * (256 + u2 * (-128 + u2 * (74 - 47 * u2)));
+        double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM) -
+            B / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+        return SEMI_MINOR_AXIS * A * (sigma - deltaSigma);
+    }
+
+    /**
+     * Returns the great-circle distance between two points on the sphere of the mean radius.
+     *
+     * @return the distance in metres
+     */
+    public static double sphericalDistance(double lon1, double lat1, double lon2, double lat2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * MEAN_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Returns the envelopes that contain every point within some distance of an envelope.
+     *
+     * The latitudes are widened by the distance along the meridian where a degree is the shortest.
+     * The longitudes are widened by the distance along the parallel of the widened envelope
+     * that is the farthest from the equator, where a degree is the shortest,
+     * up to the whole range when it reaches a pole.
+     * When the widened longitudes cross the antimeridian, they wrap around it :
+     * the search envelope is then split in two, one on each side.
+     *
+     * @param EPSG4326_envelope the envelope
+     * @param metres the distance
+     * @return one envelope, or two when the antimeridian is crossed
+     */
+    public static Envelope[] expand(Envelope EPSG4326_envelope, double metres) {
+        double dLat = Math.toDegrees(metres / MIN_MERIDIAN_RADIUS);
+        double minY = Math.max(-90.0, EPSG4326_envelope.getMinY() - dLat);
+        double maxY = Math.min(90.0, EPSG4326_envelope.getMaxY() + dLat);
+        double maxLat = Math.max(Math.abs(minY), Math.abs(maxY));
+        if (maxLat < 90.0) {
+            double dLon = Math.toDegrees(metres / (SEMI_MAJOR_AXIS * Math.cos(Math.toRadians(maxLat))));
+            double minX = EPSG4326_envelope.getMinX() - dLon;
+            double maxX = EPSG4326_envelope.getMaxX() + dLon;
+            if (maxX - minX < 360.0) {
+                if (minX < -180.0)
+                    return new Envelope[] { new Envelope(-180.0, maxX, minY, maxY), new Envelope(minX + 360.0, 180.0, minY, maxY) };
+                if (maxX > 180.0)
+                    return new Envelope[] { new Envelope(minX, 180.0, minY, maxY), new Envelope(-180.0, maxX - 360.0, minY, maxY) };
+                return new Envelope[] { new Envelope(minX, maxX, minY, maxY) };
+            }
+        }
+        return new Envelope[] { new Envelope(-180.0, 180.0, minY, maxY) };
+    }
+
+    /**
+     * Returns a lower bound of the geodesic distance between the points of two envelopes.
+     *
+     * The latitudes are at least as far apart as the gap between the envelopes, along the meridian
+     * where a degree is the shortest. The longitudes are at least as far apart as the gap between them,
+     * the shortest way round, along the parallel of either envelope that is the farthest from the equator.
+     * The bound is the larger of both. It never decreases when an envelope shrinks.
+     *
+     * @return the distance in metres, 0 if the envelopes intersect
+     */
+    public static double minDistance(double minX, double maxX, double minY, double maxY, Envelope EPSG4326_envelope) {
+        double dx = Math.max(0, Math.max(EPSG4326_envelope.getMinX() - maxX, minX - EPSG4326_envelope.getMaxX()));
+        double dy = Math.max(0, Math.max(EPSG4326_envelope.getMinY() - maxY, minY - EPSG4326_envelope.getMaxY()));
+        //Across the antimeridian
+        dx = Math.min(dx, Math.max(0, 360.0 - (Math.max(maxX, EPSG4326_envelope.getMaxX()) - Math.min(minX, EPSG4326_envelope.getMinX()))));
+        double maxLat = Math.min(90.0, Math.max(Math.max(Math.abs(minY), Math.abs(maxY)),
+            Math.max(Math.abs(EPSG4326_envelope.getMinY()), Math.abs(EPSG4326_envelope.getMaxY()))));
+        double lonAngle = 2 * Math.asin(Math.min(1, Math.cos(Math.toRadians(maxLat)) * Math.sin(Math.toRadians(Math.min(dx, 180.0)) / 2)));
+        return Math.max(Math.toRadians(dy), lonAngle) * MIN_MERIDIAN_RADIUS;
+    }
+
+    /**
+     * Returns a lower bound of the geodesic distance between two geometries, from their distance
+     * in a plane where their longitudes are scaled.
+     *
+     * Between two points whose latitudes differ by dy and longitudes by dx, the haversine of the angle
+     * is at least hav(dy) + cos²(M) hav(dx), where M is the largest latitude of both envelopes.
+     * As the sine is concave, sin(x / 2) is at least x / 2 times the sinc of the half extent of the envelopes.
+     * The scaled distance is thus turned into an angle : its longitudes are shortened by the ratio of cos(M)
+     * to the scale when the scale is the larger, while its latitudes keep at least the gap between the envelopes,
+     * and the whole is shortened by the sinc when the envelopes are wide.
+     *
+     * @param scaledDistance the distance between the geometries in the scaled plane, in degrees
+     * @param scale the scale of the longitudes
+     * @param EPSG4326_envelope1 the envelope of the first geometry
+     * @param EPSG4326_envelope2 the envelope of the second geometry, on the same side of the antimeridian
+     * @return the distance in metres
+     */
+    public static double minDistance(double scaledDistance, double scale, Envelope EPSG4326_envelope1, Envelope EPSG4326_envelope2) {
+        double maxLat = Math.min(90.0, Math.max(
+            Math.max(Math.abs(EPSG4326_envelope1.getMinY()), Math.abs(EPSG4326_envelope1.getMaxY())),
+            Math.max(Math.abs(EPSG4326_envelope2.getMinY()), Math.abs(EPSG4326_envelope2.getMaxY()))));
+        double ratio = Math.min(1, Math.cos(Math.toRadians(maxLat)) / scale);
+        double width = Math.min(180.0, Math.max(EPSG4326_envelope1.getMaxX(), EPSG4326_envelope2.getMaxX()) -
+            Math.min(EPSG4326_envelope1.getMinX(), EPSG4326_envelope2.getMinX()));
+        double height = Math.max(EPSG4326_envelope1.getMaxY(), EPSG4326_envelope2.getMaxY()) -
+            Math.min(EPSG4326_envelope1.getMinY(), EPSG4326_envelope2.getMinY());
+        double gap = Math.max(0, Math.max(EPSG4326_envelope1.getMinY() - EPSG4326_envelope2.getMaxY(),
+            EPSG4326_envelope2.getMinY() - EPSG4326_envelope1.getMaxY()));
+        //Only the longitudes are shortened : the latitudes are at least as far apart as the gap
+        double planar = Math.sqrt(ratio * ratio * scaledDistance * scaledDistance + (1 - ratio * ratio) * gap * gap);
+        double sinc = Math.min(sinc(Math.toRadians(width) / 2), sinc(Math.toRadians(height) / 2));
+        double angle = 2 * Math.asin(Math.min(1, sinc * Math.toRadians(planar) / 2));
+        return angle * MIN_MERIDIAN_RADIUS;
+    }
+
+    /**
+     * Returns the scale of the longitudes in a plane where a degree of longitude is about as long as
+     * a degree of latitude, around the middle latitude of an envelope.
+     */
+    public static double getLongitudeScale(Envelope EPSG4326_envelope) {
+        double lat = (EPSG4326_envelope.getMinY() + EPSG4326_envelope.getMaxY()) / 2;
+        return Math.max(MIN_LONGITUDE_SCALE, Math.cos(Math.toRadians(lat)));
+    }
+
+    /**
+     * Returns a copy of a geometry whose longitudes are scaled.
+     */
+    public static Geometry scaleLongitudes(Geometry EPSG4326_geometry, double scale) {
+        Geometry scaled = (Geometry) EPSG4326_geometry.clone();
+        scaled.apply(AffineTransformation.scaleInstance(scale, 1));
+        scaled.geometryChanged();
+        return scaled;
+    }
+
+    /**
+     * Returns the geodesic distance between the closest points of two geometries, as found in a plane
+     * where their longitudes are scaled. Away from the latitude of the scale, the points found may not be
+     * the closest ones on the ellipsoid : the distance is then a bit more than the exact one.
+     *
+     * @param scaled1 the first geometry, with scaled longitudes
+     * @param scaled2 the second geometry, with scaled longitudes
+     * @param scale the scale of the longitudes
+     * @return the distance in metres
+     */
+    public static double distance(Geometry scaled1, Geometry scaled2, double scale) {
+        Coordinate[] closest = DistanceOp.closestPoints(scaled1, scaled2);
+        return distance(closest[0].x / scale, closest[0].y, closest[1].x / scale, closest[1].y);
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(x) / x;
+    }
+}
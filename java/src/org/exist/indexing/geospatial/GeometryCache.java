@@ -0,0 +1,289 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exist.numbering.NodeId;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A least recently used cache of the decoded geometries of the indexed nodes, shared by all the workers.
+ *
+ * The geometries are keyed by document, node and SRS (original or EPSG:4326). The cache is bounded
+ * by the total number of coordinates of its geometries. The updates of a document invalidate its geometries ;
+ * a geometry read from the database before an invalidation of its segment is not cached after it. The cached geometries
+ * are shared and must not be modified.
+ *
+ * The cache is split into segments by document, each with its own lock, its own share of the capacity
+ * and its own LRU order, so that the concurrent queries don't contend on a single monitor.
+ * The eviction order is thus only approximately the global LRU one.
+ */
+public class GeometryCache {
+
+    private final static int MAX_SEGMENTS = 16;
+    //The capacity of a segment, at least, when there are several of them
+    private final static long MIN_SEGMENT_CAPACITY = 16384;
+
+    private final long capacity;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity the maximal number of coordinates of the cached geometries
+     */
+    public GeometryCache(long capacity) {
+        this.capacity = capacity;
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY)
+            count *= 2;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count);
+        }
+    }
+
+    /**
+     * Returns the version to pass to {@link #put(int, NodeId, boolean, Geometry, long)},
+     * read before the geometry is read from the database.
+     * 
+     * @param docId the document of the geometry
+     */
+    public long getVersion(int docId) {
+        return getSegment(docId).version;
+    }
+
+    /**
+     * Returns a cached geometry.
+     *
+     * @return the geometry, or null if it isn't cached
+     */
+    public Geometry get(int docId, NodeId nodeId, boolean EPSG4326) {
+        Segment segment = getSegment(docId);
+        Geometry geometry;
+        synchronized (segment) {
+            geometry = segment.geometries.get(new Key(docId, nodeId, EPSG4326));
+        }
+        if (geometry == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return geometry;
+    }
+
+    /**
+     * Caches a geometry, unless the cache has been invalidated since the given version.
+     *
+     * @param version the version of the cache before the geometry was read
+     */
+    public void put(int docId, NodeId nodeId, boolean EPSG4326, Geometry geometry, long version) {
+        Segment segment = getSegment(docId);
+        long weight = geometry.getNumPoints();
+        //Would evict everything
+        if (weight > segment.capacity / 4)
+            return;
+        Key key = new Key(docId, nodeId, EPSG4326);
+        synchronized (segment) {
+            //An invalidation increments the version of the segment under its lock :
+            //either the geometry is rejected here, or it is removed by the invalidation.
+            //Only the invalidations of the same segment reject it
+            if (version != segment.version)
+                return;
+            evictions.addAndGet(segment.put(key, geometry, weight));
+        }
+    }
+
+    /**
+     * Removes the geometries of a document.
+     */
+    public void invalidateDocument(int docId) {
+        Segment segment = getSegment(docId);
+        synchronized (segment) {
+            segment.version++;
+            segment.removeDocument(docId);
+        }
+    }
+
+    /**
+     * Removes all the geometries.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.version++;
+                segment.clear();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of coordinates of the cached geometries.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, " +
+            getSize() + " of " + capacity + " coordinates cached in " + segments.length + " segments";
+    }
+
+    private Segment getSegment(int docId) {
+        //Spreads the consecutive document IDs
+        int hash = docId * 0x9E3779B9;
+        return segments[(hash >>> 16) & (segments.length - 1)];
+    }
+
+    /**
+     * A part of the cache, guarded by its own monitor.
+     */
+    private static class Segment {
+
+        private final long capacity;
+        private long size = 0;
+        //Incremented by each invalidation, under the monitor ; read without it by getVersion()
+        private volatile long version = 0;
+        private final LinkedHashMap<Key, Geometry> geometries = new LinkedHashMap<Key, Geometry>(256, 0.75f, true);
+        //The cached keys of each document, for the invalidations
+        private final Map<Integer, DocumentKeys> documents = new HashMap<Integer, DocumentKeys>();
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return how many geometries have been evicted
+         */
+        long put(Key key, Geometry geometry, long weight) {
+            Geometry previous = geometries.put(key, geometry);
+            if (previous != null)
+                size -= previous.getNumPoints();
+            size += weight;
+            DocumentKeys keys = documents.get(Integer.valueOf(key.docId));
+            if (keys == null) {
+                keys = new DocumentKeys();
+                documents.put(Integer.valueOf(key.docId), keys);
+            }
+            keys.add(key);
+            long evicted = 0;
+            for (Iterator<Map.Entry<Key, Geometry>> it = geometries.entrySet().iterator(); size > capacity && it.hasNext(); ) {
+                Map.Entry<Key, Geometry> eldest = it.next();
+                it.remove();
+                size -= eldest.getValue().getNumPoints();
+                forget(eldest.getKey());
+                evicted++;
+            }
+            return evicted;
+        }
+
+        void removeDocument(int docId) {
+            DocumentKeys keys = documents.remove(Integer.valueOf(docId));
+            if (keys == null)
+                return;
+            for (Key key : keys) {
+                Geometry geometry = geometries.remove(key);
+                if (geometry != null)
+                    size -= geometry.getNumPoints();
+            }
+        }
+
+        void clear() {
+            geometries.clear();
+            documents.clear();
+            size = 0;
+        }
+
+        private void forget(Key key) {
+            DocumentKeys keys = documents.get(Integer.valueOf(key.docId));
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty())
+                    documents.remove(Integer.valueOf(key.docId));
+            }
+        }
+    }
+
+    private static class DocumentKeys extends HashSet<Key> {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Key {
+
+        private final int docId;
+        private final NodeId nodeId;
+        private final boolean EPSG4326;
+        private final int hashCode;
+
+        Key(int docId, NodeId nodeId, boolean EPSG4326) {
+            this.docId = docId;
+            this.nodeId = nodeId;
+            this.EPSG4326 = EPSG4326;
+            //Node IDs don't override hashCode()
+            byte[] bytes = new byte[nodeId.size()];
+            nodeId.serialize(bytes, 0);
+            this.hashCode = ((docId * 31 + Arrays.hashCode(bytes)) * 31 + nodeId.units()) * 2 + (EPSG4326 ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return docId == other.docId && EPSG4326 == other.EPSG4326 && nodeId.equals(other.nodeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import org.geotools.geometry.jts.GeometryCoordinateSequenceTransformer;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTWriter;
+
+/**
+ * The columns of the spatial table that are derived from a geometry : its EPSG:4326 transformation,
+ * encodings, envelopes, centroids, areas and topological properties.
+ *
+ * They don't depend on the node nor on the state of the index, so that they can be computed
+ * on any thread, with its own transformer and writers.
+ */
+public class GeometryRow {
+
+    final String geometryType;
+    final String srsName;
+    final String wkt;
+    final byte[] wkb;
+    final Envelope envelope;
+    final Coordinate centroid;
+    final double area;
+    final String EPSG4326_wkt;
+    final byte[] EPSG4326_wkb;
+    final Envelope EPSG4326_envelope;
+    final Coordinate EPSG4326_centroid;
+    final double EPSG4326_area;
+    final boolean isClosed;
+    final boolean isSimple;
+    final boolean isValid;
+
+    /**
+     * Computes the columns of a geometry.
+     *
+     * @param geometry the geometry, in its original SRS
+     * @param srsName the SRS of the geometry
+     * @param cache where to get the transformation to EPSG:4326
+     * @param transformer the transformer of the calling thread
+     * @param wktWriter the WKT writer of the calling thread
+     * @param wkbWriter the WKB writer of the calling thread
+     * @throws SpatialIndexException if the geometry can't be transformed
+     */
+    public GeometryRow(Geometry geometry, String srsName, TransformationCache cache,
+            GeometryCoordinateSequenceTransformer transformer, WKTWriter wktWriter, WKBWriter wkbWriter) throws SpatialIndexException {
+        transformer.setMathTransform(cache.getTransformation(srsName, "EPSG:4326").getMathTransform());
+        Geometry EPSG4326_geometry;
+        try {
+            EPSG4326_geometry = transformer.transform(geometry);
+        } catch (TransformException e) {
+            throw new SpatialIndexException(e);
+        }
+        this.geometryType = geometry.getGeometryType();
+        this.srsName = srsName;
+        this.wkt = wktWriter.write(geometry);
+        this.wkb = wkbWriter.write(geometry);
+        this.envelope = geometry.getEnvelopeInternal();
+        this.centroid = geometry.getCentroid().getCoordinate();
+        //geometry.getRepresentativePoint()
+        this.area = geometry.getArea();
+        //Boundary ?
+        this.EPSG4326_wkt = wktWriter.write(EPSG4326_geometry);
+        this.EPSG4326_wkb = wkbWriter.write(EPSG4326_geometry);
+        this.EPSG4326_envelope = EPSG4326_geometry.getEnvelopeInternal();
+        this.EPSG4326_centroid = EPSG4326_geometry.getCentroid().getCoordinate();
+        //EPSG4326_geometry.getRepresentativePoint()
+        this.EPSG4326_area = EPSG4326_geometry.getArea();
+        //Boundary ?
+        //As discussed earlier, all instances of SFS geometry classes
+        //are topologically closed by definition.
+        //For empty Curves, isClosed is defined to have the value false.
+        this.isClosed = !geometry.isEmpty();
+        this.isSimple = geometry.isSimple();
+        //Should always be true (the GML SAX parser makes a too severe check)
+        this.isValid = geometry.isValid();
+    }
+}
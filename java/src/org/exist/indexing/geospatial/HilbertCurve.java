@@ -0,0 +1,182 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Hilbert curve keys over the EPSG:4326 plane.
+ *
+ * The plane is divided in a grid of 2^ORDER x 2^ORDER cells, which are numbered
+ * along a Hilbert curve. Nearby cells tend to get nearby keys, so that a query
+ * window can be answered by scanning a few ranges of keys.
+ */
+public class HilbertCurve {
+
+    public final static int ORDER = 16;
+    //The key of geometries that are too large to be located by their centre
+    public final static long NO_KEY = -1L;
+
+    private final static long SIDE = 1L << ORDER;
+    //How many cells along the largest side of a query window, at most, before we stop subdividing
+    private final static int CELLS_PER_WINDOW = 8;
+
+    private HilbertCurve() {
+        //Utility class
+    }
+
+    /**
+     * Returns the key of the cell that contains the given point.
+     *
+     * @param lon the longitude
+     * @param lat the latitude
+     * @return the key
+     */
+    public static long key(double lon, double lat) {
+        return xy2d(ORDER, cellX(lon), cellY(lat));
+    }
+
+    static long cellX(double lon) {
+        return toCell(lon, -180.0, 360.0);
+    }
+
+    static long cellY(double lat) {
+        return toCell(lat, -90.0, 180.0);
+    }
+
+    private static long toCell(double value, double min, double extent) {
+        long cell = (long)((value - min) / extent * SIDE);
+        if (cell < 0)
+            return 0;
+        if (cell >= SIDE)
+            return SIDE - 1;
+        return cell;
+    }
+
+    /**
+     * Decomposes a query window into ranges of keys. Every point of the window
+     * belongs to a cell whose key lies in one of the ranges.
+     *
+     * @param envelope the query window
+     * @param maxRanges the maximal number of ranges to return ; the nearest ranges
+     *  are merged if there are more
+     * @return the ranges, as a sorted sequence of (start, end) pairs, both inclusive
+     */
+    public static long[] ranges(Envelope envelope, int maxRanges) {
+        long minX = cellX(envelope.getMinX());
+        long maxX = cellX(envelope.getMaxX());
+        long minY = cellY(envelope.getMinY());
+        long maxY = cellY(envelope.getMaxY());
+        //Don't subdivide below a fraction of the window : the border cells would make too many ranges
+        long extent = Math.max(maxX - minX, maxY - minY) + 1;
+        int maxDepth = ORDER;
+        while (maxDepth > 0 && (1L << (ORDER - maxDepth)) * CELLS_PER_WINDOW < extent)
+            maxDepth--;
+        List<long[]> ranges = new ArrayList<long[]>();
+        decompose(0, 0, 0, maxDepth, minX, maxX, minY, maxY, ranges);
+        //The cells are visited in key order : merge the adjacent ranges
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] + 1 >= range[0])
+                last[1] = Math.max(last[1], range[1]);
+            else
+                merged.add(range);
+        }
+        //Close the smallest gaps until there are few enough ranges
+        while (merged.size() > Math.max(1, maxRanges)) {
+            int smallest = 1;
+            for (int i = 2; i < merged.size(); i++) {
+                if (merged.get(i)[0] - merged.get(i - 1)[1] < merged.get(smallest)[0] - merged.get(smallest - 1)[1])
+                    smallest = i;
+            }
+            merged.get(smallest - 1)[1] = merged.get(smallest)[1];
+            merged.remove(smallest);
+        }
+        long[] result = new long[merged.size() * 2];
+        for (int i = 0; i < merged.size(); i++) {
+            result[2 * i] = merged.get(i)[0];
+            result[2 * i + 1] = merged.get(i)[1];
+        }
+        return result;
+    }
+
+    /**
+     * Visits, in key order, the quadrant (x, y) of the given depth.
+     */
+    private static void decompose(int depth, long x, long y, int maxDepth,
+            long minX, long maxX, long minY, long maxY, List<long[]> ranges) {
+        int shift = ORDER - depth;
+        long cellMinX = x << shift;
+        long cellMaxX = ((x + 1) << shift) - 1;
+        long cellMinY = y << shift;
+        long cellMaxY = ((y + 1) << shift) - 1;
+        if (cellMinX > maxX || cellMaxX < minX || cellMinY > maxY || cellMaxY < minY)
+            return;
+        long cellSize = 1L << (2 * shift);
+        if ((cellMinX >= minX && cellMaxX <= maxX && cellMinY >= minY && cellMaxY <= maxY) || depth == maxDepth) {
+            long start = xy2d(depth, x, y) * cellSize;
+            ranges.add(new long[] { start, start + cellSize - 1 });
+            return;
+        }
+        //Visit the 4 sub-quadrants in key order
+        long[][] children = new long[4][];
+        for (int dx = 0; dx < 2; dx++) {
+            for (int dy = 0; dy < 2; dy++) {
+                long cx = 2 * x + dx;
+                long cy = 2 * y + dy;
+                children[(int)(xy2d(depth + 1, cx, cy) & 3)] = new long[] { cx, cy };
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            decompose(depth + 1, children[i][0], children[i][1], maxDepth, minX, maxX, minY, maxY, ranges);
+        }
+    }
+
+    /**
+     * Converts cell coordinates to their distance along the curve.
+     * See http://en.wikipedia.org/wiki/Hilbert_curve
+     */
+    static long xy2d(int order, long x, long y) {
+        long d = 0;
+        for (long s = (1L << order) / 2; s > 0; s /= 2) {
+            long rx = (x & s) > 0 ? 1 : 0;
+            long ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            //Rotate
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+}
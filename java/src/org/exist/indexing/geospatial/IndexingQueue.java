@@ -0,0 +1,317 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DocumentSet;
+
+/**
+ * The state of the background indexing : the geometries are queued in the database by the workers
+ * when their documents are stored, then transformed, encoded and inserted in the spatial table
+ * by a background thread.
+ *
+ * Each queued row gets a sequence number. The rows are indexed in sequence order, by short
+ * transactions on the write connection, so that the stores are never blocked for long.
+ * All the rows up to the indexed sequence number have been indexed or discarded, which
+ * allows the queries to wait for the documents of their context.
+ * The queue is notified of the changes once they are committed, while the write connection is held.
+ */
+public class IndexingQueue {
+
+    private final static Logger LOG = LogManager.getLogger(IndexingQueue.class);
+
+    //How long the thread waits before it retries after a failure
+    private final static long RETRY_DELAY = 5000L;
+
+    private final AbstractGMLJDBCIndexWorker worker;
+    private final int batchSize;
+    private final AtomicLong nextSequence = new AtomicLong(0);
+    //The last committed sequence number
+    private long lastQueued = 0;
+    //All the rows up to this sequence number have been indexed or discarded
+    private long lastIndexed = 0;
+    //The last sequence number queued for each document that hasn't been indexed yet
+    private final Map<Integer, Long> documents = new HashMap<Integer, Long>();
+    //The last sequence number of each flush and when it has been committed, in sequence order
+    private final Deque<long[]> flushes = new ArrayDeque<long[]>();
+    private long pendingRows = 0;
+    private final AtomicLong indexedRows = new AtomicLong();
+    private final AtomicLong discardedRows = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private Thread thread = null;
+    private boolean stopped = false;
+
+    /**
+     * @param worker the worker, without broker, that indexes the queued rows
+     * @param batchSize how many rows are indexed by a transaction, at most
+     */
+    public IndexingQueue(AbstractGMLJDBCIndexWorker worker, int batchSize) {
+        this.worker = worker;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Restores the state of the queue from the rows left in the database.
+     *
+     * @param lastSequence the largest sequence number in the database
+     * @param lastDocumentSequences the largest sequence number of each queued document
+     * @param rows the number of queued rows
+     */
+    public synchronized void load(long lastSequence, Map<Integer, Long> lastDocumentSequences, long rows) {
+        nextSequence.set(lastSequence);
+        lastQueued = lastSequence;
+        documents.clear();
+        documents.putAll(lastDocumentSequences);
+        flushes.clear();
+        lastIndexed = 0;
+        if (rows > 0)
+            flushes.add(new long[] { lastSequence, System.currentTimeMillis() });
+        else
+            lastIndexed = lastSequence;
+        pendingRows = rows;
+    }
+
+    /**
+     * Returns the sequence number of a new queued row.
+     */
+    public long nextSequence() {
+        return nextSequence.incrementAndGet();
+    }
+
+    /**
+     * Records that the rows of a document have been queued.
+     *
+     * @param docId the document
+     * @param rows how many rows have been queued
+     * @param lastSequence the sequence number of the last row
+     */
+    public synchronized void queued(int docId, int rows, long lastSequence) {
+        lastQueued = Math.max(lastQueued, lastSequence);
+        documents.put(Integer.valueOf(docId), Long.valueOf(lastSequence));
+        flushes.add(new long[] { lastSequence, System.currentTimeMillis() });
+        pendingRows += rows;
+        notifyAll();
+    }
+
+    /**
+     * Records that queued rows have been removed before they could be indexed.
+     */
+    public synchronized void discarded(int rows) {
+        pendingRows -= rows;
+        discardedRows.addAndGet(rows);
+        notifyAll();
+    }
+
+    /**
+     * Records that queued rows have been indexed.
+     *
+     * @param rows how many rows have been read from the queue
+     * @param lastSequence the sequence number of the last row read
+     * @param exhausted whether the queue was empty after the last row
+     */
+    public synchronized void indexed(int rows, long lastSequence, boolean exhausted) {
+        lastIndexed = exhausted ? lastQueued : Math.max(lastIndexed, lastSequence);
+        for (Iterator<Long> it = documents.values().iterator(); it.hasNext(); ) {
+            if (it.next().longValue() <= lastIndexed)
+                it.remove();
+        }
+        while (!flushes.isEmpty() && flushes.peek()[0] <= lastIndexed) {
+            flushes.poll();
+        }
+        pendingRows = exhausted ? 0 : pendingRows - rows;
+        indexedRows.addAndGet(rows);
+        notifyAll();
+    }
+
+    /**
+     * Forgets all the queued rows, which have been removed from the database.
+     */
+    public synchronized void clear() {
+        lastIndexed = lastQueued;
+        documents.clear();
+        flushes.clear();
+        pendingRows = 0;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the rows queued so far for some documents to be indexed.
+     *
+     * @param docs the documents, or null for all of them
+     * @param timeout how long to wait at most, in milliseconds
+     * @return whether the rows have been indexed, false if the timeout elapsed first
+     * @throws InterruptedException if the thread has been interrupted while waiting
+     */
+    public synchronized boolean await(DocumentSet docs, long timeout) throws InterruptedException {
+        long target = getTarget(docs);
+        long deadline = System.currentTimeMillis() + timeout;
+        while (lastIndexed < target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || stopped)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many rows are waiting to be indexed.
+     */
+    public synchronized long getPendingRows() {
+        return pendingRows;
+    }
+
+    /**
+     * Returns for how long the oldest row that is waiting to be indexed has been queued, in milliseconds.
+     */
+    public synchronized long getLag() {
+        if (flushes.isEmpty())
+            return 0;
+        return System.currentTimeMillis() - flushes.peek()[1];
+    }
+
+    public long getIndexedRows() {
+        return indexedRows.get();
+    }
+
+    public long getDiscardedRows() {
+        return discardedRows.get();
+    }
+
+    /**
+     * Starts the thread that indexes the queued rows.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        stopped = false;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                indexQueuedRows();
+            }
+        }, "GML index queue");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread once it has indexed its current batch. The remaining rows stay in the database.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+            t = thread;
+            thread = null;
+        }
+        if (t == null)
+            return;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getPendingRows() + " pending rows, " + getLag() + " ms lag, " +
+            getIndexedRows() + " indexed, " + getDiscardedRows() + " discarded, " +
+            failures.get() + " failures";
+    }
+
+    private long getTarget(DocumentSet docs) {
+        if (docs == null)
+            return lastQueued;
+        long target = 0;
+        //Usually far less pending documents than documents in the context
+        for (Map.Entry<Integer, Long> entry : documents.entrySet()) {
+            if (entry.getValue().longValue() > target && docs.contains(entry.getKey().intValue()))
+                target = entry.getValue().longValue();
+        }
+        return target;
+    }
+
+    private void indexQueuedRows() {
+        while (true) {
+            synchronized (this) {
+                while (!stopped && lastIndexed >= lastQueued) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+            }
+            try {
+                worker.indexQueuedRows(this, batchSize);
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                LOG.error("Unable to index the queued geometries, retrying in " + RETRY_DELAY + " ms", e);
+                synchronized (this) {
+                    if (stopped)
+                        return;
+                    try {
+                        wait(RETRY_DELAY);
+                    } catch (InterruptedException ee) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The rows read from the queue by a transaction.
+     */
+    public static class Batch {
+
+        int rows = 0;
+        long lastSequence = 0;
+        final Set<Integer> docIds = new HashSet<Integer>();
+
+        /**
+         * Records a row read from the queue.
+         */
+        public void add(long sequence, int docId) {
+            rows++;
+            lastSequence = Math.max(lastSequence, sequence);
+            docIds.add(Integer.valueOf(docId));
+        }
+    }
+}
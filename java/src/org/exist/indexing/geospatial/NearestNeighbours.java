@@ -0,0 +1,134 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.xquery.value.ValueSequence;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The k nearest neighbours of a query geometry, gathered from candidates met by increasing
+ * distance of their envelope to the query's one.
+ *
+ * The distances are geodesic, in metres, between the closest points of the geometries, which are found
+ * in a plane where the longitudes are scaled by the cosine of the query's latitude
+ * (see {@link Geodesic#distance(Geometry, Geometry, double)}). The k closest candidates so far
+ * are kept in a heap, the farthest on top. The distance between two envelopes
+ * (see {@link Geodesic#minDistance(double, double, double, double, Envelope)}) is never more than
+ * the distance between their geometries : once k candidates have been kept, the search is complete
+ * as soon as the next envelope is farther than the farthest of them.
+ * The ties are resolved in document order. An instance is meant for a single query on a single thread.
+ */
+public class NearestNeighbours {
+
+    //By increasing distance, then in document order
+    private final static Comparator<Neighbour> NEAREST_FIRST = new Comparator<Neighbour>() {
+        public int compare(Neighbour n1, Neighbour n2) {
+            int cmp = Double.compare(n1.distance, n2.distance);
+            return cmp != 0 ? cmp : n1.node.compareTo(n2.node);
+        }
+    };
+
+    private final double scale;
+    //The query geometry, with scaled longitudes
+    private final Geometry scaledGeometry;
+    private final int k;
+    private final PriorityQueue<Neighbour> neighbours;
+    private int refined = 0;
+
+    /**
+     * @param EPSG4326_geometry the query geometry
+     * @param k how many neighbours to keep
+     */
+    public NearestNeighbours(Geometry EPSG4326_geometry, int k) {
+        this.scale = Geodesic.getLongitudeScale(EPSG4326_geometry.getEnvelopeInternal());
+        this.scaledGeometry = Geodesic.scaleLongitudes(EPSG4326_geometry, scale);
+        this.k = k;
+        this.neighbours = new PriorityQueue<Neighbour>(Math.min(k, 64) + 1, Collections.reverseOrder(NEAREST_FIRST));
+    }
+
+    /**
+     * Returns whether no candidate whose envelope is at the given distance can be a neighbour anymore.
+     *
+     * @param envelopeDistance the distance between the envelope of the next candidate and the query's one, in metres
+     */
+    public boolean isComplete(double envelopeDistance) {
+        return neighbours.size() >= k && envelopeDistance > neighbours.peek().distance;
+    }
+
+    /**
+     * Computes the distance of a candidate, and keeps it if it is one of the k closest so far.
+     *
+     * @param p the node of the candidate
+     * @param EPSG4326_geometry the geometry of the candidate
+     */
+    public void add(NodeProxy p, Geometry EPSG4326_geometry) {
+        refined++;
+        Neighbour neighbour = new Neighbour(p, Geodesic.distance(scaledGeometry, Geodesic.scaleLongitudes(EPSG4326_geometry, scale), scale));
+        if (neighbours.size() < k)
+            neighbours.add(neighbour);
+        else if (NEAREST_FIRST.compare(neighbour, neighbours.peek()) < 0) {
+            neighbours.poll();
+            neighbours.add(neighbour);
+        }
+    }
+
+    /**
+     * Returns how many candidates have been decoded and measured.
+     */
+    public int getRefined() {
+        return refined;
+    }
+
+    /**
+     * Returns the nodes of the neighbours, the closest first.
+     */
+    public ValueSequence getResult() {
+        List<Neighbour> sorted = new ArrayList<Neighbour>(neighbours);
+        Collections.sort(sorted, NEAREST_FIRST);
+        ValueSequence result = new ValueSequence(sorted.size());
+        for (Neighbour neighbour : sorted) {
+            result.add(neighbour.node);
+        }
+        return result;
+    }
+
+    private static class Neighbour {
+
+        private final NodeProxy node;
+        private final double distance;
+
+        Neighbour(NodeProxy node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+}
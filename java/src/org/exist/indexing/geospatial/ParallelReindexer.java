@@ -0,0 +1,383 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.IndexSpec;
+import org.exist.storage.lock.ManagedDocumentLock;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Reindexes the spatial index of a collection and its descendants, without touching the other indexes.
+ *
+ * The documents are streamed by several threads, each with its own broker and worker, which also
+ * transform and encode their geometries. The threads take the documents in turn, so that a few large
+ * documents don't hold the others back. Their rows are inserted by the calling broker alone, in a
+ * transaction per group of documents. The progress is logged every REPORT_INTERVAL milliseconds.
+ *
+ * The collections aren't locked for the whole run : the documents stay available meanwhile.
+ * The rows of a document are inserted under its read lock, in place of its current ones, and only if
+ * it hasn't been removed or modified since it was streamed : otherwise eXist has indexed it on its own.
+ * The spatial table isn't bulk loaded and the current rows aren't dropped beforehand : the searches
+ * find each document, with its former rows until the transaction that replaces them, then with the new ones,
+ * and the R-tree is updated after each transaction.
+ */
+public class ParallelReindexer {
+
+    private final static Logger LOG = LogManager.getLogger(ParallelReindexer.class);
+
+    //How often the progress is logged, in milliseconds
+    private final static long REPORT_INTERVAL = 10000L;
+    //How many streamed documents may wait for the writer, per thread
+    private final static int PENDING_DOCUMENTS = 4;
+
+    private final AbstractGMLJDBCIndex index;
+    private final int threads;
+    private final List<DocumentImpl> documents = new ArrayList<DocumentImpl>();
+    private final AtomicInteger nextDocument = new AtomicInteger();
+    private final AtomicInteger failedDocuments = new AtomicInteger();
+    //Removed or modified since they were listed
+    private final AtomicInteger skippedDocuments = new AtomicInteger();
+    //Only updated by the writer
+    private volatile int savedDocuments = 0;
+    private volatile long savedRows = 0;
+    private volatile boolean cancelled = false;
+    private long start = 0;
+
+    /**
+     * @param index the spatial index
+     * @param threads how many threads stream the documents
+     */
+    public ParallelReindexer(AbstractGMLJDBCIndex index, int threads) {
+        this.index = index;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Reindexes a collection and its descendants.
+     *
+     * @param broker the broker of the caller, which writes the rows
+     * @param collection the collection
+     * @return how many geometries have been indexed
+     * @throws SpatialIndexException if the documents can't be listed, or if the reindex has been interrupted
+     */
+    public long reindex(DBBroker broker, Collection collection) throws SpatialIndexException {
+        AbstractGMLJDBCIndexWorker writer = (AbstractGMLJDBCIndexWorker) index.getWorker(broker);
+        List<Collection> collections = new ArrayList<Collection>();
+        try {
+            addCollections(broker, collection, collections);
+        } catch (PermissionDeniedException e) {
+            throw new SpatialIndexException(e);
+        } catch (LockException e) {
+            throw new SpatialIndexException(e);
+        }
+        start = System.currentTimeMillis();
+        //A document stored after it has been listed is indexed by eXist
+        try {
+            for (Collection c : collections) {
+                addDocuments(broker, c);
+            }
+        } catch (PermissionDeniedException e) {
+            throw new SpatialIndexException(e);
+        } catch (LockException e) {
+            throw new SpatialIndexException(e);
+        }
+        LOG.info("GML index: reindexing " + documents.size() + " documents of " + collection.getURI() +
+            " with " + threads + " threads");
+        BlockingQueue<DocumentRows> results = new ArrayBlockingQueue<DocumentRows>(threads * PENDING_DOCUMENTS);
+        CountDownLatch done = startThreads(broker.getBrokerPool(), broker.getCurrentSubject(), results);
+        try {
+            saveDocuments(broker, writer, results, done);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SpatialIndexException("Interrupted while reindexing " + collection.getURI());
+        } finally {
+            cancelled = true;
+        }
+        int missing = documents.size() - savedDocuments - failedDocuments.get() - skippedDocuments.get();
+        if (skippedDocuments.get() > 0)
+            LOG.info("GML index: " + skippedDocuments.get() + " documents were removed or modified during the reindex of " +
+                collection.getURI() + " and indexed by eXist");
+        if (failedDocuments.get() > 0 || missing > 0)
+            LOG.error("GML index: " + failedDocuments.get() + " documents failed and " + missing +
+                " were not reindexed in " + collection.getURI());
+        LOG.info(getProgress());
+        return savedRows;
+    }
+
+    /**
+     * Returns how many documents are reindexed.
+     */
+    public int getDocumentCount() {
+        return documents.size();
+    }
+
+    /**
+     * Returns how many documents have been reindexed so far.
+     */
+    public int getSavedDocuments() {
+        return savedDocuments;
+    }
+
+    /**
+     * Returns how many geometries have been indexed so far.
+     */
+    public long getSavedRows() {
+        return savedRows;
+    }
+
+    /**
+     * Returns how many documents have been skipped so far, because they have been removed or modified meanwhile.
+     */
+    public int getSkippedDocuments() {
+        return skippedDocuments.get();
+    }
+
+    /**
+     * Returns how many documents couldn't be reindexed so far.
+     */
+    public int getFailedDocuments() {
+        return failedDocuments.get();
+    }
+
+    /**
+     * Returns the progress of the reindex and the estimated time to its completion.
+     */
+    public String getProgress() {
+        int total = documents.size();
+        int processed = savedDocuments + failedDocuments.get() + skippedDocuments.get();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        double rate = processed * 1000.0 / elapsed;
+        StringBuilder progress = new StringBuilder("GML index: reindexed ");
+        progress.append(processed).append(" of ").append(total).append(" documents");
+        if (total > 0)
+            progress.append(" (").append(processed * 100 / total).append("%)");
+        progress.append(", ").append(savedRows).append(" geometries in ").append(elapsed / 1000).append(" s");
+        if (processed > 0 && processed < total)
+            progress.append(", ETA ").append(Math.round((total - processed) / rate)).append(" s");
+        return progress.toString();
+    }
+
+    private void addCollections(DBBroker broker, Collection collection, List<Collection> collections)
+            throws PermissionDeniedException, LockException {
+        //The configuration is inherited by the descendants
+        IndexSpec idxConf = collection.getIndexConfiguration(broker);
+        if (idxConf != null && idxConf.getCustomIndexSpec(AbstractGMLJDBCIndex.ID) != null)
+            collections.add(collection);
+        for (Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+            Collection child = broker.getCollection(collection.getURI().append(i.next()));
+            if (child != null)
+                addCollections(broker, child, collections);
+        }
+    }
+
+    private void addDocuments(DBBroker broker, Collection collection) throws PermissionDeniedException, LockException {
+        for (Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+            DocumentImpl doc = i.next();
+            if (doc.getResourceType() == DocumentImpl.XML_FILE)
+                documents.add(doc);
+        }
+    }
+
+    /**
+     * Checks whether a document is still stored, as it was when it was streamed.
+     * Must be called while holding its lock.
+     *
+     * @param lastModified the modification time of the document when it was streamed
+     */
+    private static boolean isCurrent(DBBroker broker, DocumentImpl doc, long lastModified) {
+        try {
+            Collection collection = broker.getCollection(doc.getCollection().getURI());
+            if (collection == null)
+                return false;
+            DocumentImpl current = collection.getDocument(broker, doc.getFileURI());
+            return current != null && current.getDocId() == doc.getDocId() &&
+                current.getMetadata().getLastModified() == lastModified;
+        } catch (PermissionDeniedException e) {
+            LOG.error("Unable to check document " + doc.getURI(), e);
+            return false;
+        }
+    }
+
+    private CountDownLatch startThreads(final BrokerPool pool, final Subject subject, final BlockingQueue<DocumentRows> results) {
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        computeDocuments(pool, subject, results);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "GML reindex " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return done;
+    }
+
+    /**
+     * Streams the next documents with a broker and a worker of its own, until there are none left.
+     */
+    private void computeDocuments(BrokerPool pool, Subject subject, BlockingQueue<DocumentRows> results) {
+        try (DBBroker broker = pool.get(Optional.of(subject))) {
+            AbstractGMLJDBCIndexWorker worker = index.createWorker(broker);
+            for (int i = nextDocument.getAndIncrement(); i < documents.size() && !cancelled; i = nextDocument.getAndIncrement()) {
+                DocumentImpl doc = documents.get(i);
+                Map<NodeId, GeometryRow> rows;
+                long lastModified;
+                try (ManagedDocumentLock lock = pool.getLockManager().acquireDocumentReadLock(doc.getURI())) {
+                    lastModified = doc.getMetadata().getLastModified();
+                    //Removed since it was listed
+                    if (!isCurrent(broker, doc, lastModified)) {
+                        skippedDocuments.incrementAndGet();
+                        continue;
+                    }
+                    rows = worker.computeDocumentRows(doc);
+                } catch (LockException e) {
+                    LOG.error("Unable to reindex document " + doc.getURI(), e);
+                    failedDocuments.incrementAndGet();
+                    continue;
+                } catch (IOException e) {
+                    LOG.error("Unable to reindex document " + doc.getURI(), e);
+                    failedDocuments.incrementAndGet();
+                    continue;
+                }
+                DocumentRows documentRows = new DocumentRows(doc, lastModified, rows);
+                //Waits for the writer
+                while (!results.offer(documentRows, 1, TimeUnit.SECONDS)) {
+                    if (cancelled)
+                        return;
+                }
+            }
+        } catch (EXistException e) {
+            LOG.error("Unable to get a broker for the reindex", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Inserts the rows of the streamed documents, with all the documents that are ready in the same transaction.
+     */
+    private void saveDocuments(DBBroker broker, AbstractGMLJDBCIndexWorker writer, BlockingQueue<DocumentRows> results,
+            CountDownLatch done) throws InterruptedException {
+        List<DocumentRows> batch = new ArrayList<DocumentRows>();
+        long lastReport = System.currentTimeMillis();
+        while (true) {
+            DocumentRows first = results.poll(1, TimeUnit.SECONDS);
+            if (first != null) {
+                batch.add(first);
+                results.drainTo(batch);
+                saveBatch(broker, writer, batch);
+                batch.clear();
+            //The threads have put all their documents
+            } else if (done.getCount() == 0 && results.isEmpty())
+                return;
+            if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+                LOG.info(getProgress());
+                lastReport = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Inserts the rows of some documents in a single transaction, while holding their read locks,
+     * unless they have been removed or modified since they were streamed.
+     */
+    private void saveBatch(DBBroker broker, AbstractGMLJDBCIndexWorker writer, List<DocumentRows> batch) {
+        List<ManagedDocumentLock> locks = new ArrayList<ManagedDocumentLock>(batch.size());
+        try {
+            Map<DocumentImpl, Map<NodeId, GeometryRow>> rows = new LinkedHashMap<DocumentImpl, Map<NodeId, GeometryRow>>();
+            for (DocumentRows documentRows : batch) {
+                //The locks are taken before the write connection, as eXist does when it updates a document
+                ManagedDocumentLock lock;
+                try {
+                    lock = broker.getBrokerPool().getLockManager().acquireDocumentReadLock(documentRows.doc.getURI());
+                } catch (LockException e) {
+                    LOG.error("Unable to reindex document " + documentRows.doc.getURI(), e);
+                    failedDocuments.incrementAndGet();
+                    continue;
+                }
+                locks.add(lock);
+                if (isCurrent(broker, documentRows.doc, documentRows.lastModified))
+                    rows.put(documentRows.doc, documentRows.rows);
+                else
+                    skippedDocuments.incrementAndGet();
+            }
+            if (rows.isEmpty())
+                return;
+            try {
+                savedRows += writer.saveDocumentRows(rows);
+                savedDocuments += rows.size();
+            } catch (SQLException e) {
+                LOG.error("Unable to save the geometries of " + rows.size() + " documents", e);
+                failedDocuments.addAndGet(rows.size());
+            }
+        } finally {
+            for (ManagedDocumentLock lock : locks) {
+                lock.close();
+            }
+        }
+    }
+
+    private static class DocumentRows {
+
+        private final DocumentImpl doc;
+        //When the document was streamed
+        private final long lastModified;
+        private final Map<NodeId, GeometryRow> rows;
+
+        DocumentRows(DocumentImpl doc, long lastModified, Map<NodeId, GeometryRow> rows) {
+            this.doc = doc;
+            this.lastModified = lastModified;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.algorithm.LineIntersector;
+import com.vividsolutions.jts.algorithm.PointLocator;
+import com.vividsolutions.jts.algorithm.RobustDeterminant;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.util.LinearComponentExtracter;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A query geometry prepared for the refinement of many candidates.
+ *
+ * JTS 1.8 has no PreparedGeometry. When the query geometry is a polygon (other than a rectangle,
+ * which JTS already handles quickly), the segments of its rings are indexed once in an STRtree.
+ * Point-in-polygon and segment intersection tests against the query geometry then take logarithmic time.
+ * The INTERSECTS, DISJOINT and WITHIN (the candidate is within the query geometry) operators use them,
+ * and fall back to the JTS predicates for the cases they can't decide, i.e. when the boundaries touch.
+ * The other operators always use the JTS predicates.
+ *
+ * The instances are immutable once built and may be shared by several threads.
+ */
+public class PreparedQueryGeometry {
+
+    private final static int NO_INTERSECTION = 0;
+    private final static int TOUCHING = 1;
+    private final static int PROPER = 2;
+
+    private final Geometry geometry;
+    private final int spatialOp;
+    private final Envelope envelope;
+    //The segments of the rings, null if the geometry isn't prepared
+    private final STRtree segments;
+    //One point of each ring
+    private final Coordinate[] ringPoints;
+
+    public PreparedQueryGeometry(Geometry geometry, int spatialOp) {
+        this.geometry = geometry;
+        this.spatialOp = spatialOp;
+        this.envelope = geometry.getEnvelopeInternal();
+        boolean prepare = (spatialOp == SpatialOperator.INTERSECTS || spatialOp == SpatialOperator.DISJOINT ||
+            spatialOp == SpatialOperator.WITHIN) &&
+            (geometry instanceof Polygon || geometry instanceof MultiPolygon) &&
+            !geometry.isEmpty() && !geometry.isRectangle();
+        if (!prepare) {
+            this.segments = null;
+            this.ringPoints = null;
+            return;
+        }
+        List rings = LinearComponentExtracter.getLines(geometry);
+        this.segments = new STRtree();
+        this.ringPoints = new Coordinate[rings.size()];
+        for (int i = 0; i < rings.size(); i++) {
+            Coordinate[] coordinates = ((LineString)rings.get(i)).getCoordinates();
+            ringPoints[i] = coordinates[0];
+            for (int j = 0; j < coordinates.length - 1; j++) {
+                segments.insert(new Envelope(coordinates[j], coordinates[j + 1]),
+                    new LineSegment(coordinates[j], coordinates[j + 1]));
+            }
+        }
+        //Build it now : the queries are then read-only
+        segments.build();
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public int getSpatialOp() {
+        return spatialOp;
+    }
+
+    /**
+     * Checks the exact spatial relationship between a candidate and the query geometry.
+     *
+     * @param candidate the candidate
+     * @return whether the candidate matches the query geometry
+     */
+    public boolean matches(Geometry candidate) {
+        if (segments != null && !candidate.isEmpty()) {
+            switch (spatialOp) {
+            case SpatialOperator.INTERSECTS:
+                return intersects(candidate);
+            case SpatialOperator.DISJOINT:
+                return !intersects(candidate);
+            case SpatialOperator.WITHIN:
+                return contains(candidate);
+            }
+        }
+        switch (spatialOp) {
+        case SpatialOperator.EQUALS:
+            return candidate.equals(geometry);
+        case SpatialOperator.DISJOINT:
+            return candidate.disjoint(geometry);
+        case SpatialOperator.INTERSECTS:
+            return candidate.intersects(geometry);
+        case SpatialOperator.TOUCHES:
+            return candidate.touches(geometry);
+        case SpatialOperator.CROSSES:
+            return candidate.crosses(geometry);
+        case SpatialOperator.WITHIN:
+            return candidate.within(geometry);
+        case SpatialOperator.CONTAINS:
+            return candidate.contains(geometry);
+        case SpatialOperator.OVERLAPS:
+            return candidate.overlaps(geometry);
+        default:
+            return false;
+        }
+    }
+
+    private boolean intersects(Geometry candidate) {
+        if (!envelope.intersects(candidate.getEnvelopeInternal()))
+            return false;
+        //A component of the candidate in the query geometry
+        for (Coordinate point : getComponentPoints(candidate)) {
+            if (locate(point) != Location.EXTERIOR)
+                return true;
+        }
+        //Crossing boundaries
+        if (intersectSegments(candidate, true) != NO_INTERSECTION)
+            return true;
+        //The query geometry in a polygon of the candidate
+        return isAnyRingPointIn(candidate);
+    }
+
+    private boolean contains(Geometry candidate) {
+        if (!envelope.contains(candidate.getEnvelopeInternal()))
+            return false;
+        for (Coordinate point : getComponentPoints(candidate)) {
+            int location = locate(point);
+            if (location == Location.EXTERIOR)
+                return false;
+            if (location == Location.BOUNDARY)
+                return candidate.within(geometry);
+        }
+        switch (intersectSegments(candidate, false)) {
+        case PROPER:
+            //Some part of the candidate is outside
+            return false;
+        case TOUCHING:
+            return candidate.within(geometry);
+        }
+        //The boundaries don't meet : every component of the candidate is in the interior,
+        //unless it surrounds a hole
+        return !isAnyRingPointIn(candidate);
+    }
+
+    /**
+     * Locates a point with respect to the query geometry, by counting the crossings
+     * of a ray cast to the east with its rings.
+     */
+    private int locate(Coordinate p) {
+        if (!envelope.contains(p))
+            return Location.EXTERIOR;
+        int crossings = 0;
+        List candidates = segments.query(new Envelope(p.x, envelope.getMaxX(), p.y, p.y));
+        for (int i = 0; i < candidates.size(); i++) {
+            LineSegment segment = (LineSegment)candidates.get(i);
+            Coordinate p1 = segment.p0;
+            Coordinate p2 = segment.p1;
+            //Strictly on the left
+            if (p1.x < p.x && p2.x < p.x)
+                continue;
+            if (p.equals2D(p1) || p.equals2D(p2))
+                return Location.BOUNDARY;
+            //Horizontal segment on the ray
+            if (p1.y == p.y && p2.y == p.y) {
+                if (p.x >= Math.min(p1.x, p2.x) && p.x <= Math.max(p1.x, p2.x))
+                    return Location.BOUNDARY;
+                continue;
+            }
+            //Each segment contains its upper end point, not its lower one
+            if ((p1.y > p.y && p2.y <= p.y) || (p2.y > p.y && p1.y <= p.y)) {
+                int sign = RobustDeterminant.signOfDet2x2(p1.x - p.x, p1.y - p.y, p2.x - p.x, p2.y - p.y);
+                if (sign == 0)
+                    return Location.BOUNDARY;
+                if (p2.y < p1.y)
+                    sign = -sign;
+                if (sign > 0)
+                    crossings++;
+            }
+        }
+        return (crossings % 2 == 1) ? Location.INTERIOR : Location.EXTERIOR;
+    }
+
+    /**
+     * Checks whether the segments of the candidate intersect the rings of the query geometry.
+     *
+     * @param stopAtFirst whether to stop at the first intersection rather than look for a proper one
+     */
+    private int intersectSegments(Geometry candidate, boolean stopAtFirst) {
+        //Not thread-safe
+        LineIntersector intersector = new RobustLineIntersector();
+        int result = NO_INTERSECTION;
+        List lines = LinearComponentExtracter.getLines(candidate);
+        for (int i = 0; i < lines.size(); i++) {
+            Coordinate[] coordinates = ((LineString)lines.get(i)).getCoordinates();
+            for (int j = 0; j < coordinates.length - 1; j++) {
+                List candidates = segments.query(new Envelope(coordinates[j], coordinates[j + 1]));
+                for (int k = 0; k < candidates.size(); k++) {
+                    LineSegment segment = (LineSegment)candidates.get(k);
+                    intersector.computeIntersection(coordinates[j], coordinates[j + 1], segment.p0, segment.p1);
+                    if (!intersector.hasIntersection())
+                        continue;
+                    if (intersector.isProper())
+                        return PROPER;
+                    if (stopAtFirst)
+                        return TOUCHING;
+                    result = TOUCHING;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a ring of the query geometry has a point in a polygon of the candidate.
+     */
+    private boolean isAnyRingPointIn(Geometry candidate) {
+        if (candidate.getDimension() < 2)
+            return false;
+        PointLocator locator = new PointLocator();
+        Envelope candidateEnvelope = candidate.getEnvelopeInternal();
+        for (int i = 0; i < ringPoints.length; i++) {
+            if (candidateEnvelope.contains(ringPoints[i]) && locator.locate(ringPoints[i], candidate) != Location.EXTERIOR)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a point of each (non-empty) component of a geometry.
+     */
+    private static List<Coordinate> getComponentPoints(Geometry geometry) {
+        List<Coordinate> points = new ArrayList<Coordinate>();
+        addComponentPoints(geometry, points);
+        return points;
+    }
+
+    private static void addComponentPoints(Geometry geometry, List<Coordinate> points) {
+        if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                addComponentPoints(geometry.getGeometryN(i), points);
+            }
+        } else if (!geometry.isEmpty())
+            points.add(geometry.getCoordinate());
+    }
+}
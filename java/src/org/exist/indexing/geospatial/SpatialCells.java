@@ -0,0 +1,122 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Multi-level quadtree cells over the EPSG:4326 plane.
+ *
+ * At level L, the plane is divided in 2^L x 2^L cells. A geometry is indexed
+ * under the (at most 4) cells of the deepest level at which they cover its envelope,
+ * without going deeper than the configured depth. Large polygons thus get a few
+ * large cells and points a single small one.
+ *
+ * Within a level, the cells are numbered along the Hilbert curve,
+ * so that a query window translates into a few ranges of cell IDs.
+ */
+public class SpatialCells {
+
+    public final static int MAX_LEVEL = HilbertCurve.ORDER;
+
+    private SpatialCells() {
+        //Utility class
+    }
+
+    /**
+     * Returns the level at which a geometry is indexed.
+     *
+     * @param envelope the EPSG:4326 envelope of the geometry
+     * @param maxDepth the deepest level allowed
+     * @return the level
+     */
+    public static int level(Envelope envelope, int maxDepth) {
+        long span = Math.max(
+            HilbertCurve.cellX(envelope.getMaxX()) - HilbertCurve.cellX(envelope.getMinX()),
+            HilbertCurve.cellY(envelope.getMaxY()) - HilbertCurve.cellY(envelope.getMinY())) + 1;
+        int level = MAX_LEVEL;
+        while (level > 0 && (1L << (MAX_LEVEL - level)) < span)
+            level--;
+        return Math.max(0, Math.min(level, maxDepth));
+    }
+
+    /**
+     * Returns the IDs of the cells of the given level that cover an envelope.
+     *
+     * @param envelope the EPSG:4326 envelope
+     * @param level the level
+     * @return the cell IDs
+     */
+    public static long[] cover(Envelope envelope, int level) {
+        int shift = MAX_LEVEL - level;
+        long minX = HilbertCurve.cellX(envelope.getMinX()) >> shift;
+        long maxX = HilbertCurve.cellX(envelope.getMaxX()) >> shift;
+        long minY = HilbertCurve.cellY(envelope.getMinY()) >> shift;
+        long maxY = HilbertCurve.cellY(envelope.getMaxY()) >> shift;
+        long[] cells = new long[(int)((maxX - minX + 1) * (maxY - minY + 1))];
+        int i = 0;
+        for (long x = minX; x <= maxX; x++) {
+            for (long y = minY; y <= maxY; y++) {
+                cells[i++] = cellId(level, x, y);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the ranges of IDs of the cells of the given level that cover a query window.
+     *
+     * @param window the EPSG:4326 query window
+     * @param level the level
+     * @param maxRanges the maximal number of ranges to return
+     * @return the ranges, as a sorted sequence of (start, end) pairs, both inclusive
+     */
+    public static long[] ranges(Envelope window, int level, int maxRanges) {
+        int shift = 2 * (MAX_LEVEL - level);
+        long[] keys = HilbertCurve.ranges(window, maxRanges);
+        long[] ranges = new long[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i += 2) {
+            long start = cellId(level, keys[i] >> shift);
+            long end = cellId(level, keys[i + 1] >> shift);
+            //The coarser the level, the more the ranges overlap
+            if (count > 0 && ranges[count - 1] + 1 >= start) {
+                ranges[count - 1] = Math.max(ranges[count - 1], end);
+            } else {
+                ranges[count++] = start;
+                ranges[count++] = end;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(ranges, 0, result, 0, count);
+        return result;
+    }
+
+    private static long cellId(int level, long x, long y) {
+        return cellId(level, HilbertCurve.xy2d(level, x, y));
+    }
+
+    private static long cellId(int level, long key) {
+        return ((long)level << 40) | key;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * A spatial join between two sets of indexed geometries : the pairs (left, right)
+ * such that the left geometry has the spatial relationship with the right one.
+ *
+ * The filter step is a plane sweep over the EPSG:4326 envelopes of both sides, sorted by their minimal X :
+ * each envelope is compared with the envelopes of the other side that start before it ends,
+ * so that every pair of intersecting envelopes is met once. The refinement step decodes the geometries
+ * of the candidate pairs only, once each, and prepares each right geometry once for all its candidates.
+ * The geometries may be added without their WKB : it is then read from a {@link WKBSource},
+ * for the candidate pairs only, a batch of pairs at a time.
+ * DISJOINT isn't supported : nearly all the pairs would match.
+ * An instance is meant for a single query on a single thread.
+ */
+public class SpatialJoin {
+
+    private final static int CANDIDATE_BATCH_SIZE = 256;
+
+    private final static Comparator<Item> MINX_COMPARATOR = new Comparator<Item>() {
+        public int compare(Item i1, Item i2) {
+            return Double.compare(i1.minX, i2.minX);
+        }
+    };
+
+    //In document order of the left node, then of the right node
+    private final static Comparator<NodeProxy[]> PAIR_COMPARATOR = new Comparator<NodeProxy[]>() {
+        public int compare(NodeProxy[] p1, NodeProxy[] p2) {
+            int cmp = p1[0].compareTo(p2[0]);
+            return cmp != 0 ? cmp : p1[1].compareTo(p2[1]);
+        }
+    };
+
+    private final int spatialOp;
+    private final WKBReader wkbReader;
+    private final WKBSource wkbSource;
+    private final List<Item> left = new ArrayList<Item>();
+    private final List<Item> right = new ArrayList<Item>();
+    private int candidates = 0;
+    private int decoded = 0;
+    private int read = 0;
+
+    /**
+     * Reads the WKB of the geometries added without it.
+     */
+    public interface WKBSource {
+
+        /**
+         * @param rowIds the sorted rows of the geometries
+         * @return the EPSG:4326 WKB of the geometries, in the order of the rows
+         * @throws SQLException if a row can't be read
+         */
+        byte[][] getWKB(long[] rowIds) throws SQLException;
+    }
+
+    /**
+     * @param spatialOp the spatial operator, except DISJOINT
+     * @param wkbReader the reader of the calling thread
+     * @param wkbSource the source of the WKB that aren't given with the geometries, or null
+     */
+    public SpatialJoin(int spatialOp, WKBReader wkbReader, WKBSource wkbSource) {
+        if (spatialOp == SpatialOperator.DISJOINT || spatialOp == SpatialOperator.UNKNOWN)
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        this.spatialOp = spatialOp;
+        this.wkbReader = wkbReader;
+        this.wkbSource = wkbSource;
+    }
+
+    /**
+     * Adds an indexed geometry of the left side.
+     *
+     * @param p the node of the geometry
+     * @param rowId the row of the geometry
+     * @param EPSG4326_wkb the EPSG:4326 WKB of the geometry, or null to read it from the source if needed
+     */
+    public void addLeft(NodeProxy p, long rowId, byte[] EPSG4326_wkb, double minX, double maxX, double minY, double maxY) {
+        left.add(new Item(p, rowId, EPSG4326_wkb, minX, maxX, minY, maxY));
+    }
+
+    /**
+     * Adds an indexed geometry of the right side.
+     *
+     * @param p the node of the geometry
+     * @param rowId the row of the geometry
+     * @param EPSG4326_wkb the EPSG:4326 WKB of the geometry, or null to read it from the source if needed
+     */
+    public void addRight(NodeProxy p, long rowId, byte[] EPSG4326_wkb, double minX, double maxX, double minY, double maxY) {
+        right.add(new Item(p, rowId, EPSG4326_wkb, minX, maxX, minY, maxY));
+    }
+
+    /**
+     * Returns the matching pairs.
+     *
+     * @return the pairs of left and right nodes, in document order of the left node, then of the right one
+     * @throws SQLException if a WKB can't be read or decoded
+     */
+    public List<NodeProxy[]> join() throws SQLException {
+        List<NodeProxy[]> pairs = new ArrayList<NodeProxy[]>();
+        List<Item[]> batch = new ArrayList<Item[]>(CANDIDATE_BATCH_SIZE);
+        Collections.sort(left, MINX_COMPARATOR);
+        Collections.sort(right, MINX_COMPARATOR);
+        try {
+            int l = 0;
+            int r = 0;
+            while (l < left.size() && r < right.size()) {
+                if (left.get(l).minX <= right.get(r).minX) {
+                    Item item = left.get(l++);
+                    for (int i = r; i < right.size() && right.get(i).minX <= item.maxX; i++) {
+                        filter(item, right.get(i), batch, pairs);
+                    }
+                } else {
+                    Item item = right.get(r++);
+                    for (int i = l; i < left.size() && left.get(i).minX <= item.maxX; i++) {
+                        filter(left.get(i), item, batch, pairs);
+                    }
+                }
+            }
+            refine(batch, pairs);
+        } catch (ParseException e) {
+            //Transforms the exception into an SQLException.
+            //Very unlikely to happen though...
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        }
+        Collections.sort(pairs, PAIR_COMPARATOR);
+        return pairs;
+    }
+
+    /**
+     * Returns how many pairs passed the filter step.
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Returns how many geometries have been decoded.
+     */
+    public int getDecoded() {
+        return decoded;
+    }
+
+    /**
+     * Returns how many WKB have been read from the source.
+     */
+    public int getRead() {
+        return read;
+    }
+
+    public int getLeftCount() {
+        return left.size();
+    }
+
+    public int getRightCount() {
+        return right.size();
+    }
+
+    private void filter(Item l, Item r, List<Item[]> batch, List<NodeProxy[]> pairs) throws ParseException, SQLException {
+        //The envelopes overlap on X : check Y, then the operator
+        if (l.maxY < r.minY || l.minY > r.maxY)
+            return;
+        switch (spatialOp) {
+        case SpatialOperator.EQUALS:
+            if (l.minX != r.minX || l.maxX != r.maxX || l.minY != r.minY || l.maxY != r.maxY)
+                return;
+            break;
+        case SpatialOperator.WITHIN:
+            if (l.minX < r.minX || l.maxX > r.maxX || l.minY < r.minY || l.maxY > r.maxY)
+                return;
+            break;
+        case SpatialOperator.CONTAINS:
+            if (l.minX > r.minX || l.maxX < r.maxX || l.minY > r.minY || l.maxY < r.maxY)
+                return;
+            break;
+        }
+        candidates++;
+        batch.add(new Item[] { l, r });
+        if (batch.size() == CANDIDATE_BATCH_SIZE)
+            refine(batch, pairs);
+    }
+
+    private void refine(List<Item[]> batch, List<NodeProxy[]> pairs) throws ParseException, SQLException {
+        readWKB(batch);
+        for (Item[] pair : batch) {
+            Item l = pair[0];
+            Item r = pair[1];
+            if (r.query == null)
+                r.query = new PreparedQueryGeometry(decode(r), spatialOp);
+            if (r.query.matches(decode(l)))
+                pairs.add(new NodeProxy[] { l.node, r.node });
+        }
+        batch.clear();
+    }
+
+    /**
+     * Reads together the WKB of the geometries of the candidate pairs that are neither given nor decoded yet.
+     */
+    private void readWKB(List<Item[]> batch) throws SQLException {
+        List<Item> missing = new ArrayList<Item>();
+        for (Item[] pair : batch) {
+            for (Item item : pair) {
+                if (item.wkb == null && item.geometry == null)
+                    missing.add(item);
+            }
+        }
+        if (missing.isEmpty())
+            return;
+        long[] rowIds = new long[missing.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = missing.get(i).rowId;
+        }
+        //An item may be in several pairs
+        Arrays.sort(rowIds);
+        int count = 0;
+        for (int i = 0; i < rowIds.length; i++) {
+            if (count == 0 || rowIds[i] != rowIds[count - 1])
+                rowIds[count++] = rowIds[i];
+        }
+        rowIds = Arrays.copyOf(rowIds, count);
+        byte[][] wkbs = wkbSource.getWKB(rowIds);
+        read += count;
+        for (Item item : missing) {
+            item.wkb = wkbs[Arrays.binarySearch(rowIds, item.rowId)];
+        }
+    }
+
+    private Geometry decode(Item item) throws ParseException {
+        if (item.geometry == null) {
+            item.geometry = wkbReader.read(item.wkb);
+            decoded++;
+            //Not needed anymore
+            item.wkb = null;
+        }
+        return item.geometry;
+    }
+
+    private static class Item {
+
+        private final NodeProxy node;
+        private final long rowId;
+        private final double minX;
+        private final double maxX;
+        private final double minY;
+        private final double maxY;
+        //Read on demand, if not given
+        private byte[] wkb;
+        //Decoded on demand
+        private Geometry geometry;
+        //Prepared on demand, for the right side
+        private PreparedQueryGeometry query;
+
+        Item(NodeProxy node, long rowId, byte[] wkb, double minX, double maxX, double minY, double maxY) {
+            this.node = node;
+            this.rowId = rowId;
+            this.wkb = wkb;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+    }
+}
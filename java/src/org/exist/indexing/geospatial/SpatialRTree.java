@@ -0,0 +1,708 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A memory-resident R-tree over the EPSG:4326 envelopes of the indexed geometries.
+ *
+ * The tree is made of immutable, versioned {@link Snapshot}s. Readers search the current
+ * snapshot without any locking ; the changes of each committed transaction are applied
+ * to a copy of it which is then published with a single reference swap.
+ *
+ * A snapshot is an STR (Sort-Tile-Recursive) packed tree, plus the entries inserted
+ * since the last packing and the tombstones of the removed ones ; the tree is packed
+ * again when any of them grows too large. The inserted entries are kept in chunks that
+ * the successive snapshots share, so that a transaction only copies what it appends.
+ *
+ * Entries are identified by the ROW_ID of their row in the spatial table. They may also carry
+ * the EPSG:4326 WKB and the node of their geometry, so that a search doesn't need the table at all.
+ */
+public class SpatialRTree {
+
+    private final static Logger LOG = LogManager.getLogger(SpatialRTree.class);
+
+    public final static int DEFAULT_NODE_CAPACITY = 16;
+    //Never repack for less than that many pending changes
+    private final static int MIN_CHANGES_BEFORE_REPACK = 1024;
+
+    //How many unpacked entries per chunk
+    private final static int CHUNK_SIZE = 256;
+    private final static long[] NO_ROW_IDS = new long[0];
+
+    private final int nodeCapacity;
+    private final boolean storeGeometries;
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+    //The row IDs of the unpacked entries of the current snapshot, so that only live rows get a tombstone
+    private final Set<Long> unpackedRowIds = new HashSet<Long>();
+    //The changes deferred until the end of a bulk load, in the order they were committed
+    private final Map<Long, Entry> deferredInsertions = new LinkedHashMap<Long, Entry>();
+    private final Set<Long> deferredRemovals = new HashSet<Long>();
+
+    public SpatialRTree() {
+        this(DEFAULT_NODE_CAPACITY, false);
+    }
+
+    /**
+     * @param nodeCapacity the maximal number of children of a node
+     * @param storeGeometries whether the entries carry their geometry and node
+     */
+    public SpatialRTree(int nodeCapacity, boolean storeGeometries) {
+        if (nodeCapacity < 2)
+            throw new IllegalArgumentException("Node capacity must be at least 2");
+        this.nodeCapacity = nodeCapacity;
+        this.storeGeometries = storeGeometries;
+        current.set(new Snapshot(0, null, NO_ROW_IDS, UnpackedEntries.EMPTY, NO_ROW_IDS, storeGeometries));
+    }
+
+    /**
+     * Returns whether the entries carry their geometry and node.
+     */
+    public boolean storesGeometries() {
+        return storeGeometries;
+    }
+
+    /**
+     * Returns the current snapshot. It will never change, whatever the later updates are.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        return current.get();
+    }
+
+    /**
+     * Replaces the whole content of the tree by the given entries and packs it.
+     *
+     * @param entries the entries
+     */
+    public synchronized void load(List<Entry> entries) {
+        current.set(pack(current.get().version + 1, new ArrayList<Entry>(entries)));
+        deferredInsertions.clear();
+        deferredRemovals.clear();
+    }
+
+    public void insert(long rowId, Envelope EPSG4326_envelope) {
+        insert(new Entry(rowId, EPSG4326_envelope));
+    }
+
+    public void insert(Entry entry) {
+        apply(Collections.singletonList(entry), Collections.<Long>emptyList());
+    }
+
+    public void remove(long rowId) {
+        apply(Collections.<Entry>emptyList(), Collections.singletonList(Long.valueOf(rowId)));
+    }
+
+    public void clear() {
+        load(Collections.<Entry>emptyList());
+    }
+
+    /**
+     * Applies the changes of a committed transaction and publishes the resulting snapshot.
+     *
+     * @param insertions the inserted entries
+     * @param removals the ROW_IDs of the removed entries
+     */
+    public void apply(List<Entry> insertions, List<Long> removals) {
+        apply(insertions, removals, false);
+    }
+
+    /**
+     * Applies the changes of committed transactions and publishes the resulting snapshot.
+     *
+     * @param insertions the inserted entries
+     * @param removals the ROW_IDs of the removed entries
+     * @param repack whether to pack the whole tree in one pass, e.g. after a bulk load,
+     *  rather than only when the pending changes grow too large
+     */
+    public synchronized void apply(List<Entry> insertions, List<Long> removals, boolean repack) {
+        Snapshot snapshot = current.get();
+        for (Entry entry : insertions) {
+            unpackedRowIds.add(Long.valueOf(entry.rowId));
+        }
+        //The removed entries are buried, whether they are packed or not.
+        //Only the live ones : an unknown or already removed row must not change the size
+        long[] tombstones = snapshot.tombstones;
+        if (!removals.isEmpty()) {
+            long[] removed = new long[removals.size()];
+            int count = 0;
+            for (Long rowId : removals) {
+                long value = rowId.longValue();
+                if (Arrays.binarySearch(tombstones, value) < 0 &&
+                        (Arrays.binarySearch(snapshot.packedRowIds, value) >= 0 || unpackedRowIds.contains(rowId)))
+                    removed[count++] = value;
+            }
+            if (count > 0) {
+                removed = Arrays.copyOf(removed, count);
+                Arrays.sort(removed);
+                tombstones = merge(tombstones, removed);
+            }
+        }
+        //Only the current snapshot is ever appended to
+        UnpackedEntries unpacked = snapshot.unpacked.append(insertions);
+        Snapshot next = new Snapshot(snapshot.version + 1, snapshot.root, snapshot.packedRowIds, unpacked, tombstones, storeGeometries);
+        if (repack || unpacked.size > Math.max(MIN_CHANGES_BEFORE_REPACK, next.packedRowIds.length / 8) ||
+                tombstones.length > Math.max(MIN_CHANGES_BEFORE_REPACK, next.packedRowIds.length / 4)) {
+            next = pack(next.version, next.entries());
+            if (LOG.isDebugEnabled())
+                LOG.debug("Repacked spatial R-tree: " + next.packedRowIds.length + " entries");
+        }
+        current.set(next);
+    }
+
+    /**
+     * Records the changes of a committed transaction, to be applied later in one pass by {@link #applyDeferred()},
+     * e.g. at the end of a bulk load. The current snapshot is left as it is meanwhile.
+     * An entry inserted and then removed before that never reaches the tree.
+     *
+     * @param insertions the inserted entries
+     * @param removals the ROW_IDs of the removed entries
+     */
+    public synchronized void defer(List<Entry> insertions, List<Long> removals) {
+        for (Entry entry : insertions) {
+            deferredInsertions.put(Long.valueOf(entry.rowId), entry);
+        }
+        for (Long rowId : removals) {
+            if (deferredInsertions.remove(rowId) == null)
+                deferredRemovals.add(rowId);
+        }
+    }
+
+    /**
+     * Applies the deferred changes, if any, and packs the whole tree in one pass.
+     */
+    public synchronized void applyDeferred() {
+        try {
+            if (!deferredInsertions.isEmpty() || !deferredRemovals.isEmpty())
+                apply(new ArrayList<Entry>(deferredInsertions.values()), new ArrayList<Long>(deferredRemovals), true);
+        } finally {
+            deferredInsertions.clear();
+            deferredRemovals.clear();
+        }
+    }
+
+    /**
+     * Returns whether changes are waiting for {@link #applyDeferred()}.
+     */
+    public synchronized boolean hasDeferredChanges() {
+        return !deferredInsertions.isEmpty() || !deferredRemovals.isEmpty();
+    }
+
+    /**
+     * Returns the number of live entries in the current snapshot.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return current.get().size();
+    }
+
+    /**
+     * Searches the current snapshot.
+     *
+     * @see Snapshot#search(Envelope, int)
+     */
+    public long[] search(Envelope EPSG4326_envelope, int spatialOp) {
+        return current.get().search(EPSG4326_envelope, spatialOp);
+    }
+
+    /**
+     * Checks whether an envelope passes the filter step of a spatial operator.
+     *
+     * @param bounds the envelope of the indexed geometry
+     * @param query the envelope of the query geometry
+     * @param spatialOp the spatial operator
+     * @return true if the indexed geometry may match
+     */
+    static boolean matches(Bounds bounds, Envelope query, int spatialOp) {
+        switch (spatialOp) {
+        //BBoxes are equal
+        case SpatialOperator.EQUALS:
+            return bounds.minX == query.getMinX() && bounds.maxX == query.getMaxX() &&
+                bounds.minY == query.getMinY() && bounds.maxY == query.getMaxY();
+        //Nothing much we can do with the BBox at this stage
+        case SpatialOperator.DISJOINT:
+            return true;
+        //BBoxes intersect themselves
+        case SpatialOperator.INTERSECTS:
+        case SpatialOperator.TOUCHES:
+        case SpatialOperator.CROSSES:
+        case SpatialOperator.OVERLAPS:
+            return bounds.intersects(query);
+        //BBox is fully within
+        case SpatialOperator.WITHIN:
+            return bounds.minX >= query.getMinX() && bounds.maxX <= query.getMaxX() &&
+                bounds.minY >= query.getMinY() && bounds.maxY <= query.getMaxY();
+        //BBox fully contains
+        case SpatialOperator.CONTAINS:
+            return bounds.contains(query);
+        default:
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        }
+    }
+
+    //Sort-Tile-Recursive packing, see Leutenegger, Lopez and Edgington (1997)
+    private Snapshot pack(long version, List<Entry> entries) {
+        unpackedRowIds.clear();
+        if (entries.isEmpty())
+            return new Snapshot(version, null, NO_ROW_IDS, UnpackedEntries.EMPTY, NO_ROW_IDS, storeGeometries);
+        List<? extends Bounds> level = entries;
+        boolean isLeaf = true;
+        do {
+            level = packLevel(level, isLeaf);
+            isLeaf = false;
+        } while (level.size() > 1);
+        long[] packedRowIds = new long[entries.size()];
+        for (int i = 0; i < packedRowIds.length; i++) {
+            packedRowIds[i] = entries.get(i).rowId;
+        }
+        Arrays.sort(packedRowIds);
+        return new Snapshot(version, (Node)level.get(0), packedRowIds, UnpackedEntries.EMPTY, NO_ROW_IDS, storeGeometries);
+    }
+
+    //Merges two sorted arrays of row IDs, without duplicates
+    private static long[] merge(long[] a, long[] b) {
+        long[] merged = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            long value = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+            if (n == 0 || merged[n - 1] != value)
+                merged[n++] = value;
+        }
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    private List<Node> packLevel(List<? extends Bounds> items, boolean isLeaf) {
+        int nodeCount = (int)Math.ceil((double)items.size() / nodeCapacity);
+        int sliceCount = (int)Math.ceil(Math.sqrt(nodeCount));
+        int sliceSize = sliceCount * nodeCapacity;
+        List<Bounds> sorted = new ArrayList<Bounds>(items);
+        Collections.sort(sorted, CENTRE_X_COMPARATOR);
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        for (int sliceStart = 0; sliceStart < sorted.size(); sliceStart += sliceSize) {
+            List<Bounds> slice = sorted.subList(sliceStart, Math.min(sliceStart + sliceSize, sorted.size()));
+            Collections.sort(slice, CENTRE_Y_COMPARATOR);
+            for (int nodeStart = 0; nodeStart < slice.size(); nodeStart += nodeCapacity) {
+                List<Bounds> children = slice.subList(nodeStart, Math.min(nodeStart + nodeCapacity, slice.size()));
+                nodes.add(new Node(children.toArray(new Bounds[children.size()]), isLeaf));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * An immutable state of the tree.
+     */
+    public static class Snapshot {
+
+        private final long version;
+        private final Node root;
+        //Sorted row IDs of the packed entries
+        private final long[] packedRowIds;
+        //Entries inserted since the last packing
+        private final UnpackedEntries unpacked;
+        //Sorted row IDs removed since the last packing
+        private final long[] tombstones;
+        private final boolean storeGeometries;
+
+        private Snapshot(long version, Node root, long[] packedRowIds, UnpackedEntries unpacked, long[] tombstones, boolean storeGeometries) {
+            this.version = version;
+            this.root = root;
+            this.packedRowIds = packedRowIds;
+            this.unpacked = unpacked;
+            this.tombstones = tombstones;
+            this.storeGeometries = storeGeometries;
+        }
+
+        /**
+         * Returns the version of the snapshot, that increases with every published change.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns whether the entries carry their geometry and node.
+         */
+        public boolean hasGeometries() {
+            return storeGeometries;
+        }
+
+        /**
+         * Returns the number of live entries.
+         *
+         * @return the number of entries
+         */
+        public int size() {
+            return packedRowIds.length - tombstones.length + unpacked.size;
+        }
+
+        /**
+         * Returns the row IDs of the entries whose envelope passes the filter step
+         * of the given spatial operator against the query envelope.
+         *
+         * For {@link SpatialOperator#DISJOINT}, the filter step can not select anything:
+         * the entries whose envelope intersects the query envelope are returned instead.
+         * Those are the only ones that need to be refined, the others being disjoint anyway.
+         *
+         * @param EPSG4326_envelope the query envelope
+         * @param spatialOp the spatial operator
+         * @return the row IDs, sorted
+         */
+        public long[] search(Envelope EPSG4326_envelope, int spatialOp) {
+            List<Entry> entries = searchEntries(EPSG4326_envelope, spatialOp);
+            long[] rowIds = new long[entries.size()];
+            for (int i = 0; i < rowIds.length; i++) {
+                rowIds[i] = entries.get(i).rowId;
+            }
+            Arrays.sort(rowIds);
+            return rowIds;
+        }
+
+        /**
+         * Returns the entries whose envelope passes the filter step of the given spatial operator,
+         * in no particular order.
+         *
+         * @see #search(Envelope, int)
+         */
+        public List<Entry> searchEntries(Envelope EPSG4326_envelope, int spatialOp) {
+            if (spatialOp == SpatialOperator.DISJOINT)
+                spatialOp = SpatialOperator.INTERSECTS;
+            List<Entry> result = new ArrayList<Entry>();
+            if (root != null)
+                search(root, EPSG4326_envelope, spatialOp, result);
+            for (int i = 0; i < unpacked.size; i++) {
+                Entry entry = unpacked.get(i);
+                if (matches(entry, EPSG4326_envelope, spatialOp) && isLive(entry))
+                    result.add(entry);
+            }
+            return result;
+        }
+
+        private void search(Node node, Envelope query, int spatialOp, List<Entry> result) {
+            for (int i = 0; i < node.children.length; i++) {
+                Bounds child = node.children[i];
+                if (!child.intersects(query))
+                    continue;
+                if (node.isLeaf) {
+                    Entry entry = (Entry)child;
+                    if (matches(entry, query, spatialOp) && isLive(entry))
+                        result.add(entry);
+                } else {
+                    //An entry can only contain (or equal) the query if its parent does so
+                    if ((spatialOp == SpatialOperator.CONTAINS || spatialOp == SpatialOperator.EQUALS) && !child.contains(query))
+                        continue;
+                    search((Node)child, query, spatialOp, result);
+                }
+            }
+        }
+
+        /**
+         * Returns all the live entries.
+         *
+         * @return the entries
+         */
+        public List<Entry> entries() {
+            List<Entry> entries = new ArrayList<Entry>(size());
+            if (root != null)
+                collect(root, entries);
+            for (int i = 0; i < unpacked.size; i++) {
+                Entry entry = unpacked.get(i);
+                if (isLive(entry))
+                    entries.add(entry);
+            }
+            return entries;
+        }
+
+        /**
+         * Returns the live entries by increasing geodesic distance of their envelope to the query envelope (see {@link Bounds#distance(Envelope)}).
+         *
+         * The tree is traversed best-first, with a priority queue of the nodes and entries met so far :
+         * the nodes are only opened as far as the entries are iterated.
+         *
+         * @param EPSG4326_envelope the query envelope
+         * @return the entries, the closest first
+         */
+        public Iterator<Entry> nearestEntries(final Envelope EPSG4326_envelope) {
+            final PriorityQueue<Neighbour> queue = new PriorityQueue<Neighbour>();
+            if (root != null)
+                queue.add(new Neighbour(root, root.distance(EPSG4326_envelope)));
+            for (int i = 0; i < unpacked.size; i++) {
+                Entry entry = unpacked.get(i);
+                queue.add(new Neighbour(entry, entry.distance(EPSG4326_envelope)));
+            }
+            return new Iterator<Entry>() {
+
+                private Entry next = advance();
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Entry next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    Entry entry = next;
+                    next = advance();
+                    return entry;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private Entry advance() {
+                    while (!queue.isEmpty()) {
+                        Bounds bounds = queue.poll().bounds;
+                        if (bounds instanceof Node) {
+                            Node node = (Node)bounds;
+                            for (int i = 0; i < node.children.length; i++) {
+                                queue.add(new Neighbour(node.children[i], node.children[i].distance(EPSG4326_envelope)));
+                            }
+                        } else if (isLive((Entry)bounds))
+                            return (Entry)bounds;
+                    }
+                    return null;
+                }
+            };
+        }
+
+        private void collect(Node node, List<Entry> entries) {
+            for (int i = 0; i < node.children.length; i++) {
+                if (node.isLeaf) {
+                    Entry entry = (Entry)node.children[i];
+                    if (isLive(entry))
+                        entries.add(entry);
+                } else
+                    collect((Node)node.children[i], entries);
+            }
+        }
+
+        private boolean isLive(Entry entry) {
+            return tombstones.length == 0 || Arrays.binarySearch(tombstones, entry.rowId) < 0;
+        }
+    }
+
+    private final static Comparator<Bounds> CENTRE_X_COMPARATOR = new Comparator<Bounds>() {
+        public int compare(Bounds b1, Bounds b2) {
+            return Double.compare(b1.minX + b1.maxX, b2.minX + b2.maxX);
+        }
+    };
+
+    private final static Comparator<Bounds> CENTRE_Y_COMPARATOR = new Comparator<Bounds>() {
+        public int compare(Bounds b1, Bounds b2) {
+            return Double.compare(b1.minY + b1.maxY, b2.minY + b2.maxY);
+        }
+    };
+
+    static abstract class Bounds {
+
+        double minX;
+        double maxX;
+        double minY;
+        double maxY;
+
+        boolean intersects(Envelope envelope) {
+            return !(envelope.getMinX() > maxX || envelope.getMaxX() < minX ||
+                envelope.getMinY() > maxY || envelope.getMaxY() < minY);
+        }
+
+        boolean contains(Envelope envelope) {
+            return envelope.getMinX() >= minX && envelope.getMaxX() <= maxX &&
+                envelope.getMinY() >= minY && envelope.getMaxY() <= maxY;
+        }
+
+        /**
+         * Returns a lower bound of the geodesic distance between the bounds and an envelope, in metres,
+         * 0 if they intersect. It is never more than the distance between the geometries they bound,
+         * and never more than the distance of the bounds they contain.
+         */
+        double distance(Envelope envelope) {
+            return Geodesic.minDistance(minX, maxX, minY, maxY, envelope);
+        }
+    }
+
+    //A node or an entry waiting in the queue of a nearest neighbour search
+    private static class Neighbour implements Comparable<Neighbour> {
+
+        final Bounds bounds;
+        final double distance;
+
+        Neighbour(Bounds bounds, double distance) {
+            this.bounds = bounds;
+            this.distance = distance;
+        }
+
+        public int compareTo(Neighbour other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    public static class Entry extends Bounds {
+
+        final long rowId;
+        //0 if unknown
+        private final int docId;
+        //Only when the tree stores the geometries
+        private final byte[] EPSG4326_wkb;
+        private final int collectionId;
+        private final int nodeIdUnits;
+        private final byte[] nodeId;
+
+        public Entry(long rowId, double minX, double maxX, double minY, double maxY) {
+            this(rowId, minX, maxX, minY, maxY, null, 0, 0, 0, null);
+        }
+
+        public Entry(long rowId, Envelope envelope) {
+            this(rowId, envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY());
+        }
+
+        public Entry(long rowId, double minX, double maxX, double minY, double maxY, int docId) {
+            this(rowId, minX, maxX, minY, maxY, null, docId, 0, 0, null);
+        }
+
+        public Entry(long rowId, double minX, double maxX, double minY, double maxY,
+                byte[] EPSG4326_wkb, int docId, int collectionId, int nodeIdUnits, byte[] nodeId) {
+            this.rowId = rowId;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.EPSG4326_wkb = EPSG4326_wkb;
+            this.docId = docId;
+            this.collectionId = collectionId;
+            this.nodeIdUnits = nodeIdUnits;
+            this.nodeId = nodeId;
+        }
+
+        public long getRowId() {
+            return rowId;
+        }
+
+        public byte[] getEPSG4326WKB() {
+            return EPSG4326_wkb;
+        }
+
+        public int getDocId() {
+            return docId;
+        }
+
+        public int getCollectionId() {
+            return collectionId;
+        }
+
+        public int getNodeIdUnits() {
+            return nodeIdUnits;
+        }
+
+        public byte[] getNodeId() {
+            return nodeId;
+        }
+    }
+
+    private static class Node extends Bounds {
+
+        final Bounds[] children;
+        final boolean isLeaf;
+
+        Node(Bounds[] children, boolean isLeaf) {
+            this.children = children;
+            this.isLeaf = isLeaf;
+            minX = Double.POSITIVE_INFINITY;
+            maxX = Double.NEGATIVE_INFINITY;
+            minY = Double.POSITIVE_INFINITY;
+            maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < children.length; i++) {
+                minX = Math.min(minX, children[i].minX);
+                maxX = Math.max(maxX, children[i].maxX);
+                minY = Math.min(minY, children[i].minY);
+                maxY = Math.max(maxY, children[i].maxY);
+            }
+        }
+    }
+
+    /**
+     * The entries inserted since the last packing, as seen by a snapshot.
+     *
+     * The chunks are shared with the earlier snapshots, which only see their first entries :
+     * the newer entries are written past them, and only ever by the current snapshot.
+     */
+    private static class UnpackedEntries {
+
+        final static UnpackedEntries EMPTY = new UnpackedEntries(new Entry[0][], 0);
+
+        private final Entry[][] chunks;
+        final int size;
+
+        private UnpackedEntries(Entry[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        Entry get(int index) {
+            return chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+        }
+
+        UnpackedEntries append(List<Entry> entries) {
+            if (entries.isEmpty())
+                return this;
+            int grownSize = size + entries.size();
+            int chunkCount = (grownSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            Entry[][] grown = chunks;
+            if (chunkCount > chunks.length)
+                grown = Arrays.copyOf(chunks, Math.max(chunkCount, chunks.length * 2));
+            for (int i = 0; i < entries.size(); i++) {
+                int index = size + i;
+                Entry[] chunk = grown[index / CHUNK_SIZE];
+                if (chunk == null) {
+                    chunk = new Entry[CHUNK_SIZE];
+                    grown[index / CHUNK_SIZE] = chunk;
+                }
+                chunk[index % CHUNK_SIZE] = entries.get(i);
+            }
+            return new UnpackedEntries(grown, grownSize);
+        }
+    }
+}
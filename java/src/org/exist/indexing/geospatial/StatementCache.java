@@ -0,0 +1,141 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A bounded, least recently used, cache of the prepared statements of a connection.
+ *
+ * The statements are keyed by their SQL, which reflects their shape, the selected
+ * property column and the spatial operator. Since a connection is only used by one broker
+ * at a time, the cache is not thread-safe. The statements it returns must not be closed
+ * by the callers ; they are closed when they are evicted or when the cache is closed.
+ */
+public class StatementCache {
+
+    private final static Logger LOG = LogManager.getLogger(StatementCache.class);
+
+    private final Connection conn;
+    private final Statistics statistics;
+    private final Map<String, PreparedStatement> statements;
+
+    /**
+     * @param conn the connection
+     * @param capacity the maximal number of cached statements. It should be larger than the number
+     *  of statements that are used at the same time.
+     * @param statistics where to count the hits and misses
+     */
+    public StatementCache(Connection conn, final int capacity, Statistics statistics) {
+        this.conn = conn;
+        this.statistics = statistics;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity)
+                    return false;
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL, with its parameters cleared.
+     *
+     * @param sql the SQL
+     * @return the statement
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null) {
+            statistics.hits.incrementAndGet();
+            ps.clearParameters();
+            return ps;
+        }
+        statistics.misses.incrementAndGet();
+        long start = System.nanoTime();
+        ps = conn.prepareStatement(sql);
+        statistics.prepareTime.addAndGet(System.nanoTime() - start);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    /**
+     * Closes all the cached statements.
+     */
+    public void close() {
+        for (PreparedStatement ps : statements.values()) {
+            close(ps);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            LOG.warn(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Counters shared by the caches of all the connections.
+     */
+    public static class Statistics {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong prepareTime = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * Returns the time spent preparing the statements, in nanoseconds.
+         */
+        public long getPrepareTime() {
+            return prepareTime.get();
+        }
+
+        @Override
+        public String toString() {
+            return getHits() + " hits, " + getMisses() + " misses, " + getPrepareTime() / 1000 + " us spent preparing";
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.OperationNotFoundException;
+
+/**
+ * The coordinate reference systems and the transformations between them, decoded once
+ * for all the workers.
+ *
+ * The SRS names are normalized first : trimmed, and the known aliases replaced by their EPSG code.
+ * A transformation that can only be found in lenient mode is flagged as such, without affecting
+ * the other pairs. The math transforms are immutable and may be shared by several threads.
+ */
+public class TransformationCache {
+
+    private final static Logger LOG = LogManager.getLogger(TransformationCache.class);
+
+    //Upper case alias -> EPSG code
+    private final static Map<String, String> ALIASES = new HashMap<String, String>();
+    static {
+        //provisional workarounds
+        ALIASES.put("OSGB:BNG", "EPSG:27700");
+    }
+
+    private final ConcurrentMap<String, CoordinateReferenceSystem> systems = new ConcurrentHashMap<String, CoordinateReferenceSystem>();
+    private final ConcurrentMap<String, Transformation> transformations = new ConcurrentHashMap<String, Transformation>();
+
+    /**
+     * Returns the normalized form of an SRS name.
+     */
+    public static String normalize(String srsName) {
+        String name = srsName.trim();
+        String code = ALIASES.get(name.toUpperCase());
+        return code == null ? name : code;
+    }
+
+    /**
+     * Returns a coordinate reference system.
+     *
+     * @param srsName the SRS name, which is normalized
+     * @throws SpatialIndexException if it can't be decoded
+     */
+    public CoordinateReferenceSystem getCRS(String srsName) throws SpatialIndexException {
+        String name = normalize(srsName);
+        CoordinateReferenceSystem crs = systems.get(name);
+        if (crs != null)
+            return crs;
+        try {
+            crs = CRS.decode(name);
+        } catch (FactoryException e) {
+            LOG.error(e);
+            throw new SpatialIndexException("Unable to decode the coordinate reference system '" + name + "'");
+        }
+        CoordinateReferenceSystem previous = systems.putIfAbsent(name, crs);
+        return previous == null ? crs : previous;
+    }
+
+    /**
+     * Returns the transformation between two coordinate reference systems.
+     *
+     * @param sourceCRS the SRS name of the source, which is normalized
+     * @param targetCRS the SRS name of the target, which is normalized
+     * @throws SpatialIndexException if there is no transformation
+     */
+    public Transformation getTransformation(String sourceCRS, String targetCRS) throws SpatialIndexException {
+        String source = normalize(sourceCRS);
+        String target = normalize(targetCRS);
+        String key = source + "_" + target;
+        Transformation transformation = transformations.get(key);
+        if (transformation != null)
+            return transformation;
+        CoordinateReferenceSystem sourceSystem = getCRS(source);
+        CoordinateReferenceSystem targetSystem = getCRS(target);
+        try {
+            try {
+                transformation = new Transformation(CRS.findMathTransform(sourceSystem, targetSystem, false), false);
+            } catch (OperationNotFoundException e) {
+                LOG.info(e);
+                LOG.info("Switching to lenient mode for the transformation from '" + source + "' to '" + target + "'... beware of precision loss !");
+                //Last parameter set to true ; won't bail out if it can't find the Bursa Wolf parameters
+                //as it is the case in current gt2-epsg-wkt-2.4-M1.jar
+                transformation = new Transformation(CRS.findMathTransform(sourceSystem, targetSystem, true), true);
+            }
+        } catch (FactoryException e) {
+            LOG.error(e);
+            throw new SpatialIndexException("Unable to get a transformation from '" + source + "' to '" + target + "'");
+        }
+        Transformation previous = transformations.putIfAbsent(key, transformation);
+        if (previous != null)
+            return previous;
+        LOG.debug("Instantiated transformation from '" + source + "' to '" + target + "'");
+        return transformation;
+    }
+
+    /**
+     * A math transform, and whether it has been found in lenient mode.
+     */
+    public static class Transformation {
+
+        private final MathTransform transform;
+        private final boolean lenient;
+
+        Transformation(MathTransform transform, boolean lenient) {
+            this.transform = transform;
+            this.lenient = lenient;
+        }
+
+        public MathTransform getMathTransform() {
+            return transform;
+        }
+
+        public boolean isLenient() {
+            return lenient;
+        }
+    }
+}
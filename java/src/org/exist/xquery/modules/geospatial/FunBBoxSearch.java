@@ -0,0 +1,128 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.xquery.modules.geospatial;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.exist.dom.persistent.NodeSet;
+import org.exist.dom.QName;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndexWorker;
+import org.exist.indexing.geospatial.SpatialIndexException;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.DoubleValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The filter step of the spatial searches alone, on an envelope given by its coordinates :
+ * no GML is parsed, and the indexed geometries are neither decoded nor refined.
+ */
+public class FunBBoxSearch extends FunSpatialSearch {
+    protected static final FunctionParameterSequenceType MINX_PARAMETER = new FunctionParameterSequenceType("minx", Type.DOUBLE, Cardinality.EXACTLY_ONE, "The minimal X of the envelope");
+    protected static final FunctionParameterSequenceType MINY_PARAMETER = new FunctionParameterSequenceType("miny", Type.DOUBLE, Cardinality.EXACTLY_ONE, "The minimal Y of the envelope");
+    protected static final FunctionParameterSequenceType MAXX_PARAMETER = new FunctionParameterSequenceType("maxx", Type.DOUBLE, Cardinality.EXACTLY_ONE, "The maximal X of the envelope");
+    protected static final FunctionParameterSequenceType MAXY_PARAMETER = new FunctionParameterSequenceType("maxy", Type.DOUBLE, Cardinality.EXACTLY_ONE, "The maximal Y of the envelope");
+    protected static final FunctionParameterSequenceType SRS_PARAMETER = new FunctionParameterSequenceType("srs", Type.STRING, Cardinality.EXACTLY_ONE, "The SRS of the coordinates");
+    protected static final Logger logger = LogManager.getLogger(FunBBoxSearch.class);
+
+    public final static FunctionSignature[] signatures = {
+        new FunctionSignature(
+            new QName("bbox-intersects", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns the nodes in $nodes that contain a geometry whose EPSG:4326 envelope intersects the envelope ($minx, $miny, $maxx, $maxy) in EPSG:4326",
+            new SequenceType[] { NODES_PARAMETER, MINX_PARAMETER, MINY_PARAMETER, MAXX_PARAMETER, MAXY_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry whose envelope intersects the envelope")
+        ),
+        new FunctionSignature(
+            new QName("bbox-intersects", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns the nodes in $nodes that contain a geometry whose EPSG:4326 envelope intersects the envelope ($minx, $miny, $maxx, $maxy) in SRS $srs. " +
+            "The envelope is transformed to EPSG:4326 first",
+            new SequenceType[] { NODES_PARAMETER, MINX_PARAMETER, MINY_PARAMETER, MAXX_PARAMETER, MAXY_PARAMETER, SRS_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry whose envelope intersects the envelope")
+        ),
+        new FunctionSignature(
+            new QName("bbox-within", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns the nodes in $nodes that contain a geometry whose EPSG:4326 envelope is within the envelope ($minx, $miny, $maxx, $maxy) in EPSG:4326",
+            new SequenceType[] { NODES_PARAMETER, MINX_PARAMETER, MINY_PARAMETER, MAXX_PARAMETER, MAXY_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry whose envelope is within the envelope")
+        ),
+        new FunctionSignature(
+            new QName("bbox-within", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns the nodes in $nodes that contain a geometry whose EPSG:4326 envelope is within the envelope ($minx, $miny, $maxx, $maxy) in SRS $srs. " +
+            "The envelope is transformed to EPSG:4326 first",
+            new SequenceType[] { NODES_PARAMETER, MINX_PARAMETER, MINY_PARAMETER, MAXX_PARAMETER, MAXY_PARAMETER, SRS_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry whose envelope is within the envelope")
+        )
+    };
+
+    public FunBBoxSearch(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        Sequence nodes = args[0];
+        if (nodes.isEmpty())
+            return Sequence.EMPTY_SEQUENCE;
+        double minX = ((DoubleValue)args[1].itemAt(0)).getDouble();
+        double minY = ((DoubleValue)args[2].itemAt(0)).getDouble();
+        double maxX = ((DoubleValue)args[3].itemAt(0)).getDouble();
+        double maxY = ((DoubleValue)args[4].itemAt(0)).getDouble();
+        //Also rejects NaN
+        if (!(minX <= maxX && minY <= maxY))
+            throw new XPathException(this, "Invalid envelope: (" + minX + ", " + minY + ", " + maxX + ", " + maxY + ")");
+        try {
+            AbstractGMLJDBCIndexWorker indexWorker = (AbstractGMLJDBCIndexWorker)
+                context.getBroker().getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+            if (indexWorker == null) {
+                logger.error("Unable to find a spatial index worker");
+                throw new XPathException("Unable to find a spatial index worker");
+            }
+            Envelope EPSG4326_envelope = new Envelope(minX, maxX, minY, maxY);
+            if (getArgumentCount() > 5) {
+                String sourceCRS = args[5].itemAt(0).getStringValue().trim();
+                EPSG4326_envelope = indexWorker.transformEnvelope(EPSG4326_envelope, sourceCRS, "EPSG:4326");
+            }
+            int spatialOp = isCalledAs("bbox-within") ? SpatialOperator.WITHIN : SpatialOperator.INTERSECTS;
+            NodeSet contextSet = nodes.toNodeSet();
+            //Wait for the background indexing of the documents, if any
+            indexWorker.awaitIndexing(contextSet.getDocumentSet(), getIndexWait());
+            Sequence result = indexWorker.bboxSearch(context.getBroker(), contextSet, EPSG4326_envelope, spatialOp);
+            hasUsedIndex = true;
+            return result;
+        } catch (SpatialIndexException e) {
+            logger.error(e.getMessage(), e);
+            throw new XPathException(e);
+        }
+    }
+}
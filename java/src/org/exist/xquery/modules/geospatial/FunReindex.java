@@ -0,0 +1,113 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.xquery.modules.geospatial;
+
+import java.net.URISyntaxException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.exist.collections.Collection;
+import org.exist.dom.QName;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndexWorker;
+import org.exist.indexing.geospatial.ParallelReindexer;
+import org.exist.indexing.geospatial.SpatialIndexException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+public class FunReindex extends BasicFunction {
+
+    protected static final Logger logger = LogManager.getLogger(FunReindex.class);
+
+    public final static FunctionSignature[] signatures = {
+        new FunctionSignature(
+            new QName("reindex", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Reindexes the geometries of collection $collection-uri and its descendants in the spatial index only. " +
+            "The documents are streamed in parallel by as many threads as configured for the index. " +
+            "The calling user must be a DBA.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("collection-uri", Type.STRING, Cardinality.EXACTLY_ONE, "The collection URI")
+            },
+            new FunctionReturnSequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE, "the number of indexed geometries")
+        ),
+        new FunctionSignature(
+            new QName("reindex", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Reindexes the geometries of collection $collection-uri and its descendants in the spatial index only. " +
+            "The documents are streamed in parallel by $threads threads. " +
+            "The calling user must be a DBA.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("collection-uri", Type.STRING, Cardinality.EXACTLY_ONE, "The collection URI"),
+                new FunctionParameterSequenceType("threads", Type.INTEGER, Cardinality.EXACTLY_ONE, "The number of threads")
+            },
+            new FunctionReturnSequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE, "the number of indexed geometries")
+        )
+    };
+
+    public FunReindex(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        if (!context.getSubject().hasDbaRole())
+            throw new XPathException(this, "Permission denied : only a DBA can reindex the spatial index");
+        AbstractGMLJDBCIndexWorker indexWorker = (AbstractGMLJDBCIndexWorker)
+            context.getBroker().getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+        if (indexWorker == null) {
+            logger.error("Unable to find a spatial index worker");
+            throw new XPathException("Unable to find a spatial index worker");
+        }
+        AbstractGMLJDBCIndex index = (AbstractGMLJDBCIndex) indexWorker.getIndex();
+        String uri = args[0].itemAt(0).getStringValue();
+        int threads = index.getReindexThreads();
+        if (args.length > 1) {
+            threads = ((IntegerValue) args[1].itemAt(0)).getInt();
+            if (threads < 1)
+                throw new XPathException(this, "The number of threads must be positive: " + threads);
+        }
+        try {
+            Collection collection = context.getBroker().getCollection(XmldbURI.xmldbUriFor(uri));
+            if (collection == null)
+                throw new XPathException(this, "Collection not found: " + uri);
+            return new IntegerValue(new ParallelReindexer(index, threads).reindex(context.getBroker(), collection));
+        } catch (URISyntaxException e) {
+            throw new XPathException(this, "Invalid collection URI: " + uri, e);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException(this, e);
+        } catch (SpatialIndexException e) {
+            logger.error(e.getMessage());
+            throw new XPathException(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.xquery.modules.geospatial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.dom.QName;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndexWorker;
+import org.exist.indexing.geospatial.SpatialIndexException;
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.array.ArrayType;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+public class FunSpatialJoin extends FunSpatialSearch {
+
+    protected static final Logger logger = LogManager.getLogger(FunSpatialJoin.class);
+
+    public final static FunctionSignature[] signatures = {
+        new FunctionSignature(
+            new QName("join", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns the pairs of nodes in $left and in $right whose geometries are such that the left geometry $op the right one. " +
+            "$op is one of 'equals', 'intersects', 'touches', 'crosses', 'within', 'contains' and 'overlaps'. " +
+            "The pairs are returned in document order of the left node, then of the right node",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("left", Type.NODE, Cardinality.ZERO_OR_MORE, "The nodes of the left side"),
+                new FunctionParameterSequenceType("right", Type.NODE, Cardinality.ZERO_OR_MORE, "The nodes of the right side"),
+                new FunctionParameterSequenceType("op", Type.STRING, Cardinality.EXACTLY_ONE, "The spatial operator")
+            },
+            new FunctionReturnSequenceType(Type.ARRAY, Cardinality.ZERO_OR_MORE, "the matching pairs, as arrays of a left node and a right node")
+        )
+    };
+
+    public FunSpatialJoin(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        String op = args[2].itemAt(0).getStringValue().trim();
+        int spatialOp = SpatialOperator.UNKNOWN;
+        if ("equals".equals(op))
+            spatialOp = SpatialOperator.EQUALS;
+        else if ("intersects".equals(op))
+            spatialOp = SpatialOperator.INTERSECTS;
+        else if ("touches".equals(op))
+            spatialOp = SpatialOperator.TOUCHES;
+        else if ("crosses".equals(op))
+            spatialOp = SpatialOperator.CROSSES;
+        else if ("within".equals(op))
+            spatialOp = SpatialOperator.WITHIN;
+        else if ("contains".equals(op))
+            spatialOp = SpatialOperator.CONTAINS;
+        else if ("overlaps".equals(op))
+            spatialOp = SpatialOperator.OVERLAPS;
+        else
+            throw new XPathException(this, "Unsupported spatial operator for a join: " + op);
+        if (args[0].isEmpty() || args[1].isEmpty())
+            return Sequence.EMPTY_SEQUENCE;
+        try {
+            AbstractGMLJDBCIndexWorker indexWorker = (AbstractGMLJDBCIndexWorker)
+                context.getBroker().getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+            if (indexWorker == null) {
+                logger.error("Unable to find a spatial index worker");
+                throw new XPathException("Unable to find a spatial index worker");
+            }
+            NodeSet left = args[0].toNodeSet();
+            NodeSet right = args[1].toNodeSet();
+            //Wait for the background indexing of the documents, if any
+            indexWorker.awaitIndexing(left.getDocumentSet(), getIndexWait());
+            indexWorker.awaitIndexing(right.getDocumentSet(), getIndexWait());
+            List<NodeProxy[]> pairs = indexWorker.join(context.getBroker(), left, right, spatialOp);
+            hasUsedIndex = true;
+            ValueSequence result = new ValueSequence(pairs.size());
+            for (NodeProxy[] pair : pairs) {
+                List<Sequence> members = new ArrayList<Sequence>(2);
+                members.add(pair[0]);
+                members.add(pair[1]);
+                result.add(new ArrayType(context, members));
+            }
+            return result;
+        } catch (SpatialIndexException e) {
+            logger.error(e.getMessage(), e);
+            throw new XPathException(e);
+        }
+    }
+}
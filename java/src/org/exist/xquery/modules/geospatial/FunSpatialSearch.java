@@ -27,6 +27,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
 import org.exist.dom.QName;
 import org.exist.indexing.geospatial.AbstractGMLJDBCIndex;
 import org.exist.indexing.geospatial.AbstractGMLJDBCIndexWorker;
@@ -36,10 +37,13 @@ import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.IndexUseReporter;
+import org.exist.xquery.Option;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.DoubleValue;
 import org.exist.xquery.value.FunctionReturnSequenceType;
 import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.IntegerValue;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
@@ -51,6 +55,9 @@ import com.vividsolutions.jts.geom.Geometry;
 public class FunSpatialSearch extends BasicFunction implements IndexUseReporter {
     protected static final FunctionParameterSequenceType NODES_PARAMETER = new FunctionParameterSequenceType("nodes", Type.NODE, Cardinality.ZERO_OR_MORE, "The nodes");
     protected static final FunctionParameterSequenceType GEOMETRY_PARAMETER = new FunctionParameterSequenceType("geometry", Type.NODE, Cardinality.ZERO_OR_ONE, "The geometry");
+    protected static final FunctionParameterSequenceType K_PARAMETER = new FunctionParameterSequenceType("k", Type.INTEGER, Cardinality.EXACTLY_ONE, "The number of nearest nodes to return");
+    protected static final FunctionParameterSequenceType METRES_PARAMETER = new FunctionParameterSequenceType("metres", Type.DOUBLE, Cardinality.EXACTLY_ONE, "The distance in metres");
+    protected static final FunctionParameterSequenceType MAX_PARAMETER = new FunctionParameterSequenceType("max", Type.INTEGER, Cardinality.EXACTLY_ONE, "The maximal number of nodes to return. The geometries of the following nodes are not checked");
     protected static final Logger logger = LogManager.getLogger(FunSpatialSearch.class);
     boolean hasUsedIndex = false;
 
@@ -102,6 +109,68 @@ public class FunSpatialSearch extends BasicFunction implements IndexUseReporter
             "Returns the nodes in $nodes that contain a geometry which overlaps geometry $geometry",
             new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER },
             new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry which overlaps geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("equals", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which is equal to geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which is equal to geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("disjoint", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which is disjoint with geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which is disjoint with geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("intersects", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which instersects with geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which instersects with geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("touches", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which touches geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which touches geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("crosses", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which crosses geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which crosses geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("within", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which is within geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which is within geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("contains", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which contains geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which contains geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("overlaps", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the first $max nodes in $nodes that contain a geometry which overlaps geometry $geometry",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, MAX_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the first $max nodes in $nodes that contain a geometry which overlaps geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("nearest", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, by increasing distance, the $k nodes in $nodes that contain the geometries nearest to geometry $geometry. " +
+            "The distances are geodesic, in metres on the WGS84 ellipsoid. Ties are returned in document order",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, K_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the $k nodes in $nodes that contain the geometries nearest to geometry $geometry")
+        ),
+        new FunctionSignature(
+            new QName("within-distance", GeoSpatialModule.NAMESPACE_URI, GeoSpatialModule.PREFIX),
+            "Returns, in document order, the nodes in $nodes that contain a geometry within $metres metres of geometry $geometry. " +
+            "The distances are geodesic, on the WGS84 ellipsoid",
+            new SequenceType[] { NODES_PARAMETER, GEOMETRY_PARAMETER, METRES_PARAMETER },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ZERO_OR_MORE, "the nodes in $nodes that contain a geometry within $metres metres of geometry $geometry")
         )
     };
 
@@ -118,7 +187,8 @@ public class FunSpatialSearch extends BasicFunction implements IndexUseReporter
             result = Sequence.EMPTY_SEQUENCE;
         } else if (args[1].isEmpty()) {
             //TODO : to be discussed. We could also return an empty sequence here
-            result = nodes;
+            //No node is near to nothing
+            result = isCalledAs("nearest") || isCalledAs("within-distance") ? Sequence.EMPTY_SEQUENCE : nodes;
         } else {
             try {
                 AbstractGMLJDBCIndexWorker indexWorker = (AbstractGMLJDBCIndexWorker)
@@ -141,6 +211,24 @@ public class FunSpatialSearch extends BasicFunction implements IndexUseReporter
                     logger.error("Unable to get a geometry from the node");
                     throw new XPathException("Unable to get a geometry from the node");
                 }
+                if (isCalledAs("nearest")) {
+                    int k = ((IntegerValue)args[2].itemAt(0)).getInt();
+                    if (k < 0)
+                        throw new XPathException(this, "The number of nearest nodes can't be negative: " + k);
+                    NodeSet contextSet = nodes.toNodeSet();
+                    indexWorker.awaitIndexing(contextSet.getDocumentSet(), getIndexWait());
+                    hasUsedIndex = true;
+                    return indexWorker.nearest(context.getBroker(), contextSet, EPSG4326_geometry, k);
+                }
+                if (isCalledAs("within-distance")) {
+                    double metres = ((DoubleValue)args[2].itemAt(0)).getDouble();
+                    if (metres < 0 || Double.isNaN(metres))
+                        throw new XPathException(this, "The distance must be a non-negative number: " + metres);
+                    NodeSet contextSet = nodes.toNodeSet();
+                    indexWorker.awaitIndexing(contextSet.getDocumentSet(), getIndexWait());
+                    hasUsedIndex = true;
+                    return indexWorker.withinDistance(context.getBroker(), contextSet, EPSG4326_geometry, metres);
+                }
                 int spatialOp = SpatialOperator.UNKNOWN;
                 if (isCalledAs("equals"))
                     spatialOp = SpatialOperator.EQUALS;
@@ -158,8 +246,17 @@ public class FunSpatialSearch extends BasicFunction implements IndexUseReporter
                     spatialOp = SpatialOperator.CONTAINS;
                 else if (isCalledAs("overlaps"))
                     spatialOp = SpatialOperator.OVERLAPS;
+                int maxResults = -1;
+                if (getArgumentCount() > 2) {
+                    maxResults = ((IntegerValue)args[2].itemAt(0)).getInt();
+                    if (maxResults < 0)
+                        throw new XPathException(this, "The maximal number of nodes can't be negative: " + maxResults);
+                }
+                NodeSet contextSet = nodes.toNodeSet();
+                //Wait for the background indexing of the documents, if any
+                indexWorker.awaitIndexing(contextSet.getDocumentSet(), getIndexWait());
                 //Search the EPSG:4326 in the index
-                result = indexWorker.search(context.getBroker(), nodes.toNodeSet(), EPSG4326_geometry, spatialOp);
+                result = indexWorker.search(context.getBroker(), contextSet, EPSG4326_geometry, spatialOp, maxResults);
                 hasUsedIndex = true;
             } catch (SpatialIndexException e) {
                 logger.error(e.getMessage(), e);
@@ -169,6 +266,22 @@ public class FunSpatialSearch extends BasicFunction implements IndexUseReporter
         return result;
     }
 
+    /**
+     * Returns how long to wait for the background indexing, as declared by the query.
+     * 
+     * @return the timeout in milliseconds, or -1 for the default of the index
+     */
+    protected long getIndexWait() throws XPathException {
+        Option option = context.getOption(GeoSpatialModule.INDEX_WAIT_OPTION);
+        if (option == null)
+            return -1;
+        try {
+            return Math.max(0, Long.parseLong(option.getContents().trim()));
+        } catch (NumberFormatException e) {
+            throw new XPathException(this, "Invalid value for option " + GeoSpatialModule.INDEX_WAIT_OPTION + ": " + option.getContents());
+        }
+    }
+
     public boolean hasUsedIndex() {
         return hasUsedIndex;
     }
@@ -26,6 +26,7 @@ package org.exist.xquery.modules.geospatial;
 
 import java.util.List;
 import java.util.Map;
+import org.exist.dom.QName;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
 
@@ -34,6 +35,8 @@ public class GeoSpatialModule extends AbstractInternalModule {
     public static final String NAMESPACE_URI = "http://exist-db.org/xquery/geospatial";
 
     public static final String PREFIX = "geospatial";
+    //How long the spatial searches wait for the background indexing, in milliseconds : declare option geospatial:index-wait "0";
+    public static final QName INDEX_WAIT_OPTION = new QName("index-wait", NAMESPACE_URI, PREFIX);
     public final static String INCLUSION_DATE = "2007-05-28";
     public final static String RELEASED_IN_VERSION = "eXist-1.2";
 
@@ -46,6 +49,21 @@ public class GeoSpatialModule extends AbstractInternalModule {
         new FunctionDef(FunSpatialSearch.signatures[5], FunSpatialSearch.class),
         new FunctionDef(FunSpatialSearch.signatures[6], FunSpatialSearch.class),
         new FunctionDef(FunSpatialSearch.signatures[7], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[8], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[9], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[10], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[11], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[12], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[13], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[14], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[15], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[16], FunSpatialSearch.class),
+        new FunctionDef(FunSpatialSearch.signatures[17], FunSpatialSearch.class),
+        new FunctionDef(FunBBoxSearch.signatures[0], FunBBoxSearch.class),
+        new FunctionDef(FunBBoxSearch.signatures[1], FunBBoxSearch.class),
+        new FunctionDef(FunBBoxSearch.signatures[2], FunBBoxSearch.class),
+        new FunctionDef(FunBBoxSearch.signatures[3], FunBBoxSearch.class),
+        new FunctionDef(FunSpatialJoin.signatures[0], FunSpatialJoin.class),
         new FunctionDef(FunGeometricProperties.signatures[0], FunGeometricProperties.class),
         new FunctionDef(FunGeometricProperties.signatures[1], FunGeometricProperties.class),
         new FunctionDef(FunGeometricProperties.signatures[2], FunGeometricProperties.class),
@@ -81,7 +99,9 @@ public class GeoSpatialModule extends AbstractInternalModule {
         new FunctionDef(FunGMLProducers.signatures[8], FunGMLProducers.class),
         new FunctionDef(FunGMLProducers.signatures[9], FunGMLProducers.class),
         new FunctionDef(FunGMLProducers.signatures[10], FunGMLProducers.class),
-        new FunctionDef(FunGMLProducers.signatures[11], FunGMLProducers.class)
+        new FunctionDef(FunGMLProducers.signatures[11], FunGMLProducers.class),
+        new FunctionDef(FunReindex.signatures[0], FunReindex.class),
+        new FunctionDef(FunReindex.signatures[1], FunReindex.class)
     };
 
     public GeoSpatialModule(Map<String, List<? extends Object>> parameters) {
@@ -28,7 +28,16 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    GMLIndexTest.class
+    GMLIndexTest.class,
+    SpatialRTreeTest.class,
+    HilbertCurveTest.class,
+    SpatialCellsTest.class,
+    EnvelopeStoreTest.class,
+    PreparedQueryGeometryTest.class,
+    NearestNeighboursTest.class,
+    DistanceQueryGeometryTest.class,
+    GMLHSQLIndexDefaultsTest.class,
+    GeometryCacheTest.class
 })
 public class AllGeoSpatialTests {
 }
@@ -0,0 +1,161 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Checks the distance queries against a brute force measure of densified geometries.
+ */
+public class DistanceQueryGeometryTest extends TestCase {
+
+    private final static int STEPS = 100;
+
+    private final GeometryFactory factory = new GeometryFactory();
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(4326);
+    }
+
+    public void testExpandAcrossTheAntimeridian() {
+        Envelope[] envelopes = Geodesic.expand(new Envelope(179.5, 179.9, 0, 1), 100000);
+        assertEquals(2, envelopes.length);
+        assertEquals(180.0, envelopes[0].getMaxX(), 0);
+        assertEquals(-180.0, envelopes[1].getMinX(), 0);
+        assertTrue(envelopes[1].contains(-179.5, 0.5));
+        assertFalse(envelopes[1].contains(-178.5, 0.5));
+        envelopes = Geodesic.expand(new Envelope(-179.9, -179.5, 0, 1), 100000);
+        assertEquals(2, envelopes.length);
+        assertEquals(-180.0, envelopes[0].getMinX(), 0);
+        assertEquals(180.0, envelopes[1].getMaxX(), 0);
+        assertTrue(envelopes[1].contains(179.5, 0.5));
+        assertEquals(1, Geodesic.expand(new Envelope(0, 1, 0, 1), 100000).length);
+        //Around a pole
+        envelopes = Geodesic.expand(new Envelope(0, 1, 89, 89.5), 100000);
+        assertEquals(1, envelopes.length);
+        assertEquals(360.0, envelopes[0].getWidth(), 0);
+    }
+
+    public void testAcrossTheAntimeridian() {
+        Geometry query = point(179.9, 10);
+        Geometry candidate = point(-179.9, 10);
+        double distance = Geodesic.distance(179.9, 10, -179.9, 10);
+        assertTrue(new DistanceQueryGeometry(query, distance + 1).matches(candidate));
+        assertFalse(new DistanceQueryGeometry(query, distance - 1).matches(candidate));
+        //The other way round, with a line
+        Geometry line = line(-179.95, 5, -179.95, 15);
+        distance = Geodesic.distance(179.9, 10, -179.95, 10);
+        assertTrue(new DistanceQueryGeometry(line, distance + 1).matches(query));
+        //Between a line and a point, a bit closer may still match
+        assertFalse(new DistanceQueryGeometry(line, distance * 0.9).matches(query));
+    }
+
+    public void testPoints() {
+        //Between points, the distance is exact
+        for (int i = 0; i < 1000; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 170 - 85;
+            //Maybe across the antimeridian
+            double x2 = x + random.nextDouble() * 4 - 2;
+            x2 = x2 > 180 ? x2 - 360 : (x2 < -180 ? x2 + 360 : x2);
+            double y2 = Math.max(-89, Math.min(89, y + random.nextDouble() * 4 - 2));
+            double distance = Geodesic.distance(x, y, x2, y2);
+            assertTrue(new DistanceQueryGeometry(point(x, y), distance * 1.0001).matches(point(x2, y2)));
+            assertFalse(new DistanceQueryGeometry(point(x, y), distance * 0.9999).matches(point(x2, y2)));
+        }
+    }
+
+    public void testNoCandidateMissed() {
+        //Lines that spread over a wide range of latitudes, away from the query's one
+        int matches = 0;
+        for (int i = 0; i < 300; i++) {
+            double y = random.nextDouble() * 140 - 70;
+            Geometry query = line(random.nextDouble() * 20 - 10, y, random.nextDouble() * 20 - 10, y + random.nextDouble() * 2);
+            double y1 = Math.max(-85, Math.min(85, y + random.nextDouble() * 40 - 20));
+            double y2 = Math.max(-85, Math.min(85, y + random.nextDouble() * 40 - 20));
+            Geometry candidate = line(random.nextDouble() * 30 - 15, y1, random.nextDouble() * 30 - 15, y2);
+            if (candidate.intersects(query))
+                continue;
+            double distance = bruteForceDistance(query, candidate);
+            //The brute force distance is a tiny bit longer than the exact one
+            assertTrue(query + " " + candidate + " " + distance, new DistanceQueryGeometry(query, distance).matches(candidate));
+            matches++;
+            //Far enough, the candidate is rejected
+            assertFalse(query + " " + candidate + " " + distance, new DistanceQueryGeometry(query, distance * 0.9).matches(candidate));
+        }
+        assertTrue(matches > 200);
+    }
+
+    private static double bruteForceDistance(Geometry g1, Geometry g2) {
+        Coordinate[] s1 = g1.getCoordinates();
+        Coordinate[] s2 = g2.getCoordinates();
+        double distance = Double.MAX_VALUE;
+        //Densifies the segments, then the pieces around the closest points found so far
+        for (int pass = 0; pass < 4; pass++) {
+            Coordinate[] c1 = densify(s1);
+            Coordinate[] c2 = densify(s2);
+            int best1 = 0;
+            int best2 = 0;
+            for (int i = 0; i < c1.length; i++) {
+                for (int j = 0; j < c2.length; j++) {
+                    double d = Geodesic.distance(c1[i].x, c1[i].y, c2[j].x, c2[j].y);
+                    if (d < distance) {
+                        distance = d;
+                        best1 = i;
+                        best2 = j;
+                    }
+                }
+            }
+            s1 = new Coordinate[] { c1[Math.max(0, best1 - 1)], c1[Math.min(STEPS, best1 + 1)] };
+            s2 = new Coordinate[] { c2[Math.max(0, best2 - 1)], c2[Math.min(STEPS, best2 + 1)] };
+        }
+        return distance;
+    }
+
+    private static Coordinate[] densify(Coordinate[] segment) {
+        Coordinate[] points = new Coordinate[STEPS + 1];
+        for (int i = 0; i <= STEPS; i++) {
+            double t = (double)i / STEPS;
+            points[i] = new Coordinate(segment[0].x + t * (segment[1].x - segment[0].x), segment[0].y + t * (segment[1].y - segment[0].y));
+        }
+        return points;
+    }
+
+    private Geometry point(double x, double y) {
+        return factory.createPoint(new Coordinate(x, y));
+    }
+
+    private Geometry line(double x1, double y1, double x2, double y2) {
+        return factory.createLineString(new Coordinate[] { new Coordinate(x1, y1), new Coordinate(x2, y2) });
+    }
+}
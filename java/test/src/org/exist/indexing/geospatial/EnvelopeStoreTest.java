@@ -0,0 +1,202 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Checks the envelope store across updates, reopening and compaction.
+ */
+public class EnvelopeStoreTest extends TestCase {
+
+    private Random random;
+    private Path file;
+
+    @Override
+    protected void setUp() throws IOException {
+        random = new Random(4326);
+        file = Files.createTempFile("spatial_index", ".envelopes");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public void testSearchIsSuperset() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        assertFalse(store.open(0));
+        List<SpatialRTree.Entry> entries = SpatialTestData.randomEntries(random, 1, 3000);
+        store.load(entries);
+        for (int i = 0; i < 50; i++) {
+            Envelope query = SpatialTestData.randomEnvelope(random, 20);
+            long[] found = store.search(query, SpatialOperator.INTERSECTS);
+            for (SpatialRTree.Entry entry : entries) {
+                if (SpatialRTree.matches(entry, query, SpatialOperator.INTERSECTS))
+                    assertTrue(Arrays.binarySearch(found, entry.getRowId()) >= 0);
+            }
+        }
+        store.close();
+    }
+
+    public void testRemovals() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        store.open(0);
+        List<SpatialRTree.Entry> entries = SpatialTestData.randomEntries(random, 1, 3000);
+        store.load(entries);
+        //Removes every third entry, an unknown one and one inserted by the same changes
+        List<Long> removals = new ArrayList<Long>();
+        for (int i = 1; i <= 3000; i += 3) {
+            removals.add(Long.valueOf(i));
+        }
+        removals.add(Long.valueOf(99999));
+        removals.add(Long.valueOf(3011));
+        store.apply(SpatialTestData.randomEntries(random, 3001, 11), removals);
+        assertEquals(3000 - 1000 + 10, store.size());
+        assertLive(store, 3010, 3000 - 1000 + 10);
+        //Removing them again changes nothing
+        store.apply(Collections.<SpatialRTree.Entry>emptyList(), removals);
+        assertEquals(3000 - 1000 + 10, store.size());
+        store.close();
+    }
+
+    public void testOutOfOrderInsertions() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        store.open(0);
+        store.load(SpatialTestData.randomEntries(random, 100, 100));
+        //Committed after a later transaction
+        store.apply(SpatialTestData.randomEntries(random, 1, 50), Collections.<Long>emptyList());
+        store.apply(Collections.<SpatialRTree.Entry>emptyList(), Arrays.asList(Long.valueOf(10), Long.valueOf(150)));
+        assertEquals(148, store.size());
+        assertLive(store, 199, 148);
+        store.close();
+        //Sorted again when reopened
+        store = new EnvelopeStore(file);
+        assertTrue(store.open(199));
+        store.apply(Collections.<SpatialRTree.Entry>emptyList(), Arrays.asList(Long.valueOf(11), Long.valueOf(151)));
+        assertEquals(146, store.size());
+        List<SpatialRTree.Entry> entries = store.entries();
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getRowId() < entries.get(i).getRowId());
+        }
+        store.close();
+    }
+
+    public void testReopen() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        store.open(0);
+        store.load(SpatialTestData.randomEntries(random, 1, 2000));
+        store.apply(Collections.<SpatialRTree.Entry>emptyList(), Arrays.asList(Long.valueOf(5), Long.valueOf(6)));
+        List<SpatialRTree.Entry> before = store.entries();
+        store.close();
+        //Clean and up to date
+        store = new EnvelopeStore(file);
+        assertTrue(store.open(2000));
+        assertEquals(1998, store.size());
+        assertSameEntries(before, store.entries());
+        store.close();
+        //The spatial table has moved on
+        store = new EnvelopeStore(file);
+        assertFalse(store.open(2001));
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    public void testDirtyStoreIsRebuilt() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        store.open(0);
+        store.load(SpatialTestData.randomEntries(random, 1, 100));
+        //Not closed : eXist crashed
+        EnvelopeStore reopened = new EnvelopeStore(file);
+        assertFalse(reopened.open(100));
+        assertEquals(0, reopened.size());
+        reopened.close();
+    }
+
+    public void testCompaction() throws IOException {
+        EnvelopeStore store = new EnvelopeStore(file);
+        store.open(0);
+        store.load(SpatialTestData.randomEntries(random, 1, 3000));
+        List<Long> removals = new ArrayList<Long>();
+        for (int i = 1; i <= 2000; i++) {
+            removals.add(Long.valueOf(i));
+        }
+        store.apply(Collections.<SpatialRTree.Entry>emptyList(), removals);
+        List<SpatialRTree.Entry> before = store.entries();
+        store.close();
+        long size = Files.size(file);
+        //More than half of the slots are removed : the live entries are packed at the start
+        store = new EnvelopeStore(file);
+        assertTrue(store.open(3000));
+        assertEquals(1000, store.size());
+        assertSameEntries(before, store.entries());
+        store.apply(SpatialTestData.randomEntries(random, 3001, 1), Arrays.asList(Long.valueOf(2001)));
+        assertLive(store, 3001, 1000);
+        store.close();
+        assertEquals(size, Files.size(file));
+        //The removed slots are reclaimed
+        store = new EnvelopeStore(file);
+        assertTrue(store.open(3001));
+        assertEquals(1000, store.entries().size());
+        store.close();
+    }
+
+    //The live ROW_IDs, as found by a search of the whole plane, and the size agree
+    private static void assertLive(EnvelopeStore store, long lastRowId, int expected) {
+        long[] found = store.search(new Envelope(-180, 180, -90, 90), SpatialOperator.INTERSECTS);
+        assertEquals(expected, found.length);
+        List<SpatialRTree.Entry> entries = store.entries();
+        assertEquals(expected, entries.size());
+        for (SpatialRTree.Entry entry : entries) {
+            assertTrue(entry.getRowId() <= lastRowId);
+            assertTrue(Arrays.binarySearch(found, entry.getRowId()) >= 0);
+        }
+    }
+
+    private static void assertSameEntries(List<SpatialRTree.Entry> expected, List<SpatialRTree.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SpatialRTree.Entry e = expected.get(i);
+            SpatialRTree.Entry a = actual.get(i);
+            assertEquals(e.getRowId(), a.getRowId());
+            assertEquals(e.minX, a.minX, 0);
+            assertEquals(e.maxX, a.maxX, 0);
+            assertEquals(e.minY, a.minY, 0);
+            assertEquals(e.maxY, a.maxY, 0);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the defaults of an index that isn't configured, which the README documents.
+ */
+public class GMLHSQLIndexDefaultsTest extends TestCase {
+
+    public void testDefaults() {
+        GMLHSQLIndex index = new GMLHSQLIndex();
+        //The WKB of every geometry on the heap is opt-in
+        assertFalse(index.storesRTreeGeometries());
+        assertFalse(index.useCells());
+        assertNull(index.getRTree());
+        assertNull(index.getEnvelopeStore());
+    }
+}
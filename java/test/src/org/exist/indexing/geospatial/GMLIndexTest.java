@@ -36,9 +36,11 @@ import javax.xml.parsers.SAXParserFactory;
 import junit.framework.TestCase;
 
 import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.NodeSet;
 import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
 import org.exist.dom.memtree.SAXAdapter;
+import org.exist.security.PermissionDeniedException;
 import org.exist.security.xacml.AccessContext;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
@@ -134,10 +136,13 @@ public class GMLIndexTest extends TestCase {
                         for (int i = 0; i < FILES.length; i++) {
                             XMLResource doc =
                                 (XMLResource) testCollection.getResource(FILES[i]);
+                            DocumentImpl document = (DocumentImpl)broker.getXMLResource(
+                                XmldbURI.create(testCollection.getName() + "/" + doc.getDocumentId()));
+                            assertNotNull(document);
                             PreparedStatement ps = conn.prepareStatement(
-                                "SELECT * FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOCUMENT_URI = ?;"
+                                "SELECT * FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID = ?;"
                             );
-                            ps.setString(1, testCollection.getName() + "/" + doc.getDocumentId());
+                            ps.setInt(1, document.getDocId());
                             ResultSet rs = ps.executeQuery();
                             while (rs.next()) {
                                 //Let be sure we have the right count
@@ -152,6 +157,9 @@ public class GMLIndexTest extends TestCase {
                 } catch (SQLException e) {
                     e.printStackTrace();
                     fail(e.getMessage());
+                } catch (PermissionDeniedException e) {
+                    e.printStackTrace();
+                    fail(e.getMessage());
                 }
             }
         } catch (XMLDBException e) {
@@ -249,6 +257,11 @@ public class GMLIndexTest extends TestCase {
                 assertTrue(ns.getLength() > 0);
                 ns = indexWorker.search(broker, null, EPSG4326_geometry, SpatialOperator.DISJOINT);
                 assertTrue(ns.getLength() > 0);
+                //The first ones in document order
+                NodeSet first = indexWorker.search(broker, null, EPSG4326_geometry, SpatialOperator.DISJOINT, 2);
+                assertEquals(Math.min(2, ns.getLength()), first.getLength());
+                assertEquals(ns.get(0), first.get(0));
+                assertEquals(0, indexWorker.search(broker, null, EPSG4326_geometry, SpatialOperator.DISJOINT, 0).getLength());
                 ns = indexWorker.search(broker, null, EPSG4326_geometry, SpatialOperator.INTERSECTS);
                 assertTrue(ns.getLength() > 0);
                 ns = indexWorker.search(broker, null, EPSG4326_geometry, SpatialOperator.TOUCHES);
@@ -294,6 +307,134 @@ public class GMLIndexTest extends TestCase {
             seq = xquery.execute(query, null, AccessContext.TEST);
             assertNotNull(seq);
             assertTrue(seq.getItemCount() > 0);
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "geospatial:disjoint(//gml:*, //gml:Point[gml:coordinates[. = '278697.450,187740.900']], 1)";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(1, seq.getItemCount());
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "geospatial:nearest(//gml:*, //gml:Point[gml:coordinates[. = '278697.450,187740.900']], 2)";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(2, seq.getItemCount());
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "let $near := geospatial:within-distance(//gml:*, $p, 1000) " +
+                "let $touching := geospatial:intersects(//gml:*, $p) " +
+                "return (count($touching), count(geospatial:within-distance(//gml:*, $p, 0)), " +
+                "count(geospatial:within-distance(//gml:*, $p, 0) intersect $touching), " +
+                "count($touching except $near), exists($near[. is $p]))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(5, seq.getItemCount());
+            //Within no distance : the very geometries that intersect it
+            int touching = Integer.parseInt(seq.itemAt(0).getStringValue());
+            assertTrue(touching > 0);
+            assertEquals(touching, Integer.parseInt(seq.itemAt(1).getStringValue()));
+            assertEquals(touching, Integer.parseInt(seq.itemAt(2).getStringValue()));
+            assertEquals("0", seq.itemAt(3).getStringValue());
+            assertEquals("true", seq.itemAt(4).getStringValue());
+            //A probe due north of the point, at a known distance
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := geospatial:transform(//gml:Point[gml:coordinates[. = '278697.450,187740.900']], 'EPSG:4326') " +
+                "return (geospatial:getMinX($p), geospatial:getMinY($p))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(2, seq.getItemCount());
+            double lon = Double.parseDouble(seq.itemAt(0).getStringValue());
+            double lat = Double.parseDouble(seq.itemAt(1).getStringValue());
+            double gap = Geodesic.distance(lon, lat, lon, lat + 0.01);
+            String probe = "<gml:Point xmlns:gml='http://www.opengis.net/gml' srsName='EPSG:4326'><gml:coordinates>" +
+                lon + "," + (lat + 0.01) + "</gml:coordinates></gml:Point>";
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "return (count(geospatial:within-distance($p, " + probe + ", " + (gap + 1) + ")), " +
+                "count(geospatial:within-distance($p, " + probe + ", " + (gap - 1) + ")), " +
+                "exists(geospatial:within-distance(//gml:*, " + probe + ", " + (gap + 1) + ")[. is $p]), " +
+                "exists(geospatial:within-distance(//gml:*, " + probe + ", " + (gap - 1) + ")[. is $p]))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(4, seq.getItemCount());
+            assertEquals("1", seq.itemAt(0).getStringValue());
+            //Just under the gap
+            assertEquals("0", seq.itemAt(1).getStringValue());
+            assertEquals("true", seq.itemAt(2).getStringValue());
+            assertEquals("false", seq.itemAt(3).getStringValue());
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "let $box := <gml:Polygon srsName='osgb:BNG'><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+                "278000,187000 279000,187000 279000,188000 278000,188000 278000,187000" +
+                "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon> " +
+                "let $selected := geospatial:bbox-intersects(//gml:*, 278000, 187000, 279000, 188000, 'osgb:BNG') " +
+                "return (exists($selected[. is $p]), count(geospatial:intersects(//gml:*, $box) except $selected))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(2, seq.getItemCount());
+            assertEquals("true", seq.itemAt(0).getStringValue());
+            //The filter step keeps every geometry that intersects the envelope
+            assertEquals("0", seq.itemAt(1).getStringValue());
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "return (count(geospatial:bbox-within(//gml:*, -180, -90, 180, 90)), " +
+                "count(geospatial:intersects(//gml:*, $p) | geospatial:disjoint(//gml:*, $p)))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(2, seq.getItemCount());
+            //Every indexed geometry
+            assertEquals(seq.itemAt(1).getStringValue(), seq.itemAt(0).getStringValue());
+            //Envelopes around the point, and just beside it
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "let $x := geospatial:getMinX(geospatial:transform($p, 'EPSG:4326')) " +
+                "let $y := geospatial:getMinY(geospatial:transform($p, 'EPSG:4326')) " +
+                "return (exists(geospatial:bbox-intersects(//gml:*, $x - 0.001, $y - 0.001, $x + 0.001, $y + 0.001)[. is $p]), " +
+                "exists(geospatial:bbox-within(//gml:*, $x - 0.001, $y - 0.001, $x + 0.001, $y + 0.001)[. is $p]), " +
+                "exists(geospatial:bbox-intersects(//gml:*, $x + 0.0001, $y - 0.001, $x + 0.001, $y + 0.001)[. is $p]), " +
+                "exists(geospatial:bbox-within(//gml:*, $x - 0.001, $y + 0.0001, $x + 0.001, $y + 0.001)[. is $p]), " +
+                "count(geospatial:bbox-intersects($p, $x + 0.0001, $y - 0.001, $x + 0.001, $y + 0.001)))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(5, seq.getItemCount());
+            assertEquals("true", seq.itemAt(0).getStringValue());
+            assertEquals("true", seq.itemAt(1).getStringValue());
+            assertEquals("false", seq.itemAt(2).getStringValue());
+            assertEquals("false", seq.itemAt(3).getStringValue());
+            assertEquals("0", seq.itemAt(4).getStringValue());
+            query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
+                "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "let $p := //gml:Point[gml:coordinates[. = '278697.450,187740.900']] " +
+                "let $pairs := geospatial:join(//gml:*, $p, 'intersects') " +
+                "let $touching := geospatial:intersects(//gml:*, $p) " +
+                "return (count($pairs), count($touching), " +
+                "every $pair in $pairs satisfies ($pair(2) is $p and exists($touching[. is $pair(1)])), " +
+                "count(geospatial:join($p, $p, 'equals')), count(geospatial:join($p, $p, 'overlaps')))";
+            seq = xquery.execute(query, null, AccessContext.TEST);
+            assertNotNull(seq);
+            assertEquals(5, seq.getItemCount());
+            //The same pairs as a search per right node
+            assertTrue(Integer.parseInt(seq.itemAt(0).getStringValue()) > 0);
+            assertEquals(seq.itemAt(1).getStringValue(), seq.itemAt(0).getStringValue());
+            assertEquals("true", seq.itemAt(2).getStringValue());
+            assertEquals("1", seq.itemAt(3).getStringValue());
+            //A point doesn't overlap itself
+            assertEquals("0", seq.itemAt(4).getStringValue());
             query = "import module namespace geospatial='http://exist-db.org/xquery/geospatial' " +
                 "at 'java:org.exist.examples.indexing.geospatial.module.GeoSpatialModule'; " +
                 "declare namespace gml = 'http://www.opengis.net/gml'; " +
@@ -996,6 +1137,104 @@ public class GMLIndexTest extends TestCase {
         }
     }    
 
+    public void testParallelReindex() {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = BrokerPool.getInstance();
+            assertNotNull(pool);
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            AbstractGMLJDBCIndex index = (AbstractGMLJDBCIndex)pool.getIndexManager().getIndexById(AbstractGMLJDBCIndex.ID);
+            //Unplugged
+            if (index != null) {
+                org.exist.collections.Collection collection =
+                    broker.getCollection(XmldbURI.ROOT_COLLECTION_URI.append(TEST_COLLECTION_NAME));
+                assertNotNull(collection);
+                ParallelReindexer reindexer = new ParallelReindexer(index, 2);
+                assertTrue(reindexer.reindex(broker, collection) > 0);
+                assertEquals(reindexer.getDocumentCount(), reindexer.getSavedDocuments());
+                assertEquals(0, reindexer.getFailedDocuments());
+                assertFalse(index.isBulkLoading());
+                assertTrue(index.checkIndex(broker));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool !=null)
+                pool.release(broker);
+        }
+    }
+
+    public void testMove() {
+        BrokerPool pool = null;
+        DBBroker broker = null;
+        try {
+            pool = BrokerPool.getInstance();
+            assertNotNull(pool);
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            AbstractGMLJDBCIndex index = (AbstractGMLJDBCIndex)pool.getIndexManager().getIndexById(AbstractGMLJDBCIndex.ID);
+            //Unplugged
+            if (index == null)
+                return;
+            XQuery xquery = pool.getXQueryService();
+            XmldbURI sourceURI = XmldbURI.ROOT_COLLECTION_URI.append(TEST_COLLECTION_NAME);
+            XmldbURI targetURI = sourceURI.append("moved");
+            xquery.execute("xmldb:create-collection('" + sourceURI + "', 'moved')", null, AccessContext.TEST);
+            DocumentImpl doc = (DocumentImpl)broker.getXMLResource(sourceURI.append(FILES[0]));
+            assertNotNull(doc);
+            int docId = doc.getDocId();
+            org.exist.collections.Collection source = broker.getCollection(sourceURI);
+            int rowCount = countRows(broker, docId, source.getId());
+            assertTrue(rowCount > 0);
+            //eXist reindexes the document it moves : its rows now carry the ID of their new collection
+            xquery.execute("xmldb:move('" + sourceURI + "', '" + targetURI + "', '" + FILES[0] + "')", null, AccessContext.TEST);
+            org.exist.collections.Collection target = broker.getCollection(targetURI);
+            assertNotNull(target);
+            assertEquals(0, countRows(broker, docId, source.getId()));
+            assertEquals(rowCount, countRows(broker, docId, target.getId()));
+            assertTrue(index.checkIndex(broker));
+            //Dropping the former collection leaves the moved document alone
+            AbstractGMLJDBCIndexWorker indexWorker = (AbstractGMLJDBCIndexWorker)broker.getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+            indexWorker.removeCollection(source, broker, false);
+            assertEquals(rowCount, countRows(broker, docId, target.getId()));
+            //Back where it was, and the other collection is dropped
+            xquery.execute("xmldb:move('" + targetURI + "', '" + sourceURI + "', '" + FILES[0] + "')", null, AccessContext.TEST);
+            xquery.execute("xmldb:remove('" + targetURI + "')", null, AccessContext.TEST);
+            assertEquals(rowCount, countRows(broker, docId, source.getId()));
+            assertTrue(index.checkIndex(broker));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            if (pool !=null)
+                pool.release(broker);
+        }
+    }
+
+    //The rows of a document that carry the given collection ID
+    private int countRows(DBBroker broker, int docId, int collectionId) throws SQLException {
+        GMLHSQLIndexWorker indexWorker = (GMLHSQLIndexWorker)broker.getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+        Connection conn = null;
+        try {
+            conn = indexWorker.acquireConnection();
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT COUNT(*) FROM " + GMLHSQLIndex.TABLE_NAME + " WHERE DOC_ID = ? AND COLLECTION_ID = ?;"
+            );
+            try {
+                ps.setInt(1, docId);
+                ps.setInt(2, collectionId);
+                ResultSet rs = ps.executeQuery();
+                rs.next();
+                return rs.getInt(1);
+            } finally {
+                ps.close();
+            }
+        } finally {
+            indexWorker.releaseConnection(conn);
+        }
+    }
+
     public void testUpdate() {
         BrokerPool pool = null;
         DBBroker broker = null;
@@ -0,0 +1,89 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import junit.framework.TestCase;
+
+import org.exist.numbering.DLN;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Checks that the invalidations of the geometry cache only reject the geometries of their own segment.
+ */
+public class GeometryCacheTest extends TestCase {
+
+    //Enough for all the segments
+    private final static long CAPACITY = 1000000;
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    public void testPut() {
+        GeometryCache cache = new GeometryCache(CAPACITY);
+        Geometry geometry = factory.createPoint(new Coordinate(1, 2));
+        cache.put(1, new DLN("1.2"), true, geometry, cache.getVersion(1));
+        assertSame(geometry, cache.get(1, new DLN("1.2"), true));
+        assertNull(cache.get(1, new DLN("1.2"), false));
+        assertNull(cache.get(2, new DLN("1.2"), true));
+    }
+
+    public void testInvalidation() {
+        GeometryCache cache = new GeometryCache(CAPACITY);
+        Geometry geometry = factory.createPoint(new Coordinate(1, 2));
+        //Read before the invalidation of its document
+        long version = cache.getVersion(1);
+        cache.invalidateDocument(1);
+        cache.put(1, new DLN("1.2"), true, geometry, version);
+        assertNull(cache.get(1, new DLN("1.2"), true));
+        cache.put(1, new DLN("1.2"), true, geometry, cache.getVersion(1));
+        assertSame(geometry, cache.get(1, new DLN("1.2"), true));
+        cache.invalidateDocument(1);
+        assertNull(cache.get(1, new DLN("1.2"), true));
+    }
+
+    public void testOtherSegments() {
+        GeometryCache cache = new GeometryCache(CAPACITY);
+        Geometry geometry = factory.createPoint(new Coordinate(1, 2));
+        long[] versions = new long[64];
+        for (int docId = 0; docId < versions.length; docId++) {
+            versions[docId] = cache.getVersion(docId);
+        }
+        cache.invalidateDocument(1);
+        int accepted = 0;
+        for (int docId = 2; docId < versions.length; docId++) {
+            boolean sameSegment = cache.getVersion(docId) != versions[docId];
+            cache.put(docId, new DLN("1.2"), true, geometry, versions[docId]);
+            if (sameSegment) {
+                assertNull(cache.get(docId, new DLN("1.2"), true));
+            } else {
+                assertSame(geometry, cache.get(docId, new DLN("1.2"), true));
+                accepted++;
+            }
+        }
+        //The invalidation of a document doesn't reject the geometries of the other segments
+        assertTrue(accepted > versions.length / 2);
+    }
+}
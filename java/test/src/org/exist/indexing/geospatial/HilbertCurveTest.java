@@ -0,0 +1,133 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Checks that the key ranges of a query window cover every point of it.
+ */
+public class HilbertCurveTest extends TestCase {
+
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(4326);
+    }
+
+    public void testCurve() {
+        //Every cell gets its own key, and consecutive keys are adjacent cells
+        int order = 5;
+        int side = 1 << order;
+        long[][] cells = new long[side * side][];
+        for (long x = 0; x < side; x++) {
+            for (long y = 0; y < side; y++) {
+                long d = HilbertCurve.xy2d(order, x, y);
+                assertTrue(d >= 0 && d < cells.length);
+                assertNull("Duplicate key " + d, cells[(int)d]);
+                cells[(int)d] = new long[] { x, y };
+            }
+        }
+        for (int d = 1; d < cells.length; d++) {
+            assertEquals(1, Math.abs(cells[d][0] - cells[d - 1][0]) + Math.abs(cells[d][1] - cells[d - 1][1]));
+        }
+    }
+
+    public void testKeyBounds() {
+        assertEquals(HilbertCurve.key(-180, -90), HilbertCurve.key(-200, -100));
+        long max = (1L << (2 * HilbertCurve.ORDER)) - 1;
+        for (double[] point : new double[][] { { -180, -90 }, { 180, 90 }, { -180, 90 }, { 180, -90 }, { 0, 0 } }) {
+            long key = HilbertCurve.key(point[0], point[1]);
+            assertTrue(key >= 0 && key <= max);
+        }
+    }
+
+    public void testRangesCoverWindow() {
+        for (int i = 0; i < 200; i++) {
+            Envelope window = SpatialTestData.randomWindow(random);
+            int maxRanges = 1 + random.nextInt(16);
+            long[] ranges = HilbertCurve.ranges(window, maxRanges);
+            assertTrue(ranges.length >= 2 && ranges.length <= 2 * maxRanges);
+            for (int j = 0; j < ranges.length; j += 2) {
+                assertTrue(ranges[j] <= ranges[j + 1]);
+                //Sorted and disjoint
+                if (j > 0)
+                    assertTrue(ranges[j - 1] < ranges[j]);
+            }
+            //The corners, the middles of the edges and random points inside
+            double[] xs = { window.getMinX(), (window.getMinX() + window.getMaxX()) / 2, window.getMaxX() };
+            double[] ys = { window.getMinY(), (window.getMinY() + window.getMaxY()) / 2, window.getMaxY() };
+            for (double x : xs) {
+                for (double y : ys) {
+                    assertCovered(window, ranges, x, y);
+                }
+            }
+            for (int j = 0; j < 100; j++) {
+                assertCovered(window, ranges,
+                    window.getMinX() + random.nextDouble() * window.getWidth(),
+                    window.getMinY() + random.nextDouble() * window.getHeight());
+            }
+        }
+    }
+
+    public void testRangesCoverEveryCell() {
+        //Small windows : check every cell they touch
+        for (int i = 0; i < 50; i++) {
+            double x = random.nextDouble() * 350 - 175;
+            double y = random.nextDouble() * 170 - 85;
+            Envelope window = new Envelope(x, x + random.nextDouble() * 0.05, y, y + random.nextDouble() * 0.05);
+            long[] ranges = HilbertCurve.ranges(window, 4);
+            for (long cx = HilbertCurve.cellX(window.getMinX()); cx <= HilbertCurve.cellX(window.getMaxX()); cx++) {
+                for (long cy = HilbertCurve.cellY(window.getMinY()); cy <= HilbertCurve.cellY(window.getMaxY()); cy++) {
+                    long key = HilbertCurve.xy2d(HilbertCurve.ORDER, cx, cy);
+                    assertTrue("Cell (" + cx + ", " + cy + ") of " + window + " not covered", isCovered(ranges, key));
+                }
+            }
+        }
+    }
+
+    public void testWholePlane() {
+        long[] ranges = HilbertCurve.ranges(new Envelope(-180, 180, -90, 90), 8);
+        assertEquals(2, ranges.length);
+        assertEquals(0, ranges[0]);
+        assertEquals((1L << (2 * HilbertCurve.ORDER)) - 1, ranges[1]);
+    }
+
+    private static void assertCovered(Envelope window, long[] ranges, double x, double y) {
+        assertTrue("(" + x + ", " + y + ") of " + window + " not covered", isCovered(ranges, HilbertCurve.key(x, y)));
+    }
+
+    private static boolean isCovered(long[] ranges, long key) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (key >= ranges[i] && key <= ranges[i + 1])
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.DLN;
+import org.exist.xquery.value.ValueSequence;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Checks the ranking of the nearest neighbours by geodesic distance, and the best-first walk of the R-tree.
+ */
+public class NearestNeighboursTest extends TestCase {
+
+    private final static int POINTS = 2000;
+
+    private final GeometryFactory factory = new GeometryFactory();
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(4326);
+    }
+
+    public void testGeodesicOrder() {
+        //At 60N, a degree of longitude is about half a degree of latitude
+        Point query = point(0, 60);
+        NodeProxy east = node(1);
+        NodeProxy north = node(2);
+        NearestNeighbours neighbours = new NearestNeighbours(query, 2);
+        neighbours.add(north, point(0, 61.2));
+        neighbours.add(east, point(1.9, 60));
+        assertResult(neighbours.getResult(), east, north);
+        neighbours = new NearestNeighbours(query, 1);
+        neighbours.add(north, point(0, 61.2));
+        neighbours.add(east, point(1.9, 60));
+        assertResult(neighbours.getResult(), east);
+    }
+
+    public void testAcrossTheAntimeridian() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        entries.add(new SpatialRTree.Entry(0, new Envelope(-179.9, -179.9, 10, 10)));
+        entries.add(new SpatialRTree.Entry(1, new Envelope(178, 178, 10, 10)));
+        tree.load(entries);
+        Point[] points = { point(-179.9, 10), point(178, 10) };
+        NodeProxy[] nodes = { node(1), node(2) };
+        assertResult(nearest(tree, points, nodes, point(179.9, 10), 1), nodes[0]);
+        assertResult(nearest(tree, points, nodes, point(179.9, 10), 2), nodes[0], nodes[1]);
+    }
+
+    public void testRTreeWalk() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        final Point[] points = new Point[POINTS];
+        NodeProxy[] nodes = new NodeProxy[POINTS];
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        for (int i = 0; i < POINTS; i++) {
+            points[i] = point(random.nextDouble() * 360 - 180, random.nextDouble() * 170 - 85);
+            nodes[i] = node(i + 1);
+            entries.add(new SpatialRTree.Entry(i, points[i].getEnvelopeInternal()));
+        }
+        tree.load(entries);
+        for (int q = 0; q < 30; q++) {
+            final Point query = point(random.nextDouble() * 360 - 180, random.nextDouble() * 170 - 85);
+            ValueSequence result = nearest(tree, points, nodes, query, 5);
+            //Between points, the distances are exact : the brute force ranking must be the same
+            Integer[] order = new Integer[POINTS];
+            for (int i = 0; i < POINTS; i++) {
+                order[i] = Integer.valueOf(i);
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(distance(query, points[i1.intValue()]), distance(query, points[i2.intValue()]));
+                }
+            });
+            assertEquals(5, result.getItemCount());
+            for (int i = 0; i < 5; i++) {
+                assertSame("Query " + query + ", rank " + i, nodes[order[i].intValue()], result.itemAt(i));
+            }
+        }
+    }
+
+    public void testEnvelopeDistanceIsLowerBound() {
+        for (int i = 0; i < 5000; i++) {
+            Envelope e1 = randomEnvelope();
+            Envelope e2 = randomEnvelope();
+            double bound = Geodesic.minDistance(e1.getMinX(), e1.getMaxX(), e1.getMinY(), e1.getMaxY(), e2);
+            for (int j = 0; j < 10; j++) {
+                double distance = Geodesic.distance(
+                    e1.getMinX() + random.nextDouble() * e1.getWidth(), e1.getMinY() + random.nextDouble() * e1.getHeight(),
+                    e2.getMinX() + random.nextDouble() * e2.getWidth(), e2.getMinY() + random.nextDouble() * e2.getHeight());
+                assertTrue(e1 + " " + e2 + ": " + bound + " > " + distance, bound <= distance);
+            }
+        }
+    }
+
+    private ValueSequence nearest(SpatialRTree tree, Point[] points, NodeProxy[] nodes, Point query, int k) {
+        //As the index worker does
+        NearestNeighbours neighbours = new NearestNeighbours(query, k);
+        Envelope envelope = query.getEnvelopeInternal();
+        for (Iterator<SpatialRTree.Entry> it = tree.getSnapshot().nearestEntries(envelope); it.hasNext(); ) {
+            SpatialRTree.Entry entry = it.next();
+            if (neighbours.isComplete(entry.distance(envelope)))
+                break;
+            neighbours.add(nodes[(int)entry.getRowId()], points[(int)entry.getRowId()]);
+        }
+        return neighbours.getResult();
+    }
+
+    private static double distance(Point p1, Point p2) {
+        return Geodesic.distance(p1.getX(), p1.getY(), p2.getX(), p2.getY());
+    }
+
+    private static void assertResult(ValueSequence result, NodeProxy... expected) {
+        assertEquals(expected.length, result.getItemCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], result.itemAt(i));
+        }
+    }
+
+    private Envelope randomEnvelope() {
+        double x = random.nextDouble() * 350 - 180;
+        double y = random.nextDouble() * 170 - 85;
+        return new Envelope(x, x + random.nextDouble() * 10, y, y + random.nextDouble() * 5);
+    }
+
+    private Point point(double x, double y) {
+        return factory.createPoint(new Coordinate(x, y));
+    }
+
+    private static NodeProxy node(int n) {
+        //The document isn't needed as long as there are no ties
+        return new NodeProxy(null, new DLN("1." + n));
+    }
+}
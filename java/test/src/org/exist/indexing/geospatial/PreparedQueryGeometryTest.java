@@ -0,0 +1,153 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Checks the prepared predicates against the JTS ones.
+ */
+public class PreparedQueryGeometryTest extends TestCase {
+
+    //A concave polygon with two holes
+    private final static String POLYGON_WITH_HOLES =
+        "POLYGON ((0 0, 10 0, 10 10, 6 10, 6 4, 4 4, 4 10, 0 10, 0 0), " +
+        "(1 1, 3 1, 3 3, 1 3, 1 1), (7 1, 9 1, 9 3, 7 3, 7 1))";
+    private final static String MULTI_POLYGON =
+        "MULTIPOLYGON (((20 0, 30 0, 25 8, 20 0)), ((0 20, 10 20, 10 30, 0 30, 0 20), (2 22, 8 22, 8 28, 2 28, 2 22)))";
+
+    //No heterogeneous geometry collection : JTS 1.8 doesn't relate them
+    private final static String[] CANDIDATES = {
+        //Points : interior, in a hole, in the notch, on the outer ring, on a hole's ring, on a vertex, outside
+        "POINT (0.5 0.5)", "POINT (2 2)", "POINT (5 8)", "POINT (5 0)", "POINT (1 2)", "POINT (6 4)", "POINT (-1 5)",
+        "MULTIPOINT (2 2, 0.5 0.5)", "MULTIPOINT (2 2, 8 2)",
+        //Lines : inside, crossing, along the boundary, touching from outside, across a hole, in a hole
+        "LINESTRING (0.5 0.5, 0.5 9)", "LINESTRING (-1 5, 11 5)", "LINESTRING (0 0, 10 0)", "LINESTRING (-5 0, 0 0)",
+        "LINESTRING (0.5 2, 3.5 2)", "LINESTRING (1.5 1.5, 2.5 2.5)", "LINESTRING (5 5, 5 9)",
+        "MULTILINESTRING ((1.5 1.5, 2.5 2.5), (5 5, 5 9))", "MULTILINESTRING ((1.5 1.5, 2.5 2.5), (0.5 0.5, 0.5 5))",
+        //Polygons : within, filling a hole exactly, in a hole, around a hole, touching, overlapping, containing, disjoint
+        "POLYGON ((0.2 4, 3.8 4, 3.8 9, 0.2 9, 0.2 4))",
+        "POLYGON ((1 1, 3 1, 3 3, 1 3, 1 1))",
+        "POLYGON ((1.5 1.5, 2.5 1.5, 2.5 2.5, 1.5 2.5, 1.5 1.5))",
+        "POLYGON ((0.5 0.5, 3.5 0.5, 3.5 3.5, 0.5 3.5, 0.5 0.5))",
+        "POLYGON ((10 0, 12 0, 12 2, 10 2, 10 0))",
+        "POLYGON ((4 5, 6 5, 6 9, 4 9, 4 5))",
+        "POLYGON ((9 9, 12 9, 12 12, 9 12, 9 9))",
+        "POLYGON ((-1 -1, 11 -1, 11 11, -1 11, -1 -1))",
+        "POLYGON ((40 40, 41 40, 41 41, 40 41, 40 40))",
+        "MULTIPOLYGON (((1.5 1.5, 2.5 1.5, 2.5 2.5, 1.5 2.5, 1.5 1.5)), ((40 40, 41 40, 41 41, 40 41, 40 40)))",
+        "MULTIPOLYGON (((1.5 1.5, 2.5 1.5, 2.5 2.5, 1.5 2.5, 1.5 1.5)), ((0.2 4, 3.8 4, 3.8 9, 0.2 9, 0.2 4)))",
+        //Against the multipolygon
+        "POINT (25 3)", "POINT (5 25)", "POINT (1 21)", "LINESTRING (25 -1, 25 3)", "POLYGON ((3 23, 7 23, 7 27, 3 27, 3 23))",
+        "POLYGON ((22 1, 28 1, 25 6, 22 1))"
+    };
+
+    private final static int[] OPERATORS = { SpatialOperator.INTERSECTS, SpatialOperator.DISJOINT, SpatialOperator.WITHIN };
+
+    private final GeometryFactory factory = new GeometryFactory();
+    private final WKTReader reader = new WKTReader(factory);
+
+    public void testPolygonWithHoles() throws ParseException {
+        checkAll(reader.read(POLYGON_WITH_HOLES));
+    }
+
+    public void testMultiPolygon() throws ParseException {
+        checkAll(reader.read(MULTI_POLYGON));
+    }
+
+    public void testRectangle() throws ParseException {
+        //Not prepared : the JTS predicates are used as such
+        checkAll(reader.read("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))"));
+    }
+
+    public void testRandomCandidates() throws ParseException {
+        Random random = new Random(4326);
+        Geometry[] queries = { reader.read(POLYGON_WITH_HOLES), reader.read(MULTI_POLYGON) };
+        for (Geometry query : queries) {
+            for (int op : OPERATORS) {
+                PreparedQueryGeometry prepared = new PreparedQueryGeometry(query, op);
+                for (int i = 0; i < 2000; i++) {
+                    //Coordinates on a coarse grid, so that the boundaries often meet
+                    Geometry candidate = randomGeometry(random);
+                    assertEquals(op + " " + candidate, expected(candidate, query, op), prepared.matches(candidate));
+                }
+            }
+        }
+    }
+
+    private void checkAll(Geometry query) throws ParseException {
+        for (int op : OPERATORS) {
+            PreparedQueryGeometry prepared = new PreparedQueryGeometry(query, op);
+            for (String wkt : CANDIDATES) {
+                Geometry candidate = reader.read(wkt);
+                assertEquals(op + " " + wkt, expected(candidate, query, op), prepared.matches(candidate));
+            }
+        }
+    }
+
+    private static boolean expected(Geometry candidate, Geometry query, int op) {
+        switch (op) {
+        case SpatialOperator.INTERSECTS:
+            return candidate.intersects(query);
+        case SpatialOperator.DISJOINT:
+            return candidate.disjoint(query);
+        case SpatialOperator.WITHIN:
+            return candidate.within(query);
+        default:
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private Geometry randomGeometry(Random random) {
+        double x = random.nextInt(64) / 2.0 - 2;
+        double y = random.nextInt(64) / 2.0 - 2;
+        switch (random.nextInt(3)) {
+        case 0:
+            return factory.createPoint(new Coordinate(x, y));
+        case 1:
+            //Not degenerate
+            double dx = random.nextInt(8) - 4;
+            double dy = 1 + random.nextInt(4);
+            return factory.createLineString(new Coordinate[] {
+                new Coordinate(x, y), new Coordinate(x + dx, y + (random.nextBoolean() ? dy : -dy)) });
+        default:
+            double w = 0.5 + random.nextInt(8) / 2.0;
+            double h = 0.5 + random.nextInt(8) / 2.0;
+            LinearRing shell = factory.createLinearRing(new Coordinate[] {
+                new Coordinate(x, y), new Coordinate(x + w, y), new Coordinate(x + w / 2, y + h), new Coordinate(x, y) });
+            return factory.createPolygon(shell, new LinearRing[0]);
+        }
+    }
+}
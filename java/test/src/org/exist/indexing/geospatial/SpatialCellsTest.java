@@ -0,0 +1,110 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Checks that the cell ranges of a query window find every geometry whose envelope intersects it.
+ */
+public class SpatialCellsTest extends TestCase {
+
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(4326);
+    }
+
+    public void testLevel() {
+        //A point goes as deep as allowed
+        Envelope point = new Envelope(2.35, 2.35, 48.85, 48.85);
+        assertEquals(SpatialCells.MAX_LEVEL, SpatialCells.level(point, SpatialCells.MAX_LEVEL));
+        assertEquals(10, SpatialCells.level(point, 10));
+        //The whole plane only fits the root cell
+        assertEquals(0, SpatialCells.level(new Envelope(-180, 180, -90, 90), SpatialCells.MAX_LEVEL));
+        //The larger the envelope, the coarser the level
+        assertTrue(SpatialCells.level(new Envelope(0, 10, 0, 10), 16) < SpatialCells.level(new Envelope(0, 0.1, 0, 0.1), 16));
+    }
+
+    public void testCover() {
+        for (int i = 0; i < 500; i++) {
+            Envelope envelope = SpatialTestData.randomWindow(random);
+            int maxDepth = 4 + random.nextInt(SpatialCells.MAX_LEVEL - 3);
+            int level = SpatialCells.level(envelope, maxDepth);
+            long[] cells = SpatialCells.cover(envelope, level);
+            assertTrue(cells.length >= 1);
+            //At the chosen level, at most 2 cells along each axis
+            if (level == SpatialCells.level(envelope, SpatialCells.MAX_LEVEL))
+                assertTrue(cells.length <= 4);
+            for (long cell : cells) {
+                assertEquals(level, (int)(cell >> 40));
+            }
+        }
+    }
+
+    public void testRangesFindIntersectingEnvelopes() {
+        int maxDepth = 12;
+        for (int i = 0; i < 200; i++) {
+            Envelope window = SpatialTestData.randomWindow(random);
+            int maxRanges = 1 + random.nextInt(16);
+            for (int j = 0; j < 50; j++) {
+                Envelope envelope = SpatialTestData.randomWindow(random);
+                //Some of them in the window
+                if (j % 2 == 0) {
+                    double x = window.getMinX() + random.nextDouble() * window.getWidth();
+                    double y = window.getMinY() + random.nextDouble() * window.getHeight();
+                    envelope = new Envelope(x, Math.min(180, x + envelope.getWidth()), y, Math.min(90, y + envelope.getHeight()));
+                }
+                if (!envelope.intersects(window))
+                    continue;
+                int level = SpatialCells.level(envelope, maxDepth);
+                long[] ranges = SpatialCells.ranges(window, level, maxRanges);
+                boolean found = false;
+                for (long cell : SpatialCells.cover(envelope, level)) {
+                    for (int k = 0; k < ranges.length; k += 2) {
+                        if (cell >= ranges[k] && cell <= ranges[k + 1])
+                            found = true;
+                    }
+                }
+                assertTrue(envelope + " not found in " + window, found);
+            }
+        }
+    }
+
+    public void testRangesAreSorted() {
+        for (int i = 0; i < 200; i++) {
+            long[] ranges = SpatialCells.ranges(SpatialTestData.randomWindow(random), random.nextInt(SpatialCells.MAX_LEVEL + 1), 8);
+            for (int j = 0; j < ranges.length; j += 2) {
+                assertTrue(ranges[j] <= ranges[j + 1]);
+                if (j > 0)
+                    assertTrue(ranges[j - 1] < ranges[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.exist.indexing.geospatial.AbstractGMLJDBCIndex.SpatialOperator;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Checks the R-tree against a linear scan of the same entries.
+ */
+public class SpatialRTreeTest extends TestCase {
+
+    private final static int ENTRIES = 5000;
+
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(4326);
+    }
+
+    public void testSearch() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> entries = SpatialTestData.randomEntries(random, 0, ENTRIES);
+        tree.load(entries);
+        assertEquals(ENTRIES, tree.size());
+        for (int i = 0; i < 50; i++) {
+            Envelope query = SpatialTestData.randomEnvelope(random, 20);
+            for (int op : new int[] { SpatialOperator.INTERSECTS, SpatialOperator.WITHIN, SpatialOperator.CONTAINS }) {
+                assertTrue(Arrays.equals(scan(entries, query, op), tree.search(query, op)));
+            }
+        }
+    }
+
+    public void testTombstones() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> live = SpatialTestData.randomEntries(random, 0, ENTRIES);
+        tree.load(live);
+        //Some packed entries are removed, some entries are inserted, and then some of them removed too
+        List<SpatialRTree.Entry> inserted = SpatialTestData.randomEntries(random, ENTRIES, 100);
+        List<Long> removed = new ArrayList<Long>();
+        for (int i = 0; i < ENTRIES; i += 7) {
+            removed.add(Long.valueOf(i));
+        }
+        tree.apply(inserted, removed);
+        tree.apply(Collections.<SpatialRTree.Entry>emptyList(), Arrays.asList(Long.valueOf(ENTRIES), Long.valueOf(ENTRIES + 1)));
+        List<SpatialRTree.Entry> expected = new ArrayList<SpatialRTree.Entry>();
+        for (SpatialRTree.Entry entry : live) {
+            if (entry.getRowId() % 7 != 0)
+                expected.add(entry);
+        }
+        expected.addAll(inserted.subList(2, inserted.size()));
+        assertEquals(expected.size(), tree.size());
+        assertEquals(expected.size(), tree.getSnapshot().entries().size());
+        for (int i = 0; i < 50; i++) {
+            Envelope query = SpatialTestData.randomEnvelope(random, 30);
+            assertTrue(Arrays.equals(scan(expected, query, SpatialOperator.INTERSECTS),
+                tree.search(query, SpatialOperator.INTERSECTS)));
+        }
+    }
+
+    public void testUnknownRemovals() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        tree.load(SpatialTestData.randomEntries(random, 0, 100));
+        tree.apply(SpatialTestData.randomEntries(random, 100, 10), Collections.<Long>emptyList());
+        //Unknown rows, and rows already removed, don't change the size
+        tree.remove(-1);
+        tree.remove(1000);
+        tree.remove(5);
+        tree.remove(5);
+        tree.remove(105);
+        tree.remove(105);
+        assertEquals(108, tree.size());
+        assertEquals(108, tree.getSnapshot().entries().size());
+        //Nor does a row inserted and removed by the same changes
+        tree.apply(SpatialTestData.randomEntries(random, 110, 2), Arrays.asList(Long.valueOf(111), Long.valueOf(2000)));
+        assertEquals(109, tree.size());
+        assertEquals(109, tree.search(new Envelope(-180, 180, -90, 90), SpatialOperator.INTERSECTS).length);
+    }
+
+    public void testDeferredChanges() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> live = new ArrayList<SpatialRTree.Entry>(SpatialTestData.randomEntries(random, 0, ENTRIES));
+        tree.load(live);
+        SpatialRTree.Snapshot before = tree.getSnapshot();
+        //During a bulk load : rows are inserted, some of them removed by later transactions, and packed rows removed
+        List<SpatialRTree.Entry> inserted = SpatialTestData.randomEntries(random, ENTRIES, 100);
+        tree.defer(inserted.subList(0, 50), Collections.<Long>emptyList());
+        tree.defer(inserted.subList(50, 100), Arrays.asList(Long.valueOf(ENTRIES), Long.valueOf(ENTRIES + 1), Long.valueOf(0)));
+        tree.defer(Collections.<SpatialRTree.Entry>emptyList(), Arrays.asList(Long.valueOf(ENTRIES + 99), Long.valueOf(1)));
+        assertTrue(tree.hasDeferredChanges());
+        //The readers keep the last snapshot meanwhile
+        assertSame(before, tree.getSnapshot());
+        assertEquals(ENTRIES, tree.size());
+        tree.applyDeferred();
+        assertFalse(tree.hasDeferredChanges());
+        List<SpatialRTree.Entry> expected = new ArrayList<SpatialRTree.Entry>(live.subList(2, live.size()));
+        expected.addAll(inserted.subList(2, 99));
+        SpatialRTree.Snapshot after = tree.getSnapshot();
+        assertEquals(expected.size(), after.size());
+        assertEquals(expected.size(), after.entries().size());
+        Envelope world = new Envelope(-180, 180, -90, 90);
+        assertTrue(Arrays.equals(scan(expected, world, SpatialOperator.INTERSECTS), after.search(world, SpatialOperator.INTERSECTS)));
+        for (int i = 0; i < 20; i++) {
+            Envelope query = SpatialTestData.randomEnvelope(random, 30);
+            assertTrue(Arrays.equals(scan(expected, query, SpatialOperator.INTERSECTS), after.search(query, SpatialOperator.INTERSECTS)));
+        }
+    }
+
+    public void testRepack() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> live = new ArrayList<SpatialRTree.Entry>(SpatialTestData.randomEntries(random, 0, ENTRIES));
+        tree.load(live);
+        SpatialRTree.Snapshot before = tree.getSnapshot();
+        //Enough removals to trigger a repack
+        List<Long> removed = new ArrayList<Long>();
+        for (int i = 0; i < 2000; i++) {
+            removed.add(Long.valueOf(live.get(i).getRowId()));
+        }
+        tree.apply(Collections.<SpatialRTree.Entry>emptyList(), removed);
+        live.subList(0, 2000).clear();
+        SpatialRTree.Snapshot after = tree.getSnapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+        assertEquals(live.size(), after.size());
+        //The older snapshot is left untouched
+        assertEquals(ENTRIES, before.size());
+        Envelope world = new Envelope(-180, 180, -90, 90);
+        assertEquals(ENTRIES, before.search(world, SpatialOperator.INTERSECTS).length);
+        assertTrue(Arrays.equals(scan(live, world, SpatialOperator.INTERSECTS), after.search(world, SpatialOperator.INTERSECTS)));
+        //An explicit repack keeps the content
+        tree.apply(SpatialTestData.randomEntries(random, ENTRIES, 10), Collections.<Long>emptyList(), true);
+        assertEquals(live.size() + 10, tree.size());
+    }
+
+    public void testSharedChunks() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        tree.load(SpatialTestData.randomEntries(random, 0, ENTRIES));
+        Envelope world = new Envelope(-180, 180, -90, 90);
+        //The snapshots share the chunks of the unpacked entries : the later insertions must not leak into the earlier ones
+        List<SpatialRTree.Snapshot> snapshots = new ArrayList<SpatialRTree.Snapshot>();
+        for (int i = 0; i < 30; i++) {
+            tree.apply(SpatialTestData.randomEntries(random, ENTRIES + i * 20, 20), Collections.singletonList(Long.valueOf(i)));
+            snapshots.add(tree.getSnapshot());
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            SpatialRTree.Snapshot snapshot = snapshots.get(i);
+            int expected = ENTRIES + (i + 1) * 20 - (i + 1);
+            assertEquals(expected, snapshot.size());
+            assertEquals(expected, snapshot.entries().size());
+            long[] found = snapshot.search(world, SpatialOperator.INTERSECTS);
+            assertEquals(expected, found.length);
+            assertEquals(ENTRIES + (i + 1) * 20 - 1, found[found.length - 1]);
+        }
+    }
+
+    public void testNearestEntries() {
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> entries = SpatialTestData.randomEntries(random, 0, ENTRIES);
+        tree.load(entries);
+        //Unpacked entries and tombstones take part in the traversal too
+        tree.apply(SpatialTestData.randomEntries(random, ENTRIES, 50), Arrays.asList(Long.valueOf(0), Long.valueOf(1)));
+        List<SpatialRTree.Entry> live = tree.getSnapshot().entries();
+        for (int i = 0; i < 20; i++) {
+            Envelope query = SpatialTestData.randomEnvelope(random, 1);
+            Iterator<SpatialRTree.Entry> nearest = tree.getSnapshot().nearestEntries(query);
+            double[] distances = new double[live.size()];
+            for (int j = 0; j < distances.length; j++) {
+                distances[j] = live.get(j).distance(query);
+            }
+            Arrays.sort(distances);
+            int count = 0;
+            double previous = 0;
+            while (nearest.hasNext()) {
+                SpatialRTree.Entry entry = nearest.next();
+                assertTrue(entry.getRowId() > 1);
+                double distance = entry.distance(query);
+                assertTrue("Not best-first", distance >= previous);
+                assertEquals(distances[count], distance, 0);
+                previous = distance;
+                count++;
+            }
+            assertEquals(live.size(), count);
+        }
+    }
+
+    public void testEntriesDocuments() {
+        //Without the geometries, the entries still know their document
+        SpatialRTree tree = new SpatialRTree(8, false);
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>();
+        for (int i = 0; i < ENTRIES; i++) {
+            Envelope envelope = SpatialTestData.randomEnvelope(random, 2);
+            entries.add(new SpatialRTree.Entry(i, envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(), i % 7 + 1));
+        }
+        tree.load(entries.subList(0, ENTRIES / 2));
+        tree.apply(entries.subList(ENTRIES / 2, ENTRIES), Collections.<Long>emptyList());
+        int count = 0;
+        for (Iterator<SpatialRTree.Entry> it = tree.getSnapshot().nearestEntries(SpatialTestData.randomEnvelope(random, 1)); it.hasNext(); ) {
+            SpatialRTree.Entry entry = it.next();
+            assertNull(entry.getEPSG4326WKB());
+            assertEquals(entry.getRowId() % 7 + 1, entry.getDocId());
+            count++;
+        }
+        assertEquals(ENTRIES, count);
+    }
+
+    private static long[] scan(List<SpatialRTree.Entry> entries, Envelope query, int spatialOp) {
+        List<Long> rowIds = new ArrayList<Long>();
+        for (SpatialRTree.Entry entry : entries) {
+            if (SpatialRTree.matches(entry, query, spatialOp))
+                rowIds.add(Long.valueOf(entry.getRowId()));
+        }
+        long[] result = new long[rowIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rowIds.get(i).longValue();
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
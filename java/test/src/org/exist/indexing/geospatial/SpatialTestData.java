@@ -0,0 +1,70 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2007-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ *
+ *  @author Pierrick Brihaye <pierrick.brihaye@free.fr>
+ */
+package org.exist.indexing.geospatial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Random EPSG:4326 data shared by the tests of the spatial structures.
+ */
+class SpatialTestData {
+
+    private SpatialTestData() {
+        //Not instantiable
+    }
+
+    /**
+     * Returns R-tree entries with consecutive row IDs and small random envelopes.
+     */
+    static List<SpatialRTree.Entry> randomEntries(Random random, long firstRowId, int count) {
+        List<SpatialRTree.Entry> entries = new ArrayList<SpatialRTree.Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new SpatialRTree.Entry(firstRowId + i, randomEnvelope(random, 2)));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns an envelope away from the antimeridian and the poles, at most maxSize degrees wide and high.
+     */
+    static Envelope randomEnvelope(Random random, double maxSize) {
+        double x = random.nextDouble() * 340 - 170;
+        double y = random.nextDouble() * 160 - 80;
+        return new Envelope(x, x + random.nextDouble() * maxSize, y, y + random.nextDouble() * maxSize);
+    }
+
+    /**
+     * Returns a query window anywhere on the globe, from a few metres to a few tens of degrees wide.
+     */
+    static Envelope randomWindow(Random random) {
+        double x = random.nextDouble() * 360 - 180;
+        double y = random.nextDouble() * 180 - 90;
+        double size = Math.pow(10, random.nextDouble() * 6 - 4);
+        return new Envelope(x, Math.min(180, x + size), y, Math.min(90, y + size * random.nextDouble()));
+    }
+}